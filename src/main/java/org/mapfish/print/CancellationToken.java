@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells if a print is still wanted. Cancelled when the deadline of the print is reached
+ * or when nobody is waiting for it anymore.
+ * <p/>
+ * The map tile tasks of a cancelled print are skipped and its in-flight requests are
+ * aborted (they register a callback with {@link #onCancel(Runnable)}).
+ */
+public class CancellationToken {
+    private static final Logger LOGGER = LogManager.getLogger(CancellationToken.class);
+
+    /**
+     * The deadline (System.nanoTime()), or 0 if none.
+     */
+    private final long deadline;
+
+    private volatile String reason = null;
+
+    /**
+     * The callbacks to call when cancelled. Protected by this.
+     */
+    private final Set<Runnable> callbacks = new LinkedHashSet<Runnable>();
+
+    /**
+     * @param timeoutMillis the time the print can take, 0 for no deadline.
+     */
+    public CancellationToken(long timeoutMillis) {
+        if (timeoutMillis > 0) {
+            final long value = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            deadline = value != 0 ? value : 1;
+        } else {
+            deadline = 0;
+        }
+    }
+
+    /**
+     * Cancel the print and abort what it's doing. Does nothing if already cancelled.
+     */
+    public void cancel(String why) {
+        final List<Runnable> toCall;
+        synchronized (this) {
+            if (reason != null) {
+                return;
+            }
+            reason = why;
+            toCall = new ArrayList<Runnable>(callbacks);
+            callbacks.clear();
+        }
+        LOGGER.info("Cancelling a print: " + why);
+        for (Runnable callback : toCall) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Error while cancelling a print", e);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        if (reason == null && deadline != 0 && System.nanoTime() - deadline >= 0) {
+            cancel("the print took more than the allowed time");
+        }
+        return reason != null;
+    }
+
+    /**
+     * @throws PrintCancelledException if cancelled.
+     */
+    public void check() throws PrintCancelledException {
+        if (isCancelled()) {
+            throw new PrintCancelledException(reason);
+        }
+    }
+
+    /**
+     * @return the reason of the cancellation, null if not cancelled.
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return the time left before the deadline, Long.MAX_VALUE if none.
+     */
+    public long getRemainingMillis() {
+        if (deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * Register a callback to call when cancelled. It's called right away if already cancelled.
+     *
+     * @return to close to unregister the callback.
+     */
+    public Closeable onCancel(final Runnable callback) {
+        synchronized (this) {
+            if (reason == null) {
+                callbacks.add(callback);
+                return new Closeable() {
+                    public void close() {
+                        synchronized (CancellationToken.this) {
+                            callbacks.remove(callback);
+                        }
+                    }
+                };
+            }
+        }
+        callback.run();
+        return new Closeable() {
+            public void close() {
+            }
+        };
+    }
+}
@@ -70,6 +70,11 @@ public class MapPrinter {
      */
     private File configDir;
 
+    /**
+     * Identifies the loaded configuration file and its version. Null if the configuration doesn't come from a file.
+     */
+    private String configVersion;
+
     /**
      * OutputFactory for the final output
      *
@@ -104,6 +109,7 @@ public class MapPrinter {
      */
     public MapPrinter setYamlConfigFile(File configFile) throws FileNotFoundException {
         this.config = configFactory.fromYaml(configFile);
+        configVersion = configFile.getAbsolutePath() + "@" + configFile.lastModified();
         configDir = configFile.getParentFile();
         if (configDir == null) {
             try {
@@ -117,11 +123,13 @@ public class MapPrinter {
 
     public MapPrinter setConfig(String strConfig) {
         this.config = configFactory.fromString(strConfig);
+        configVersion = null;
         return this;
     }
 
     public MapPrinter setConfig(InputStream inputConfig) {
         this.config =  configFactory.fromInputStream(inputConfig);
+        configVersion = null;
         return this;
     }
 
@@ -168,12 +176,23 @@ public class MapPrinter {
      * @throws InterruptedException
      */
     public RenderingContext print(PJsonObject jsonSpec, OutputStream outputStream, Map<String, String> headers) throws DocumentException, InterruptedException {
+        return print(jsonSpec, outputStream, headers, null);
+    }
+
+    /**
+     * Generate the PDF using the given spec.
+     *
+     * @param cancellation tells if the print is still wanted. If null, the print has the timeout of the config.
+     * @return The context that was used for printing.
+     */
+    public RenderingContext print(PJsonObject jsonSpec, OutputStream outputStream, Map<String, String> headers,
+                                  CancellationToken cancellation) throws DocumentException, InterruptedException {
         final Timer.Context timer = metricRegistry.timer(getClass().getName()).time();
         try {
             initFonts();
             OutputFormat output = this.outputFactory.create(config, jsonSpec);
 
-            PrintParams params = new PrintParams(config, configDir, jsonSpec, outputStream, headers);
+            PrintParams params = new PrintParams(config, configDir, jsonSpec, outputStream, headers, cancellation);
             return output.print(params);
         } finally {
             final long printTime = timer.stop();
@@ -219,6 +238,19 @@ public class MapPrinter {
         usages++;
     }
 
+    /**
+     * Like {@link #start()}, unless the printer is already stopped.
+     *
+     * @return false if stopped.
+     */
+    public synchronized boolean tryStart() {
+        if (config == null) {
+            return false;
+        }
+        usages++;
+        return true;
+    }
+
     public String getOutputFilename(String layout, String defaultName) {
         final String name = config.getOutputFilename(layout);
         return name == null ? defaultName : name;
@@ -227,6 +259,13 @@ public class MapPrinter {
     public Config getConfig() {
         return config;
     }
+
+    /**
+     * @return something changing each time the configuration file is modified, null if the configuration doesn't come from a file.
+     */
+    public String getConfigVersion() {
+        return configVersion;
+    }
     public OutputFormat getOutputFormat(PJsonObject jsonSpec) {
         return outputFactory.create(config, jsonSpec);
     }
@@ -19,9 +19,6 @@
 
 package org.mapfish.print;
 
-import com.codahale.metrics.MetricRegistry;
-import com.codahale.metrics.Timer;
-
 import com.lowagie.text.BadElementException;
 import com.lowagie.text.Chunk;
 import com.lowagie.text.DocumentException;
@@ -47,24 +44,19 @@ import org.apache.batik.bridge.GVTBuilder;
 import org.apache.batik.bridge.UserAgent;
 import org.apache.batik.bridge.UserAgentAdapter;
 import org.apache.batik.dom.svg.SVGDocumentFactory;
-import java.io.ByteArrayOutputStream;
 import org.apache.batik.gvt.GraphicsNode;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import org.apache.batik.util.XMLResourceDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.core5.http.io.entity.EntityUtils;
-import org.apache.hc.core5.http.Header;
-import org.apache.hc.core5.http.HttpEntity;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.protocol.HttpClientContext;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -78,7 +70,11 @@ import java.util.Map;
 import org.mapfish.print.config.layout.ScalebarBlock;
 import java.util.regex.Matcher;
 import org.mapfish.print.config.layout.TableConfig;
+import org.mapfish.print.http.FetchedImage;
+import org.mapfish.print.http.ImageFetcher;
 import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import org.mapfish.print.utils.ImageDownsampler;
 import org.mapfish.print.utils.PJsonObject;
 import org.w3c.dom.svg.SVGDocument;
 
@@ -104,22 +100,76 @@ public class PDFUtils {
      * bitmap content multiple times in order to reduce the file size.
      */
     public static Image getImage(RenderingContext context, URI uri, float w, float h, float scale) throws IOException, DocumentException {
+        return getImage(context, uri, w, h, scale, null, 0L, 0L);
+    }
+
+    /**
+     * Gets an iText image of a map tile, that can be stored in the disk tile cache
+     * under the given layer name.
+     *
+     * @param w the width of the tile, in pixels at the map's DPI
+     * @param h the height of the tile, in pixels at the map's DPI
+     */
+    public static Image getTileImage(RenderingContext context, URI uri, float w, float h, String diskCacheLayer)
+            throws IOException, DocumentException {
+        if (context.getConfig().isDownsampleImages()) {
+            return getImage(context, uri, w, h, 0f, diskCacheLayer, (long) Math.ceil(w), (long) Math.ceil(h));
+        }
+        return getImage(context, uri, w, h, 0f, diskCacheLayer, 0L, 0L);
+    }
+
+    /**
+     * Gets a map tile as a bitmap, to be composited with the other tiles of its layer.
+     *
+     * @return null if the tile could not be fetched or decoded (errors, empty responses, ...). It must then
+     *         be loaded with {@link #getTileImage}, that knows how to deal with that.
+     */
+    public static BufferedImage getTileBitmap(RenderingContext context, URI uri, String diskCacheLayer)
+            throws InterruptedIOException {
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+            return null;
+        }
+        try {
+            final FetchedImage fetched = ImageFetcher.fetch(context, uri, diskCacheLayer);
+            final int statusCode = fetched.getStatusCode();
+            final String contentType = fetched.getContentType();
+            if (statusCode < 200 || statusCode >= 300 || statusCode == 204 ||
+                    contentType == null || contentType.startsWith("text/")) {
+                return null;
+            }
+            return ImageIO.read(new ByteArrayInputStream(fetched.getData()));
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("Cannot read the tile " + uri + " as a bitmap: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param maxPixelW if not 0, the image is downsampled if it is much wider than that
+     * @param maxPixelH if not 0, the image is downsampled if it is much higher than that
+     */
+    private static Image getImage(RenderingContext context, URI uri, float w, float h, float scale, String diskCacheLayer,
+                                  long maxPixelW, long maxPixelH)
+            throws IOException, DocumentException {
         //Check the image is not already used in the PDF file.
         //
         //This part is not protected against multi-threads... worst case, a single image can
         //be twice in the PDF, if used more than one time. But since only one !map
         //block is dealed with at a time, this should not happen
         Map<URI, PdfTemplate> cache = context.getTemplateCache();
-        PdfTemplate template = cache.get(uri);
+        final URI cacheKey = getTemplateCacheKey(uri, maxPixelW, maxPixelH);
+        PdfTemplate template = cache.get(cacheKey);
         if (template == null) {
-            Image content = getImageDirect(context, uri);
+            Image content = loadImageFromUrl(context, uri, false, diskCacheLayer, maxPixelW, maxPixelH);
             content.setAbsolutePosition(0, 0);
             final PdfContentByte dc = context.getDirectContent();
             synchronized (context.getPdfLock()) {  //protect against parallel writing on the PDF file
                 template = dc.createTemplate(content.getPlainWidth(), content.getPlainHeight());
                 template.addImage(content);
             }
-            cache.put(uri, template);
+            cache.put(cacheKey, template);
         }
 
         //fix the size/aspect ratio of the image in function of what is specified by the user
@@ -188,14 +238,36 @@ public class PDFUtils {
         return result;
     }
 
+    /**
+     * The same image can be used downsampled to different sizes.
+     */
+    private static URI getTemplateCacheKey(URI uri, long maxPixelW, long maxPixelH) {
+        if (maxPixelW <= 0 || maxPixelH <= 0) {
+            return uri;
+        }
+        try {
+            return new URI(uri.getScheme(), uri.getSchemeSpecificPart(), maxPixelW + "x" + maxPixelH);
+        } catch (URISyntaxException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Gets an iText image. Avoids doing the query twice.
      */
     protected static Image getImageDirect(RenderingContext context, URI uri) throws IOException, DocumentException {
-            return loadImageFromUrl(context, uri, false);
+            return loadImageFromUrl(context, uri, false, null, 0L, 0L);
     }
 
-    private static Image loadImageFromUrl(final RenderingContext context, final URI uri, final boolean alwaysThrowExceptionOnError)
+    private static Image loadImageFromUrl(final RenderingContext context, final URI uri, final boolean alwaysThrowExceptionOnError,
+                                          final String diskCacheLayer)
+            throws
+            IOException, DocumentException {
+        return loadImageFromUrl(context, uri, alwaysThrowExceptionOnError, diskCacheLayer, 0L, 0L);
+    }
+
+    private static Image loadImageFromUrl(final RenderingContext context, final URI uri, final boolean alwaysThrowExceptionOnError,
+                                          final String diskCacheLayer, final long maxPixelW, final long maxPixelH)
             throws
             IOException, DocumentException {
         File uriAsFile = null;
@@ -205,7 +277,7 @@ public class PDFUtils {
             // ignore;
         }
         if (uriAsFile != null && uriAsFile.exists()) {
-            return Image.getInstance(uriAsFile.toURI().toURL());
+            return loadImageFromFile(uriAsFile, maxPixelW, maxPixelH);
         } else if (!uri.isAbsolute()) {
             //Assumption is that the file is on the local file system
             return Image.getInstance(uri.toString());
@@ -219,14 +291,14 @@ public class PDFUtils {
                 path = uri.toString().substring("file:".length()).replaceAll("/+", "/");
             }
             path = path.replace("/", File.separator);
-            return Image.getInstance(new File(path).toURI().toURL());
+            return loadImageFromFile(new File(path), maxPixelW, maxPixelH);
         } else if ("data".equalsIgnoreCase(uri.getScheme())) {
             String data = uri.toString().substring("data:".length());
             String base64 = data.split(",")[1];
             String meta = data.split(",")[0];
             // String format = meta.split(";")[0];
             byte[] image = Base64.decode(base64);
-            return Image.getInstance(image);
+            return createImage(image, maxPixelW, maxPixelH, uri);
         } else {
 
             final String contentType;
@@ -235,70 +307,11 @@ public class PDFUtils {
             byte[] data = null;
             try {
                 //read the whole image content in memory, then give that to iText
-                if ((uri.getScheme().equals("http") || uri.getScheme().equals("https"))
-                        && context.getConfig().localHostForwardIsFrom(uri.getHost())) {
-                    String scheme = uri.getScheme();
-                    final String host = uri.getHost();
-                    if (uri.getScheme().equals("https")
-                            && context.getConfig().localHostForwardIsHttps2http()) {
-                        scheme = "http";
-                    }
-                    URL url = new URL(scheme, "localhost", uri.getPort(),
-                            uri.getPath() + "?" + uri.getQuery());
-
-                    HttpURLConnection connexion = (HttpURLConnection) url.openConnection();
-                    connexion.setRequestProperty("Host", host);
-                    for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
-                        connexion.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-                    InputStream is = null;
-                    try {
-                        try {
-                            is = connexion.getInputStream();
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            byte[] buffer = new byte[1024];
-                            int length;
-                            while ((length = is.read(buffer)) != -1) {
-                                baos.write(buffer, 0, length);
-                            }
-                            baos.flush();
-                            data = baos.toByteArray();
-                        } catch (IOException e) {
-                            LOGGER.warn(e);
-                        }
-                        statusCode = connexion.getResponseCode();
-                        statusText = connexion.getResponseMessage();
-                        contentType = connexion.getContentType();
-                    } finally {
-                        if (is != null) {
-                            is.close();
-                        }
-                    }
-                } else {
-                    HttpGet request;
-                    MetricRegistry registry = context.getConfig().getMetricRegistry();
-                    final Timer.Context timer = registry.timer("http_" + uri.getAuthority()).time();
-                    try {
-                        request = new HttpGet(uri.toString());
-                        for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
-                            request.addHeader(entry.getKey(), entry.getValue());
-                        }
-                        if (LOGGER.isDebugEnabled())
-                            LOGGER.debug("loading image: " + uri);
-                        HttpClientContext clientContext = context.getConfig().getHttpClientContext(uri);
-                        try (CloseableHttpResponse response = context.getConfig().getHttpClient(uri).execute(request, clientContext)) {
-                            statusCode = response.getCode();
-                            statusText = response.getReasonPhrase();
-
-                            Header contentTypeHeader = response.getFirstHeader("Content-Type");
-                            contentType = contentTypeHeader != null ? contentTypeHeader.getValue() : "";
-                            HttpEntity entity = response.getEntity();
-                            data = entity != null ? EntityUtils.toByteArray(entity) : null;
-                        }
-                    } finally {
-                        timer.close();
-                    }
-                }
+                final FetchedImage fetched = ImageFetcher.fetch(context, uri, diskCacheLayer);
+                statusCode = fetched.getStatusCode();
+                statusText = fetched.getStatusText();
+                contentType = fetched.getContentType();
+                data = fetched.getData();
 
                 if (statusCode == 204) {
                     // returns a transparent image
@@ -346,7 +359,7 @@ public class PDFUtils {
                     return image;
                 } else {
                     if (LOGGER.isDebugEnabled()) LOGGER.debug("loaded image: " + uri);
-                    return Image.getInstance(data);
+                    return createImage(data, maxPixelW, maxPixelH, uri);
                 }
             } catch (IOException e) {
                 LOGGER.error("Server returned an error for " + uri + ": " + e.getMessage());
@@ -360,6 +373,32 @@ public class PDFUtils {
         }
     }
 
+    private static Image loadImageFromFile(File file, long maxPixelW, long maxPixelH) throws IOException, DocumentException {
+        if (maxPixelW > 0 && maxPixelH > 0) {
+            return createImage(Files.readAllBytes(file.toPath()), maxPixelW, maxPixelH, file.toURI());
+        }
+        return Image.getInstance(file.toURI().toURL());
+    }
+
+    /**
+     * Creates an iText image, downsampled if it is much bigger than the given size in pixels.
+     */
+    private static Image createImage(byte[] data, long maxPixelW, long maxPixelH, URI uri) throws IOException, DocumentException {
+        try {
+            final ImageDownsampler.Result downsampled = ImageDownsampler.downsample(data, maxPixelW, maxPixelH);
+            if (downsampled != null) {
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("downsampled image: " + uri);
+                final Image image = Image.getInstance(downsampled.getData());
+                //keep the size of the original, the layout depends on it
+                image.scaleAbsolute(downsampled.getOriginalWidth(), downsampled.getOriginalHeight());
+                return image;
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Cannot downsample " + uri + ": " + e);
+        }
+        return Image.getInstance(data);
+    }
+
     /**
      * In the case url fails to load an image this method should be called to handle the issue.  If the configuration
      * has a default image for broken image urls then it will be returned otherwise an error will be thrown.
@@ -369,6 +408,7 @@ public class PDFUtils {
      */
     public static Image handleImageLoadError(final RenderingContext context, final String errorMessage) throws IOException,
             DocumentException {
+        context.markImageFailed();
         String placeholderString = context.getConfig().getBrokenUrlPlaceholder();
         if (placeholderString.equalsIgnoreCase(Constants.ImagePlaceHolderConstants.THROW)) {
             throw new IOException(errorMessage);
@@ -379,9 +419,9 @@ public class PDFUtils {
                 try {
                     if (placeholderString.equalsIgnoreCase(Constants.ImagePlaceHolderConstants.DEFAULT)) {
                         URL url = PDFUtils.class.getClassLoader().getResource(Constants.ImagePlaceHolderConstants.DEFAULT_ERROR_IMAGE);
-                        image = loadImageFromUrl(context, url.toURI(), true);
+                        image = loadImageFromUrl(context, url.toURI(), true, null);
                     } else {
-                        image = loadImageFromUrl(context, new URI(placeholderString), true);
+                        image = loadImageFromUrl(context, new URI(placeholderString), true, null);
                     }
                 } catch (URISyntaxException e) {
                     throw new RuntimeException(e);
@@ -692,7 +732,15 @@ public class PDFUtils {
         return createImageChunk(context, maxWidth, maxHeight, 0f, url, rotation);
     }
     public static Chunk createImageChunk(RenderingContext context, double maxWidth, double maxHeight, float scale, URI url, float rotation) throws DocumentException {
-        final Image image = createImage(context, maxWidth, maxHeight, scale, url, rotation);
+        long maxPixelW = 0L;
+        long maxPixelH = 0L;
+        //the image is fitted in the box, no need to have more pixels than the box at the print's DPI
+        final Integer dpi = context.getConfig().isDownsampleImages() ? context.getGlobalParams().optInt("dpi") : null;
+        if (dpi != null && scale == 0f && maxWidth > 0 && maxHeight > 0) {
+            maxPixelW = (long) Math.ceil(maxWidth * dpi / 72.0);
+            maxPixelH = (long) Math.ceil(maxHeight * dpi / 72.0);
+        }
+        final Image image = createImage(context, maxWidth, maxHeight, scale, url, rotation, maxPixelW, maxPixelH);
         return new Chunk(image, 0f, 0f, true);
     }
 
@@ -700,9 +748,14 @@ public class PDFUtils {
         return createImage(context, maxWidth, maxHeight, 0f, url, rotation);
     }
     public static Image createImage(RenderingContext context, double maxWidth, double maxHeight, float scale, URI url, float rotation) throws DocumentException {
+        return createImage(context, maxWidth, maxHeight, scale, url, rotation, 0L, 0L);
+    }
+
+    private static Image createImage(RenderingContext context, double maxWidth, double maxHeight, float scale, URI url, float rotation,
+                                     long maxPixelW, long maxPixelH) throws DocumentException {
         final Image image;
         try {
-            image = getImage(context, url, (float) maxWidth, (float) maxHeight, scale);
+            image = getImage(context, url, (float) maxWidth, (float) maxHeight, scale, null, maxPixelW, maxPixelH);
         } catch (IOException e) {
             throw new InvalidValueException("url", url.toString(), e);
         }
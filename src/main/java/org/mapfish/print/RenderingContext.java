@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.mapfish.print.config.Config;
 import org.mapfish.print.config.layout.ExtraPage;
@@ -51,6 +52,7 @@ public class RenderingContext {
     private final PDFCustomBlocks customBlocks;
     private final Layout layout;
     private final Map<String, String> headers;
+    private final CancellationToken cancellation;
     
     /**
      * Store the set of mergeable parameters, indexed by context
@@ -91,8 +93,23 @@ public class RenderingContext {
      */
     private final Object pdfLock=new Object();
 
+    /**
+     * Set when something could not be printed properly (an image replaced by the broken URL
+     * placeholder, an error page, ...).
+     */
+    private volatile boolean degraded = false;
+
     public RenderingContext(Document document, PdfWriter writer, Config config,
                             PJsonObject globalParams, String configDir, Layout layout, Map<String, String> headers) {
+        this(document, writer, config, globalParams, configDir, layout, headers, null);
+    }
+
+    /**
+     * @param cancellation tells if the print is still wanted. If null, one with the print timeout of the config is created.
+     */
+    public RenderingContext(Document document, PdfWriter writer, Config config,
+                            PJsonObject globalParams, String configDir, Layout layout, Map<String, String> headers,
+                            CancellationToken cancellation) {
         this.document = document;
         this.writer = writer;
         this.config = config;
@@ -106,6 +123,8 @@ public class RenderingContext {
         this.configDir = configDir;
         this.layout = layout;
         this.headers = headers;
+        this.cancellation = cancellation != null ? cancellation :
+                new CancellationToken(TimeUnit.MINUTES.toMillis(config.getPrintTimeoutMinutes()));
         customBlocks = new PDFCustomBlocks(writer, this);
     }
 
@@ -160,6 +179,13 @@ public class RenderingContext {
         return config;
     }
 
+    /**
+     * @return tells if the print is still wanted.
+     */
+    public CancellationToken getCancellation() {
+        return cancellation;
+    }
+
     public PdfWriter getWriter() {
         return writer;
     }
@@ -189,9 +215,24 @@ public class RenderingContext {
     }
 
     public void addError(Exception e) {
+        degraded = true;
         customBlocks.addError(e);
     }
 
+    /**
+     * Tell an image could not be loaded and has been replaced by a placeholder.
+     */
+    public void markImageFailed() {
+        degraded = true;
+    }
+
+    /**
+     * @return true if an image failed to load or an error was added to the printout.
+     */
+    public boolean isDegraded() {
+        return degraded;
+    }
+
     public float getStyleFactor() {
         return styleFactor;
     }
@@ -1,11 +1,38 @@
 package org.mapfish.print;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOReactorConfig;
 import org.apache.hc.core5.util.Timeout;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
 import org.mapfish.print.map.MapTileTask;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
+import org.pvalsecc.concurrent.LockFreeOrderedResultsExecutor;
+import org.pvalsecc.concurrent.OrderedExecutor;
 import org.pvalsecc.concurrent.OrderedResultsExecutor;
+import org.pvalsecc.concurrent.ThreadPerTaskOrderedResultsExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
@@ -16,19 +43,56 @@ import jakarta.annotation.PreDestroy;
  * @author Jesse on 5/13/2014.
  */
 public class ThreadResources {
+    private static final Logger LOGGER = LogManager.getLogger(ThreadResources.class);
 
     /**
      * The bunch of threads that will be used to do the // fetching of the map
      * chunks
      */
-    private OrderedResultsExecutor<MapTileTask> mapRenderingExecutor = null;
+    private OrderedExecutor<MapTileTask> mapRenderingExecutor = null;
+
+    /**
+     * Limits the requests done to the map servers when the map chunks are fetched
+     * with virtual threads or when the limits are adaptive. Null otherwise.
+     */
+    private HostConcurrencyLimiter hostConcurrencyLimiter = null;
+
+    /**
+     * The threads used to run the prints submitted through /create.json. Null if those
+     * prints are done in the request's thread.
+     */
+    private ExecutorService printJobExecutor = null;
 
     private PoolingHttpClientConnectionManager connectionManager;
 
+    /**
+     * The client used to fetch all the map data, shared by all the configs. The request specific
+     * settings (timeouts, proxy, credentials) are given with the context of each request. It
+     * doesn't keep the cookies: they would be sent with the requests of the other prints.
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * The non-blocking client used to fetch the map chunks. Null if they are fetched with the
+     * blocking client.
+     */
+    private CloseableHttpAsyncClient asyncHttpClient = null;
+
+    @Autowired(required = false)
+    private MetricRegistry metricRegistry;
+
     private int perHostParallelFetches = 10;
+    private boolean adaptivePerHostParallelFetches = false;
+    private int maxPerHostParallelFetches = 100;
     private int globalParallelFetches = 30;
     private int connectionTimeout = 30000;
     private int socketTimeout = 30000;
+    private int printJobThreads = 0;
+    private int printJobQueueSize = 100;
+    private boolean lockFreeMapRendering = false;
+    private boolean virtualThreadMapRendering = false;
+    private boolean asyncHttp = false;
+    private int asyncIoThreads = Runtime.getRuntime().availableProcessors();
 
     @PostConstruct
     public void init() {
@@ -38,20 +102,108 @@ public class ThreadResources {
                 .build();
         this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
                 .setDefaultConnectionConfig(connectionConfig)
-                .setMaxConnPerRoute(perHostParallelFetches)
+                .setMaxConnPerRoute(getMaxConnPerRoute())
                 .setMaxConnTotal(globalParallelFetches)
                 .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setConnectionManagerShared(true)
+                .disableCookieManagement()
+                .build();
+
+        // httpclient is a bit pesky about loading everything in memory...
+        // disabling the warnings.
+        Configurator.setLevel(LogManager.getLogger(HttpUriRequestBase.class), Level.ERROR);
 
-        mapRenderingExecutor = new OrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader");
+        if (asyncHttp) {
+            asyncHttpClient = createAsyncHttpClient(connectionConfig);
+        }
+
+        final ThreadFactory virtualThreadFactory = virtualThreadMapRendering ? createVirtualThreadFactory("tilesReader") : null;
+        if (adaptivePerHostParallelFetches) {
+            hostConcurrencyLimiter = new HostConcurrencyLimiter(perHostParallelFetches, 1, maxPerHostParallelFetches,
+                    globalParallelFetches, metricRegistry);
+        } else if (virtualThreadFactory != null) {
+            hostConcurrencyLimiter = new HostConcurrencyLimiter(perHostParallelFetches, globalParallelFetches);
+        }
+        if (virtualThreadFactory != null) {
+            mapRenderingExecutor = new ThreadPerTaskOrderedResultsExecutor<MapTileTask>(virtualThreadFactory, "tilesReader");
+        } else if (lockFreeMapRendering) {
+            mapRenderingExecutor = new LockFreeOrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader");
+        } else {
+            mapRenderingExecutor = new OrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader");
+        }
         mapRenderingExecutor.start();
+
+        if (printJobThreads > 0) {
+            printJobExecutor = new ThreadPoolExecutor(printJobThreads, printJobThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(printJobQueueSize),
+                    new ThreadFactoryBuilder().setNameFormat("printJob%d").setDaemon(true).build());
+        }
+    }
+
+    /**
+     * With adaptive limits, the connection pool must allow as many connections as the highest limit
+     * of a host.
+     */
+    private int getMaxConnPerRoute() {
+        return adaptivePerHostParallelFetches ? Math.max(perHostParallelFetches, maxPerHostParallelFetches) : perHostParallelFetches;
+    }
+
+    /**
+     * The requests of all the prints are multiplexed over a few I/O threads. HTTP/2 is negotiated
+     * with the HTTPS servers supporting it, allowing to send all the requests to a server over
+     * a single connection. Like the blocking client, it doesn't keep the cookies.
+     */
+    private CloseableHttpAsyncClient createAsyncHttpClient(ConnectionConfig connectionConfig) {
+        final CloseableHttpAsyncClient result = HttpAsyncClients.custom()
+                .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                        .setDefaultConnectionConfig(connectionConfig)
+                        .setDefaultTlsConfig(TlsConfig.custom().setVersionPolicy(HttpVersionPolicy.NEGOTIATE).build())
+                        .setMaxConnPerRoute(getMaxConnPerRoute())
+                        .setMaxConnTotal(globalParallelFetches)
+                        .build())
+                .setIOReactorConfig(IOReactorConfig.custom()
+                        .setIoThreadCount(asyncIoThreads)
+                        .setSoTimeout(Timeout.ofMilliseconds(socketTimeout))
+                        .build())
+                .setThreadFactory(new ThreadFactoryBuilder().setNameFormat("httpIO%d").setDaemon(true).build())
+                .disableCookieManagement()
+                .build();
+        result.start();
+        return result;
+    }
+
+    /**
+     * Virtual threads are available only with Java 21 or later, the code is compiled for Java 17.
+     *
+     * @return null if not available
+     */
+    private static ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            LOGGER.warn("Virtual threads are not available with this JVM (" + e + "), using platform threads for fetching the map chunks");
+            return null;
+        }
     }
 
     @PreDestroy
     public void destroy() {
         try {
+            this.httpClient.close(CloseMode.GRACEFUL);
             this.connectionManager.close();
+            if (this.asyncHttpClient != null) {
+                this.asyncHttpClient.close(CloseMode.GRACEFUL);
+            }
         } finally {
             this.mapRenderingExecutor.stop();
+            if (this.printJobExecutor != null) {
+                this.printJobExecutor.shutdownNow();
+            }
         }
     }
 
@@ -59,6 +211,25 @@ public class ThreadResources {
         this.perHostParallelFetches = perHostParallelFetches;
     }
 
+    /**
+     * If true, the limit of parallel fetches of each host is adapted to its latency and errors,
+     * starting from perHostParallelFetches, between 1 and maxPerHostParallelFetches.
+     */
+    public void setAdaptivePerHostParallelFetches(boolean adaptivePerHostParallelFetches) {
+        this.adaptivePerHostParallelFetches = adaptivePerHostParallelFetches;
+    }
+
+    /**
+     * The highest limit of parallel fetches of a host, when the limits are adaptive.
+     */
+    public void setMaxPerHostParallelFetches(int maxPerHostParallelFetches) {
+        this.maxPerHostParallelFetches = maxPerHostParallelFetches;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
     public void setGlobalParallelFetches(int globalParallelFetches) {
         this.globalParallelFetches = globalParallelFetches;
     }
@@ -71,11 +242,84 @@ public class ThreadResources {
         this.socketTimeout = socketTimeout;
     }
 
+    /**
+     * Number of prints submitted through /create.json that can run in parallel. If 0 (the default),
+     * /create.json does the print in the request's thread.
+     */
+    public void setPrintJobThreads(int printJobThreads) {
+        this.printJobThreads = printJobThreads;
+    }
+
+    /**
+     * Number of prints submitted through /create.json that can wait for a free thread. The
+     * extra ones are refused.
+     */
+    public void setPrintJobQueueSize(int printJobQueueSize) {
+        this.printJobQueueSize = printJobQueueSize;
+    }
+
+    /**
+     * If true, use a {@link LockFreeOrderedResultsExecutor} for fetching the map chunks. Worth it
+     * with a lot of globalParallelFetches.
+     */
+    public void setLockFreeMapRendering(boolean lockFreeMapRendering) {
+        this.lockFreeMapRendering = lockFreeMapRendering;
+    }
+
+    /**
+     * If true and if the JVM supports them (Java 21 or later), fetch each map chunk in its own virtual
+     * thread. The requests are then limited by perHostParallelFetches and globalParallelFetches instead
+     * of the number of threads.
+     */
+    public void setVirtualThreadMapRendering(boolean virtualThreadMapRendering) {
+        this.virtualThreadMapRendering = virtualThreadMapRendering;
+    }
+
+    /**
+     * If true, fetch the map chunks with the non-blocking HTTP client. The I/O of all the requests is then
+     * done by asyncIoThreads threads and HTTP/2 is used with the servers supporting it.
+     */
+    public void setAsyncHttp(boolean asyncHttp) {
+        this.asyncHttp = asyncHttp;
+    }
+
+    /**
+     * Number of I/O threads of the non-blocking HTTP client. Defaults to the number of CPUs.
+     */
+    public void setAsyncIoThreads(int asyncIoThreads) {
+        this.asyncIoThreads = asyncIoThreads;
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
     public PoolingHttpClientConnectionManager getConnectionManager() {
         return connectionManager;
     }
 
-    public OrderedResultsExecutor<MapTileTask> getMapRenderingExecutor() {
+    /**
+     * @return null if the map chunks are fetched with the blocking HTTP client.
+     */
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+        return asyncHttpClient;
+    }
+
+    public OrderedExecutor<MapTileTask> getMapRenderingExecutor() {
         return mapRenderingExecutor;
     }
+
+    /**
+     * @return null if the map chunks are not fetched with virtual threads and the limits are not adaptive.
+     */
+    public HostConcurrencyLimiter getHostConcurrencyLimiter() {
+        return hostConcurrencyLimiter;
+    }
+
+    /**
+     * @return null if the prints submitted through /create.json must be done synchronously.
+     */
+    public ExecutorService getPrintJobExecutor() {
+        return printJobExecutor;
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.cache;
+
+import org.mapfish.print.http.FetchedImage;
+
+/**
+ * An image in the cache, with its expiration time.
+ */
+public final class CachedImage {
+    private final FetchedImage image;
+    private final long expirationTime;
+
+    public CachedImage(FetchedImage image, long expirationTime) {
+        this.image = image;
+        this.expirationTime = expirationTime;
+    }
+
+    public FetchedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return the time (in ms since the epoch) after which the image must be revalidated.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    public boolean isFresh() {
+        return System.currentTimeMillis() < expirationTime;
+    }
+
+    /**
+     * @return true if the image can be revalidated with a conditional request.
+     */
+    public boolean hasValidator() {
+        return image.getEtag() != null || image.getLastModified() != null;
+    }
+
+    /**
+     * @return the approximative memory used by the image.
+     */
+    public int getSize() {
+        return image.getData().length;
+    }
+}
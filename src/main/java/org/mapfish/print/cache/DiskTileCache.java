@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.cache;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.http.FetchedImage;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cache on disk of the tiles of the WMTS, TMS, XYZ and OSM layers. The tiles survive
+ * a restart of the server.
+ * <p/>
+ * Each tile is stored in its own file (directory/layerHash/xx/hash.tile), containing the
+ * content type and the bytes of the tile. The layer names come from the print specs, so
+ * the directories are named after their hash to never end up outside of the cache.
+ * A tile is used until its age reaches the TTL of its layer. A background sweeper
+ * deletes the expired tiles and, when the cache is bigger than maxBytes, the oldest ones.
+ */
+public class DiskTileCache {
+    private static final Logger LOGGER = LogManager.getLogger(DiskTileCache.class);
+    private static final String SUFFIX = ".tile";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private boolean enabled = false;
+    private File directory = new File(System.getProperty("java.io.tmpdir"), "mapfish-print-tiles");
+    private long maxBytes = 1024L * 1024 * 1024;
+    private int defaultTtlSeconds = 24 * 3600;
+    private Map<String, Integer> layerTtlSeconds = Collections.emptyMap();
+    private int sweepIntervalSeconds = 300;
+    private List<String> keyHeaders = Arrays.asList("Authorization", "Cookie");
+
+    /**
+     * Size of the cache. Computed by each sweep, incremented by the writes in between.
+     */
+    private final AtomicLong currentBytes = new AtomicLong(0L);
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+    private ScheduledExecutorService sweeper;
+
+    private Meter hits;
+    private Meter misses;
+    private Meter writes;
+    private Meter evictions;
+
+    @PostConstruct
+    public void init() {
+        hits = metricRegistry.meter(MetricRegistry.name(getClass(), "hits"));
+        misses = metricRegistry.meter(MetricRegistry.name(getClass(), "misses"));
+        writes = metricRegistry.meter(MetricRegistry.name(getClass(), "writes"));
+        evictions = metricRegistry.meter(MetricRegistry.name(getClass(), "evictions"));
+        final String bytesName = MetricRegistry.name(getClass(), "bytes");
+        metricRegistry.remove(bytesName);
+        metricRegistry.register(bytesName, new Gauge<Long>() {
+            public Long getValue() {
+                return currentBytes.get();
+            }
+        });
+
+        if (enabled) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Cannot create the tile cache directory: " + directory);
+            }
+            sweeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("diskTileCacheSweeper").setDaemon(true).build());
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            }, 0, sweepIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /**
+     * @return null if the tile is not in the cache or is expired.
+     */
+    public FetchedImage get(String layer, URI uri, Map<String, String> headers) {
+        final File file = getFile(layer, uri, headers);
+        final long lastModified = file.lastModified();
+        if (lastModified == 0L || System.currentTimeMillis() - lastModified > getTtlMillis(layer)) {
+            misses.mark();
+            return null;
+        }
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            final byte[] contentType = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(contentType);
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            hits.mark();
+            return new FetchedImage(200, "OK", new String(contentType, StandardCharsets.UTF_8), data, null, null, null);
+        } catch (NoSuchFileException e) {
+            //deleted by the sweeper in the mean time
+        } catch (Exception e) {
+            LOGGER.warn("Cannot read the cached tile " + file + ": " + e);
+        }
+        misses.mark();
+        return null;
+    }
+
+    /**
+     * Store the given tile, if it can be cached.
+     */
+    public void put(String layer, URI uri, Map<String, String> headers, FetchedImage image) {
+        if (!image.isImage() || getTtlMillis(layer) <= 0) {
+            return;
+        }
+        final File file = getFile(layer, uri, headers);
+        final byte[] contentType = image.getContentType().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer buffer = ByteBuffer.allocate(2 + contentType.length + image.getData().length);
+        buffer.putShort((short) contentType.length).put(contentType).put(image.getData()).flip();
+        try {
+            final File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            //written in a temporary file first, a concurrent reader never sees a partial tile
+            final Path tmp = Files.createTempFile(dir.toPath(), file.getName(), TMP_SUFFIX);
+            try {
+                final FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } finally {
+                    channel.close();
+                }
+                Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            writes.mark();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot write the cached tile " + file + ": " + e);
+            return;
+        }
+
+        if (currentBytes.addAndGet(buffer.limit()) > maxBytes && sweepScheduled.compareAndSet(false, true)) {
+            sweeper.execute(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            });
+        }
+    }
+
+    File getFile(String layer, URI uri, Map<String, String> headers) {
+        final String hash = hash(MemoryImageCache.createKey(uri, headers, keyHeaders));
+        final File layerDir = new File(directory, hash(layer));
+        return new File(new File(layerDir, hash.substring(0, 2)), hash + SUFFIX);
+    }
+
+    private long getTtlMillis(String layer) {
+        final Integer ttl = layerTtlSeconds.get(layer);
+        return (ttl != null ? ttl : defaultTtlSeconds) * 1000L;
+    }
+
+    /**
+     * Delete the expired tiles and, if the cache is too big, the oldest ones until it uses
+     * less than 90% of maxBytes.
+     */
+    void sweep() {
+        sweepScheduled.set(false);
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> layerTtlMillis = new HashMap<String, Long>();
+        for (String layer : layerTtlSeconds.keySet()) {
+            layerTtlMillis.put(hash(layer), getTtlMillis(layer));
+        }
+        final List<CachedFile> files = new ArrayList<CachedFile>();
+        final long[] total = {0L};
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    final String name = file.getFileName().toString();
+                    final long modified = attrs.lastModifiedTime().toMillis();
+                    if (name.endsWith(SUFFIX)) {
+                        final Long layerTtl = layerTtlMillis.get(file.getParent().getParent().getFileName().toString());
+                        if (now - modified > (layerTtl != null ? layerTtl : defaultTtlSeconds * 1000L)) {
+                            delete(file);
+                        } else {
+                            files.add(new CachedFile(file, attrs.size(), modified));
+                            total[0] += attrs.size();
+                        }
+                    } else if (name.endsWith(TMP_SUFFIX) && now - modified > TimeUnit.HOURS.toMillis(1)) {
+                        //left by a crash
+                        Files.deleteIfExists(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Error while sweeping the tile cache " + directory, e);
+        }
+
+        if (total[0] > maxBytes) {
+            Collections.sort(files, new Comparator<CachedFile>() {
+                public int compare(CachedFile o1, CachedFile o2) {
+                    return Long.compare(o1.modified, o2.modified);
+                }
+            });
+            final long target = maxBytes / 10 * 9;
+            for (CachedFile file : files) {
+                if (total[0] <= target) {
+                    break;
+                }
+                if (delete(file.path)) {
+                    total[0] -= file.size;
+                }
+            }
+        }
+        currentBytes.set(total[0]);
+    }
+
+    private boolean delete(Path file) {
+        try {
+            if (Files.deleteIfExists(file)) {
+                evictions.mark();
+                return true;
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot delete the cached tile " + file + ": " + e);
+        }
+        return false;
+    }
+
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class CachedFile {
+        private final Path path;
+        private final long size;
+        private final long modified;
+
+        private CachedFile(Path path, long size, long modified) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Where to store the tiles.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Maximum size of the cache, the oldest tiles are deleted when reached.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Maximum age of the tiles of the layers not listed in layerTtlSeconds.
+     */
+    public void setDefaultTtlSeconds(int defaultTtlSeconds) {
+        this.defaultTtlSeconds = defaultTtlSeconds;
+    }
+
+    /**
+     * Maximum age of the tiles, by layer name. 0 to not cache a layer.
+     */
+    public void setLayerTtlSeconds(Map<String, Integer> layerTtlSeconds) {
+        this.layerTtlSeconds = layerTtlSeconds;
+    }
+
+    /**
+     * Time between two sweeps of the cache.
+     */
+    public void setSweepIntervalSeconds(int sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    /**
+     * The request headers that change the tiles returned by the servers (the other ones are ignored).
+     */
+    public void setKeyHeaders(List<String> keyHeaders) {
+        this.keyHeaders = keyHeaders;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.cache;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.mapfish.print.http.FetchedImage;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Cache, shared by all the prints, of the images fetched from the map servers. Avoids fetching
+ * again and again the same base map tiles.
+ * <p/>
+ * The images are kept in memory, the least recently used ones are evicted when the cache
+ * is full. Only the successful image responses are cached, for ttlSeconds at most. If
+ * honorCacheControl is true, the Cache-Control header of the responses can shorten that or
+ * forbid caching. If revalidate is true, an expired image having an ETag or a Last-Modified
+ * header is kept and revalidated with a conditional request.
+ */
+public class MemoryImageCache {
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private boolean enabled = false;
+    private long maxBytes = 64L * 1024 * 1024;
+    private int maxEntryBytes = 1024 * 1024;
+    private int ttlSeconds = 300;
+    private boolean honorCacheControl = true;
+    private boolean revalidate = true;
+    private List<String> keyHeaders = Arrays.asList("Authorization", "Cookie");
+
+    /**
+     * The cached images, in access order. Protected by this.
+     */
+    private final LinkedHashMap<String, CachedImage> entries = new LinkedHashMap<String, CachedImage>(16, 0.75f, true);
+
+    /**
+     * Sum of the sizes of the cached images. Protected by this.
+     */
+    private long currentBytes = 0L;
+
+    private Meter hits;
+    private Meter misses;
+    private Meter evictions;
+    private Meter revalidations;
+
+    @PostConstruct
+    public void init() {
+        hits = metricRegistry.meter(MetricRegistry.name(getClass(), "hits"));
+        misses = metricRegistry.meter(MetricRegistry.name(getClass(), "misses"));
+        evictions = metricRegistry.meter(MetricRegistry.name(getClass(), "evictions"));
+        revalidations = metricRegistry.meter(MetricRegistry.name(getClass(), "revalidations"));
+        registerGauge("bytes", new Gauge<Long>() {
+            public Long getValue() {
+                synchronized (MemoryImageCache.this) {
+                    return currentBytes;
+                }
+            }
+        });
+        registerGauge("entries", new Gauge<Long>() {
+            public Long getValue() {
+                synchronized (MemoryImageCache.this) {
+                    return (long) entries.size();
+                }
+            }
+        });
+    }
+
+    private void registerGauge(String name, Gauge<Long> gauge) {
+        final String fullName = MetricRegistry.name(getClass(), name);
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, gauge);
+    }
+
+    /**
+     * Compute the key of the image at the given URI, fetched with the given headers. Only the
+     * headers listed in keyHeaders are taken into account.
+     */
+    public String createKey(URI uri, Map<String, String> headers) {
+        return createKey(uri, headers, keyHeaders);
+    }
+
+    /**
+     * Compute the key of the image at the given URI, fetched with the given headers. Only the
+     * given headers are taken into account.
+     */
+    public static String createKey(URI uri, Map<String, String> headers, List<String> keyHeaders) {
+        final StringBuilder result = new StringBuilder(normalize(uri));
+        if (headers != null) {
+            for (String keyHeader : keyHeaders) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    if (header.getKey().equalsIgnoreCase(keyHeader)) {
+                        result.append('\n').append(keyHeader.toLowerCase(Locale.ROOT)).append(':').append(header.getValue());
+                    }
+                }
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Lower case scheme and host, no default port, sorted query parameters and no fragment.
+     */
+    static String normalize(URI uri) {
+        final String scheme = uri.getScheme() != null ? uri.getScheme().toLowerCase(Locale.ROOT) : "";
+        final StringBuilder result = new StringBuilder(scheme).append("://");
+        if (uri.getRawUserInfo() != null) {
+            result.append(uri.getRawUserInfo()).append('@');
+        }
+        if (uri.getHost() != null) {
+            result.append(uri.getHost().toLowerCase(Locale.ROOT));
+        }
+        final int port = uri.getPort();
+        if (port != -1 && !(port == 80 && scheme.equals("http")) && !(port == 443 && scheme.equals("https"))) {
+            result.append(':').append(port);
+        }
+        final String path = uri.getRawPath();
+        result.append(path == null || path.isEmpty() ? "/" : path);
+        final String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            final String[] params = query.split("&");
+            Arrays.sort(params);
+            result.append('?');
+            for (int i = 0; i < params.length; i++) {
+                if (i > 0) {
+                    result.append('&');
+                }
+                result.append(params[i]);
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return null if not in the cache. The result may not be fresh, in this case it must be revalidated.
+     */
+    public synchronized CachedImage get(String key) {
+        final CachedImage result = entries.get(key);
+        if (result != null) {
+            if (result.isFresh()) {
+                hits.mark();
+                return result;
+            }
+            if (revalidate && result.hasValidator()) {
+                misses.mark();
+                return result;
+            }
+            remove(key);
+        }
+        misses.mark();
+        return null;
+    }
+
+    /**
+     * Add the given image to the cache, if it can be cached.
+     */
+    public void put(String key, FetchedImage image) {
+        if (!image.isImage() || image.getData().length > maxEntryBytes) {
+            return;
+        }
+        final long ttl = getTimeToLive(image.getCacheControl());
+        final CachedImage cachedImage = new CachedImage(image, System.currentTimeMillis() + ttl);
+        if (ttl < 0 || (ttl == 0 && !(revalidate && cachedImage.hasValidator()))) {
+            return;
+        }
+        add(key, cachedImage);
+    }
+
+    /**
+     * Update the expiration time of an image that was not modified on the server.
+     *
+     * @param notModified the 304 response of the server.
+     */
+    public CachedImage revalidated(String key, CachedImage stale, FetchedImage notModified) {
+        revalidations.mark();
+        final String cacheControl = notModified.getCacheControl() != null ? notModified.getCacheControl() :
+                stale.getImage().getCacheControl();
+        final CachedImage result = new CachedImage(stale.getImage(), System.currentTimeMillis() + Math.max(0, getTimeToLive(cacheControl)));
+        add(key, result);
+        return result;
+    }
+
+    private synchronized void add(String key, CachedImage image) {
+        remove(key);
+        entries.put(key, image);
+        currentBytes += image.getSize();
+        final Iterator<CachedImage> iterator = entries.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            final CachedImage eldest = iterator.next();
+            iterator.remove();
+            currentBytes -= eldest.getSize();
+            evictions.mark();
+        }
+    }
+
+    private void remove(String key) {
+        final CachedImage previous = entries.remove(key);
+        if (previous != null) {
+            currentBytes -= previous.getSize();
+        }
+    }
+
+    /**
+     * @return the time to live in ms, -1 if the image must not be cached.
+     */
+    long getTimeToLive(String cacheControl) {
+        final long maxTtl = ttlSeconds * 1000L;
+        if (!honorCacheControl || cacheControl == null) {
+            return maxTtl;
+        }
+        long result = maxTtl;
+        boolean sharedMaxAge = false;
+        for (String directive : cacheControl.toLowerCase(Locale.ROOT).split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store")) {
+                return -1;
+            } else if (directive.equals("no-cache")) {
+                result = 0;
+                sharedMaxAge = true;
+            } else if (directive.startsWith("s-maxage=") && !sharedMaxAge) {
+                result = Math.min(maxTtl, parseSeconds(directive.substring("s-maxage=".length()), maxTtl));
+                sharedMaxAge = true;
+            } else if (directive.startsWith("max-age=") && !sharedMaxAge) {
+                result = Math.min(maxTtl, parseSeconds(directive.substring("max-age=".length()), maxTtl));
+            }
+        }
+        return result;
+    }
+
+    private static long parseSeconds(String value, long defaultValue) {
+        try {
+            return Math.max(0L, Long.parseLong(value.trim()) * 1000L);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Maximum memory used by the cached images.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The images bigger than that are not cached.
+     */
+    public void setMaxEntryBytes(int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Maximum time an image is used without asking the server.
+     */
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * If true, the no-store, no-cache, max-age and s-maxage directives of the Cache-Control header are taken into account.
+     */
+    public void setHonorCacheControl(boolean honorCacheControl) {
+        this.honorCacheControl = honorCacheControl;
+    }
+
+    /**
+     * If true, the expired images having an ETag or a Last-Modified header are revalidated with a conditional request.
+     */
+    public void setRevalidate(boolean revalidate) {
+        this.revalidate = revalidate;
+    }
+
+    /**
+     * The request headers that change the image returned by the servers (the other ones are ignored).
+     */
+    public void setKeyHeaders(List<String> keyHeaders) {
+        this.keyHeaders = keyHeaders;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+}
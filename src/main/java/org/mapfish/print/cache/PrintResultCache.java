@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.cache;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mapfish.print.utils.PJsonObject;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cache on disk of the printouts, for the clients printing the same spec again and again
+ * (dashboards, scheduled reports, ...).
+ * <p/>
+ * The key is a hash of the spec with its keys sorted (so the order of the properties doesn't
+ * matter), of the request headers changing the images returned by the servers and of the
+ * version of the configuration. A spec having a layer with "cacheable: false" or with one of
+ * the uncacheableParams in its customParams (TIME by default) is not cached.
+ * <p/>
+ * A printout is used until its age reaches ttlSeconds. A background sweeper deletes the
+ * expired printouts and, when the cache is bigger than maxBytes, the oldest ones.
+ */
+public class PrintResultCache {
+    private static final Logger LOGGER = LogManager.getLogger(PrintResultCache.class);
+    private static final String SUFFIX = ".printout";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private boolean enabled = false;
+    private File directory = new File(System.getProperty("java.io.tmpdir"), "mapfish-print-results");
+    private long maxBytes = 1024L * 1024 * 1024;
+    private int ttlSeconds = 3600;
+    private int sweepIntervalSeconds = 300;
+    private List<String> keyHeaders = Arrays.asList("Authorization", "Cookie");
+    private List<String> uncacheableParams = Collections.singletonList("TIME");
+
+    /**
+     * Size of the cache. Computed by each sweep, incremented by the writes in between.
+     */
+    private final AtomicLong currentBytes = new AtomicLong(0L);
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+    private ScheduledExecutorService sweeper;
+
+    private Meter hits;
+    private Meter misses;
+    private Meter writes;
+    private Meter evictions;
+
+    @PostConstruct
+    public void init() {
+        hits = metricRegistry.meter(MetricRegistry.name(getClass(), "hits"));
+        misses = metricRegistry.meter(MetricRegistry.name(getClass(), "misses"));
+        writes = metricRegistry.meter(MetricRegistry.name(getClass(), "writes"));
+        evictions = metricRegistry.meter(MetricRegistry.name(getClass(), "evictions"));
+        final String bytesName = MetricRegistry.name(getClass(), "bytes");
+        metricRegistry.remove(bytesName);
+        metricRegistry.register(bytesName, new Gauge<Long>() {
+            public Long getValue() {
+                return currentBytes.get();
+            }
+        });
+
+        if (enabled) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Cannot create the print result cache directory: " + directory);
+            }
+            sweeper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("printResultCacheSweeper").setDaemon(true).build());
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            }, 0, sweepIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    /**
+     * @param configVersion identifies the configuration the spec is printed with, null if unknown.
+     * @return the key of the printout, null if it must not be cached.
+     */
+    public String createKey(PJsonObject spec, Map<String, String> headers, String configVersion) {
+        if (configVersion == null || !isCacheable(spec.getInternalObj())) {
+            return null;
+        }
+        final StringBuilder key = new StringBuilder();
+        key.append(configVersion).append('\n');
+        for (String header : keyHeaders) {
+            final String value = headers.get(header);
+            if (value != null) {
+                key.append(header).append(": ").append(value).append('\n');
+            }
+        }
+        appendCanonical(key, spec.getInternalObj());
+        return hash(key.toString());
+    }
+
+    private boolean isCacheable(JSONObject spec) {
+        if (!areCacheable(spec.optJSONArray("layers"))) {
+            return false;
+        }
+        final JSONObject maps = spec.optJSONObject("maps");
+        if (maps != null) {
+            for (String name : maps.keySet()) {
+                final JSONObject map = maps.optJSONObject(name);
+                if (map != null && !areCacheable(map.optJSONArray("layers"))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean areCacheable(JSONArray layers) {
+        if (layers == null) {
+            return true;
+        }
+        for (int i = 0; i < layers.length(); ++i) {
+            final JSONObject layer = layers.optJSONObject(i);
+            if (layer == null) {
+                continue;
+            }
+            if (!layer.optBoolean("cacheable", true)) {
+                return false;
+            }
+            final JSONObject customParams = layer.optJSONObject("customParams");
+            if (customParams != null) {
+                for (String param : customParams.keySet()) {
+                    for (String uncacheable : uncacheableParams) {
+                        if (uncacheable.equalsIgnoreCase(param)) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void appendCanonical(StringBuilder result, Object value) {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            result.append('{');
+            boolean first = true;
+            for (String key : new TreeSet<String>(object.keySet())) {
+                if (!first) {
+                    result.append(',');
+                }
+                first = false;
+                result.append(JSONObject.quote(key)).append(':');
+                appendCanonical(result, object.opt(key));
+            }
+            result.append('}');
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            result.append('[');
+            for (int i = 0; i < array.length(); ++i) {
+                if (i > 0) {
+                    result.append(',');
+                }
+                appendCanonical(result, array.opt(i));
+            }
+            result.append(']');
+        } else {
+            result.append(JSONObject.valueToString(value));
+        }
+    }
+
+    /**
+     * @return the cached printout, null if not in the cache or expired.
+     */
+    public File get(String key) {
+        final File file = getFile(key);
+        final long lastModified = file.lastModified();
+        if (lastModified == 0L || System.currentTimeMillis() - lastModified > ttlSeconds * 1000L) {
+            misses.mark();
+            return null;
+        }
+        hits.mark();
+        return file;
+    }
+
+    /**
+     * Store a printout.
+     *
+     * @param printout the printout, left untouched.
+     */
+    public void put(String key, File printout) {
+        try {
+            final File tmp = createTempFile();
+            try {
+                Files.copy(printout.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                putTempFile(key, tmp);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot cache the printout " + printout + ": " + e);
+        }
+    }
+
+    /**
+     * @return a new file to write a printout to, before giving it to {@link #putTempFile(String, File)}.
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("printout", TMP_SUFFIX, directory);
+    }
+
+    /**
+     * Store a printout written in a file obtained by {@link #createTempFile()}. The file is moved into the cache.
+     */
+    public void putTempFile(String key, File tmp) throws IOException {
+        final long size = tmp.length();
+        //moved atomically, a concurrent reader never sees a partial printout
+        Files.move(tmp.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writes.mark();
+        if (currentBytes.addAndGet(size) > maxBytes && sweepScheduled.compareAndSet(false, true)) {
+            sweeper.execute(new Runnable() {
+                public void run() {
+                    sweep();
+                }
+            });
+        }
+    }
+
+    File getFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Delete the expired printouts and, if the cache is too big, the oldest ones until it uses
+     * less than 90% of maxBytes.
+     */
+    void sweep() {
+        sweepScheduled.set(false);
+        final long now = System.currentTimeMillis();
+        final File[] existing = directory.listFiles();
+        if (existing == null) {
+            return;
+        }
+        final List<File> files = new ArrayList<File>();
+        long total = 0L;
+        for (File file : existing) {
+            final long modified = file.lastModified();
+            if (file.getName().endsWith(SUFFIX)) {
+                if (now - modified > ttlSeconds * 1000L) {
+                    delete(file);
+                } else {
+                    files.add(file);
+                    total += file.length();
+                }
+            } else if (file.getName().endsWith(TMP_SUFFIX) && now - modified > TimeUnit.HOURS.toMillis(1)) {
+                //left by a crash
+                file.delete();
+            }
+        }
+
+        if (total > maxBytes) {
+            Collections.sort(files, new Comparator<File>() {
+                public int compare(File o1, File o2) {
+                    return Long.compare(o1.lastModified(), o2.lastModified());
+                }
+            });
+            final long target = maxBytes / 10 * 9;
+            for (File file : files) {
+                if (total <= target) {
+                    break;
+                }
+                final long size = file.length();
+                if (delete(file)) {
+                    total -= size;
+                }
+            }
+        }
+        currentBytes.set(total);
+    }
+
+    private boolean delete(File file) {
+        if (file.delete()) {
+            evictions.mark();
+            return true;
+        }
+        return false;
+    }
+
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Where to store the printouts.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Maximum size of the cache, the oldest printouts are deleted when reached.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Maximum age of the cached printouts.
+     */
+    public void setTtlSeconds(int ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * Time between two sweeps of the cache.
+     */
+    public void setSweepIntervalSeconds(int sweepIntervalSeconds) {
+        this.sweepIntervalSeconds = sweepIntervalSeconds;
+    }
+
+    /**
+     * The request headers that change the images returned by the servers (the other ones are ignored).
+     */
+    public void setKeyHeaders(List<String> keyHeaders) {
+        this.keyHeaders = keyHeaders;
+    }
+
+    /**
+     * The custom params (case insensitive) making a layer time dependent. The specs having such a layer are not cached.
+     */
+    public void setUncacheableParams(List<String> uncacheableParams) {
+        this.uncacheableParams = uncacheableParams;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+}
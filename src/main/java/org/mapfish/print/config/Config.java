@@ -20,31 +20,33 @@
 package org.mapfish.print.config;
 
 import com.codahale.metrics.MetricRegistry;
-import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
 import org.apache.hc.core5.http.HttpHost;
 import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.apache.hc.core5.util.Timeout;
-import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.core.config.Configurator;
 import org.json.JSONException;
 import org.json.JSONWriter;
 import org.mapfish.print.Constants;
 import org.mapfish.print.InvalidValueException;
 import org.mapfish.print.PDFUtils;
 import org.mapfish.print.ThreadResources;
+import org.mapfish.print.cache.DiskTileCache;
+import org.mapfish.print.cache.MemoryImageCache;
+import org.mapfish.print.http.HostCircuitBreaker;
+import org.mapfish.print.http.RequestCoalescer;
+import org.mapfish.print.http.RequestHedger;
 import org.mapfish.print.config.layout.Layout;
 import org.mapfish.print.config.layout.Layouts;
 import org.mapfish.print.map.MapTileTask;
 import org.mapfish.print.map.readers.MapReaderFactoryFinder;
 import org.mapfish.print.map.readers.WMSServiceInfo;
 import org.mapfish.print.output.OutputFactory;
-import org.pvalsecc.concurrent.OrderedResultsExecutor;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
+import org.pvalsecc.concurrent.OrderedExecutor;
 
 import java.io.Closeable;
 import java.net.InetSocketAddress;
@@ -79,8 +81,14 @@ public class Config implements Closeable {
     private boolean reloadConfig = false;
 
     private boolean ignoreCapabilities = false;
+    private boolean downsampleImages = false;
+    private int tileCompositingMaxMegaBytes = 0;
     private int maxPrintTimeBeforeWarningInSeconds = 30;
     private int printTimeoutMinutes = 5;
+    private int capabilitiesTtlSeconds = 3600;
+    private int capabilitiesErrorTtlSeconds = 60;
+    private int capabilitiesMaxStaleSeconds = 3600;
+    private String capabilitiesSnapshotDirectory = null;
     private boolean disableLayersMerging = false;
 
     private ThreadResources threadResources;
@@ -122,6 +130,11 @@ public class Config implements Closeable {
     private String brokenUrlPlaceholder = Constants.ImagePlaceHolderConstants.THROW;
     private String proxyBaseUrl;
     private MetricRegistry metricRegistry;
+    private MemoryImageCache imageCache;
+    private DiskTileCache diskTileCache;
+    private RequestCoalescer requestCoalescer;
+    private HostCircuitBreaker circuitBreaker;
+    private RequestHedger requestHedger;
 
     public Config() {
         hosts.add(new LocalHostMatcher());
@@ -334,10 +347,17 @@ public class Config implements Closeable {
 
     }
 
-    public OrderedResultsExecutor<MapTileTask> getMapRenderingExecutor() {
+    public OrderedExecutor<MapTileTask> getMapRenderingExecutor() {
         return this.threadResources.getMapRenderingExecutor();
     }
 
+    /**
+     * @return null if the requests to the map servers don't have to be limited by the caller.
+     */
+    public HostConcurrencyLimiter getHostConcurrencyLimiter() {
+        return this.threadResources.getHostConcurrencyLimiter();
+    }
+
     /**
      * Stop all the threads and stuff used for this config.
      */
@@ -356,37 +376,42 @@ public class Config implements Closeable {
     }
 
     /**
-     * Get or create the http client to be used to fetch all the map data.
+     * Get the http client to be used to fetch all the map data. It's shared, the settings specific to
+     * the URI are in the context returned by {@link #getHttpClientContext(URI)}, that must be used
+     * with it.
      */
     public CloseableHttpClient getHttpClient(URI uri) {
-        PoolingHttpClientConnectionManager connectionManager = getConnectionManager();
-        RequestConfig requestConfig = createRequestConfig(uri);
-        CloseableHttpClient httpClient = HttpClients.custom()
-                .setConnectionManager(connectionManager)
-                .setDefaultRequestConfig(requestConfig)
-                .build();
-
-        // httpclient is a bit pesky about loading everything in memory...
-        // disabling the warnings.
-        Logger logger=LogManager.getLogger(HttpUriRequestBase.class);
-        Configurator.setLevel(logger,Level.ERROR);
+        return this.threadResources.getHttpClient();
+    }
 
-        return httpClient;
+    /**
+     * @return null if the map data must be fetched with the blocking client ({@link #getHttpClient(URI)}).
+     */
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+        return this.threadResources.getAsyncHttpClient();
     }
 
+    /**
+     * Create the context of a request to the given URI: the timeouts, the proxy and the credentials.
+     */
     public HttpClientContext getHttpClientContext(URI uri) {
+        HttpClientContext context = null;
         for(SecurityStrategy sec : security)
             if(sec.matches(uri)) {
-                return sec.createContext(uri);
+                context = sec.createContext(uri);
+                break;
             }
-        return null;
-    }
-
-    private PoolingHttpClientConnectionManager getConnectionManager() {
-        return this.threadResources.getConnectionManager();
+        if (context == null) {
+            context = HttpClientContext.create();
+        }
+        context.setRequestConfig(createRequestConfig(uri));
+        return context;
     }
 
-    RequestConfig createRequestConfig(URI uri) {
+    /**
+     * Create the timeouts and proxy configuration of a request to the given URI.
+     */
+    public RequestConfig createRequestConfig(URI uri) {
         RequestConfig.Builder builder = RequestConfig.custom()
                 .setConnectionRequestTimeout(Timeout.ofMilliseconds(connectionTimeout))
                 .setResponseTimeout(Timeout.ofMilliseconds(socketTimeout));
@@ -625,6 +650,31 @@ public class Config implements Closeable {
         this.ignoreCapabilities = ignoreCapabilities;
     }
 
+    public boolean isDownsampleImages() {
+        return downsampleImages;
+    }
+
+    /**
+     * If true, the images much bigger than the size they are printed at (tiles, images and legend icons)
+     * are downsampled to the print's DPI before being added to the PDF.
+     */
+    public void setDownsampleImages(boolean downsampleImages) {
+        this.downsampleImages = downsampleImages;
+    }
+
+    public int getTileCompositingMaxMegaBytes() {
+        return tileCompositingMaxMegaBytes;
+    }
+
+    /**
+     * If not 0, the bitmap tiles of a layer are assembled into a single image before being added to the PDF,
+     * as long as this image fits in that many megabytes (8 bytes per pixel: the bitmap and its copy for the
+     * PDF are both in memory while converting). Above that, the tiles are added one by one.
+     */
+    public void setTileCompositingMaxMegaBytes(int tileCompositingMaxMegaBytes) {
+        this.tileCompositingMaxMegaBytes = tileCompositingMaxMegaBytes;
+    }
+
     public int getMaxPrintTimeBeforeWarningInSeconds() {
         return maxPrintTimeBeforeWarningInSeconds;
     }
@@ -641,6 +691,53 @@ public class Config implements Closeable {
         this.maxPrintTimeBeforeWarningInSeconds = maxPrintTimeBeforeWarningInSeconds;
     }
 
+    public int getCapabilitiesTtlSeconds() {
+        return capabilitiesTtlSeconds;
+    }
+
+    /**
+     * Time the capabilities of a server are used before being refreshed.
+     */
+    public void setCapabilitiesTtlSeconds(int capabilitiesTtlSeconds) {
+        this.capabilitiesTtlSeconds = capabilitiesTtlSeconds;
+    }
+
+    public int getCapabilitiesErrorTtlSeconds() {
+        return capabilitiesErrorTtlSeconds;
+    }
+
+    /**
+     * Time a failure to get the capabilities of a server is remembered.
+     */
+    public void setCapabilitiesErrorTtlSeconds(int capabilitiesErrorTtlSeconds) {
+        this.capabilitiesErrorTtlSeconds = capabilitiesErrorTtlSeconds;
+    }
+
+    public int getCapabilitiesMaxStaleSeconds() {
+        return capabilitiesMaxStaleSeconds;
+    }
+
+    /**
+     * Time after the TTL during which the expired capabilities are still used while being refreshed in the background.
+     */
+    public void setCapabilitiesMaxStaleSeconds(int capabilitiesMaxStaleSeconds) {
+        this.capabilitiesMaxStaleSeconds = capabilitiesMaxStaleSeconds;
+    }
+
+    /**
+     * @return null if the capabilities are not saved.
+     */
+    public String getCapabilitiesSnapshotDirectory() {
+        return capabilitiesSnapshotDirectory;
+    }
+
+    /**
+     * Directory where the capabilities documents are saved, to be used after a restart while being refreshed.
+     */
+    public void setCapabilitiesSnapshotDirectory(String capabilitiesSnapshotDirectory) {
+        this.capabilitiesSnapshotDirectory = capabilitiesSnapshotDirectory;
+    }
+
     public void setMetricRegistry(MetricRegistry metricRegistry) {
         this.metricRegistry = metricRegistry;
     }
@@ -648,4 +745,59 @@ public class Config implements Closeable {
     public MetricRegistry getMetricRegistry() {
         return metricRegistry;
     }
+
+    public void setImageCache(MemoryImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @return null if the images are not cached between prints.
+     */
+    public MemoryImageCache getImageCache() {
+        return imageCache != null && imageCache.isEnabled() ? imageCache : null;
+    }
+
+    public void setDiskTileCache(DiskTileCache diskTileCache) {
+        this.diskTileCache = diskTileCache;
+    }
+
+    /**
+     * @return null if the tiles are not cached on disk.
+     */
+    public DiskTileCache getDiskTileCache() {
+        return diskTileCache != null && diskTileCache.isEnabled() ? diskTileCache : null;
+    }
+
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * @return null if the concurrent fetches of the same image are not coalesced.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer != null && requestCoalescer.isEnabled() ? requestCoalescer : null;
+    }
+
+    public void setCircuitBreaker(HostCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return null if the requests to the failing map servers are not cut.
+     */
+    public HostCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker != null && circuitBreaker.isEnabled() ? circuitBreaker : null;
+    }
+
+    public void setRequestHedger(RequestHedger requestHedger) {
+        this.requestHedger = requestHedger;
+    }
+
+    /**
+     * @return null if the slow requests are not hedged.
+     */
+    public RequestHedger getRequestHedger() {
+        return requestHedger != null && requestHedger.isEnabled() ? requestHedger : null;
+    }
 }
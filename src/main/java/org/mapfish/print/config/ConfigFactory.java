@@ -11,6 +11,11 @@ import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import org.mapfish.print.ThreadResources;
+import org.mapfish.print.cache.DiskTileCache;
+import org.mapfish.print.cache.MemoryImageCache;
+import org.mapfish.print.http.HostCircuitBreaker;
+import org.mapfish.print.http.RequestCoalescer;
+import org.mapfish.print.http.RequestHedger;
 import org.mapfish.print.map.readers.MapReaderFactoryFinder;
 import org.mapfish.print.output.OutputFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,6 +34,16 @@ public class ConfigFactory {
     private ThreadResources threadResources;
     @Autowired
     private MetricRegistry metricRegistry;
+    @Autowired(required = false)
+    private MemoryImageCache imageCache;
+    @Autowired(required = false)
+    private DiskTileCache diskTileCache;
+    @Autowired(required = false)
+    private RequestCoalescer requestCoalescer;
+    @Autowired(required = false)
+    private HostCircuitBreaker circuitBreaker;
+    @Autowired(required = false)
+    private RequestHedger requestHedger;
     
     private ObjectMapper mapper;
 
@@ -101,5 +116,10 @@ public class ConfigFactory {
         result.setMapReaderFactoryFinder(mapReaderFactoryFinder);
         result.setThreadResources(this.threadResources);
         result.setMetricRegistry(this.metricRegistry);
+        result.setImageCache(this.imageCache);
+        result.setDiskTileCache(this.diskTileCache);
+        result.setRequestCoalescer(this.requestCoalescer);
+        result.setCircuitBreaker(this.circuitBreaker);
+        result.setRequestHedger(this.requestHedger);
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.http;
+
+/**
+ * The response of a map server to an image request, read in memory.
+ */
+public final class FetchedImage {
+    private final int statusCode;
+    private final String statusText;
+    private final String contentType;
+    private final byte[] data;
+    private final String etag;
+    private final String lastModified;
+    private final String cacheControl;
+
+    public FetchedImage(int statusCode, String statusText, String contentType, byte[] data,
+                        String etag, String lastModified, String cacheControl) {
+        this.statusCode = statusCode;
+        this.statusText = statusText;
+        this.contentType = contentType != null ? contentType : "";
+        this.data = data;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getStatusText() {
+        return statusText;
+    }
+
+    /**
+     * @return the Content-Type header, empty if missing.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return null if there is no body.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the ETag header, null if missing.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified header, null if missing.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the Cache-Control header, null if missing.
+     */
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    /**
+     * @return true if it's a successful response containing an image (not a service exception).
+     */
+    public boolean isImage() {
+        return statusCode >= 200 && statusCode < 300 && statusCode != 204 && data != null &&
+               !contentType.startsWith("text/") && !contentType.equals("application/vnd.ogc.se_xml");
+    }
+}
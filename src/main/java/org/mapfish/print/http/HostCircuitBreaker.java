@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.http;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.health.HealthCheck;
+import com.codahale.metrics.health.HealthCheckRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Stops sending requests to a map server that is down, instead of having every tile of every
+ * print waiting for the socket timeout.
+ * <p/>
+ * After failureThreshold consecutive failures (IO errors, timeouts, 429 or 5xx) of a host, its
+ * circuit is opened: the requests to it fail right away (with a {@link CircuitOpenException},
+ * handled like any other IO error, so the brokenUrlPlaceholder is used if configured). After
+ * openSeconds, a single request is let through to probe the host. If it works, the circuit is
+ * closed, otherwise it stays open for another openSeconds.
+ * <p/>
+ * The hosts having an open circuit are listed by a health check named "circuitBreaker". It stays
+ * healthy: a failing map server says nothing about the health of the print server. The hosts
+ * whose circuit is closed are forgotten after idleSeconds without requests.
+ */
+public class HostCircuitBreaker {
+    private static final Logger LOGGER = LogManager.getLogger(HostCircuitBreaker.class);
+    private static final String HEALTH_CHECK_NAME = "circuitBreaker";
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+    @Autowired(required = false)
+    private HealthCheckRegistry healthCheckRegistry;
+
+    private boolean enabled = false;
+    private int failureThreshold = 5;
+    private int openSeconds = 30;
+    private int idleSeconds = 600;
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    /**
+     * When the idle hosts have been looked for the last time (System.nanoTime()).
+     */
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+    private Meter rejected;
+
+    @PostConstruct
+    public void init() {
+        rejected = metricRegistry.meter(MetricRegistry.name(getClass(), "rejected"));
+        final String fullName = MetricRegistry.name(getClass(), "open");
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, new Gauge<Integer>() {
+            public Integer getValue() {
+                int result = 0;
+                for (Host host : hosts.values()) {
+                    if (host.getState() != State.CLOSED) {
+                        ++result;
+                    }
+                }
+                return result;
+            }
+        });
+        if (healthCheckRegistry != null) {
+            healthCheckRegistry.unregister(HEALTH_CHECK_NAME);
+            healthCheckRegistry.register(HEALTH_CHECK_NAME, new HealthCheck() {
+                @Override
+                protected Result check() {
+                    final List<String> open = new ArrayList<String>();
+                    for (Host host : hosts.values()) {
+                        final State state = host.getState();
+                        if (state != State.CLOSED) {
+                            open.add(host.name + " (" + state + ")");
+                        }
+                    }
+                    if (open.isEmpty()) {
+                        return Result.healthy("No open circuit");
+                    }
+                    Collections.sort(open);
+                    return Result.healthy("Open circuits: " + String.join(", ", open));
+                }
+            });
+        }
+    }
+
+    /**
+     * Check a request can be sent to the given URI.
+     *
+     * @return the call to close once the request is done, after having marked its outcome.
+     * @throws CircuitOpenException if the circuit of the host is open.
+     */
+    public Call enter(URI uri) throws CircuitOpenException {
+        while (true) {
+            final Host host = getHost(uri.getAuthority());
+            final Boolean probe = host.enter(uri);
+            if (probe != null) {
+                return new Call(host, probe);
+            }
+            //evicted in the meantime
+        }
+    }
+
+    private Host getHost(String authority) {
+        final String key = authority != null ? authority : "";
+        Host result = hosts.get(key);
+        if (result == null) {
+            evictIdleHosts();
+            final Host newHost = new Host(key);
+            result = hosts.putIfAbsent(key, newHost);
+            if (result == null) {
+                result = newHost;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forget the hosts whose circuit is closed and that had no request during idleSeconds. The
+     * hosts come from the specs, the map would grow without bounds otherwise. Done at most once
+     * every idleSeconds, when a new host is seen.
+     */
+    private void evictIdleHosts() {
+        final long now = System.nanoTime();
+        final long idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        final long last = lastEviction.get();
+        if (now - last < idleNanos || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (Host host : hosts.values()) {
+            if (host.evictIfIdle(now, idleNanos)) {
+                hosts.remove(host.name, host);
+            }
+        }
+    }
+
+    /**
+     * @return the number of hosts currently known.
+     */
+    int getNbHosts() {
+        return hosts.size();
+    }
+
+    /**
+     * @return the state of the given host (authority of the URIs).
+     */
+    State getState(String authority) {
+        final Host host = hosts.get(authority);
+        return host != null ? host.getState() : State.CLOSED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Number of consecutive failures opening the circuit of a host.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Time the requests to a failing host are rejected before trying it again.
+     */
+    public void setOpenSeconds(int openSeconds) {
+        this.openSeconds = openSeconds;
+    }
+
+    /**
+     * Time after which a host with a closed circuit and no requests is forgotten.
+     */
+    public void setIdleSeconds(int idleSeconds) {
+        this.idleSeconds = idleSeconds;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    public void setHealthCheckRegistry(HealthCheckRegistry healthCheckRegistry) {
+        this.healthCheckRegistry = healthCheckRegistry;
+    }
+
+    private final class Host {
+        private final String name;
+        private State state = State.CLOSED;
+        private int nbFailures = 0;
+        private long openUntil = 0L;
+        private boolean probing = false;
+        private int inFlight = 0;
+        private long lastUsed = System.nanoTime();
+        private boolean evicted = false;
+
+        private Host(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true if the request is the probe of a half open circuit, null if this host has
+         *         been evicted (the caller must get it again).
+         */
+        synchronized Boolean enter(URI uri) throws CircuitOpenException {
+            if (evicted) {
+                return null;
+            }
+            lastUsed = System.nanoTime();
+            final boolean probe = tryEnter(uri);
+            ++inFlight;
+            return probe;
+        }
+
+        private boolean tryEnter(URI uri) throws CircuitOpenException {
+            if (state == State.OPEN && System.nanoTime() - openUntil >= 0) {
+                state = State.HALF_OPEN;
+            }
+            if (state == State.CLOSED) {
+                return false;
+            }
+            if (state == State.HALF_OPEN && !probing) {
+                probing = true;
+                return true;
+            }
+            rejected.mark();
+            throw new CircuitOpenException("Not fetching " + uri + ", " + name + " is failing");
+        }
+
+        /**
+         * @param success null if the outcome of the request is unknown (interrupted, for example).
+         */
+        synchronized void exit(boolean probe, Boolean success) {
+            --inFlight;
+            lastUsed = System.nanoTime();
+            if (probe) {
+                probing = false;
+            }
+            if (success == null) {
+                return;
+            }
+            if (success) {
+                nbFailures = 0;
+                if (state != State.CLOSED && probe) {
+                    LOGGER.info("Closing the circuit of " + name);
+                    state = State.CLOSED;
+                }
+            } else if (probe || (state == State.CLOSED && ++nbFailures >= failureThreshold)) {
+                if (state == State.CLOSED) {
+                    LOGGER.warn("Opening the circuit of " + name + " after " + nbFailures + " failures");
+                }
+                state = State.OPEN;
+                openUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(openSeconds);
+            }
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        /**
+         * @return true if the host has been marked as evicted.
+         */
+        synchronized boolean evictIfIdle(long now, long idleNanos) {
+            if (state == State.CLOSED && inFlight == 0 && now - lastUsed >= idleNanos) {
+                evicted = true;
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * One request let through. Can be closed more than once.
+     */
+    public final class Call implements Closeable {
+        private final Host host;
+        private final boolean probe;
+        private Boolean success = null;
+        private boolean closed = false;
+
+        private Call(Host host, boolean probe) {
+            this.host = host;
+            this.probe = probe;
+        }
+
+        public synchronized void markSucceeded() {
+            success = true;
+        }
+
+        /**
+         * Tell the request failed in a way showing the host is down (IO error, timeout, 429, 5xx, ...).
+         */
+        public synchronized void markFailed() {
+            success = false;
+        }
+
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                host.exit(probe, success);
+            }
+        }
+    }
+}
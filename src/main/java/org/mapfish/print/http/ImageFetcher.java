@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.http;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.RenderingContext;
+import org.mapfish.print.cache.CachedImage;
+import org.mapfish.print.cache.DiskTileCache;
+import org.mapfish.print.cache.MemoryImageCache;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the images from the map servers, going through the image caches if they are enabled. The
+ * concurrent fetches of the same image are coalesced.
+ */
+public final class ImageFetcher {
+    private static final Logger LOGGER = LogManager.getLogger(ImageFetcher.class);
+
+    private ImageFetcher() {
+    }
+
+    /**
+     * Get the given image, from the cache or from the server.
+     */
+    public static FetchedImage fetch(RenderingContext context, URI uri) throws IOException {
+        return fetch(context, uri, null);
+    }
+
+    /**
+     * Get the given image, from the caches or from the server.
+     *
+     * @param diskCacheLayer the name of the layer under which the image can be stored in the
+     *                       disk tile cache. Null if it must not be.
+     */
+    public static FetchedImage fetch(RenderingContext context, URI uri, String diskCacheLayer) throws IOException {
+        context.getCancellation().check();
+        final MemoryImageCache cache = context.getConfig().getImageCache();
+        if (cache == null) {
+            return fetchCoalesced(context, uri, diskCacheLayer, null);
+        }
+
+        final String key = cache.createKey(uri, context.getHeaders());
+        final CachedImage cached = cache.get(key);
+        if (cached != null && cached.isFresh()) {
+            return cached.getImage();
+        }
+
+        FetchedImage result = fetchCoalesced(context, uri, diskCacheLayer, cached);
+        if (result.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            if (cached != null) {
+                return cache.revalidated(key, cached, result).getImage();
+            }
+            //answer to the conditional request of another print, the image is needed
+            result = fetchFromDiskCache(context, uri, diskCacheLayer, null);
+        }
+        cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Make the concurrent fetches of the same image share the same request.
+     */
+    private static FetchedImage fetchCoalesced(final RenderingContext context, final URI uri, final String diskCacheLayer,
+                                               final CachedImage stale) throws IOException {
+        final RequestCoalescer coalescer = context.getConfig().getRequestCoalescer();
+        if (coalescer == null) {
+            return fetchFromDiskCache(context, uri, diskCacheLayer, stale);
+        }
+        return coalescer.fetch(coalescer.createKey(uri, context.getHeaders()), context.getCancellation(), new RequestCoalescer.Loader() {
+            public FetchedImage load() throws IOException {
+                return fetchFromDiskCache(context, uri, diskCacheLayer, stale);
+            }
+        });
+    }
+
+    /**
+     * @param stale the version in the memory cache, used to do a conditional request. Can be null.
+     */
+    private static FetchedImage fetchFromDiskCache(RenderingContext context, URI uri, String diskCacheLayer, CachedImage stale)
+            throws IOException {
+        final DiskTileCache diskCache = diskCacheLayer != null ? context.getConfig().getDiskTileCache() : null;
+        if (diskCache == null) {
+            return fetchFromServer(context, uri, stale);
+        }
+        final FetchedImage cached = diskCache.get(diskCacheLayer, uri, context.getHeaders());
+        if (cached != null) {
+            return cached;
+        }
+        final FetchedImage result = fetchFromServer(context, uri, stale);
+        diskCache.put(diskCacheLayer, uri, context.getHeaders(), result);
+        return result;
+    }
+
+    /**
+     * @param stale the cached version, used to do a conditional request. Can be null.
+     */
+    private static FetchedImage fetchFromServer(final RenderingContext context, final URI uri, final CachedImage stale)
+            throws IOException {
+        final HostCircuitBreaker circuitBreaker = context.getConfig().getCircuitBreaker();
+        final HostCircuitBreaker.Call call = circuitBreaker != null ? circuitBreaker.enter(uri) : null;
+        final HostConcurrencyLimiter limiter = context.getConfig().getHostConcurrencyLimiter();
+        HostConcurrencyLimiter.Permit permit = null;
+        try {
+            permit = limiter != null ? limiter.acquire(uri, context.getCancellation()) : null;
+            context.getCancellation().check();
+            final FetchedImage result;
+            if ((uri.getScheme().equals("http") || uri.getScheme().equals("https"))
+                    && context.getConfig().localHostForwardIsFrom(uri.getHost())) {
+                result = fetchFromLocalHost(context, uri, stale);
+            } else if (context.getConfig().getRequestHedger() != null) {
+                result = context.getConfig().getRequestHedger().fetch(uri, limiter, new RequestHedger.Loader() {
+                    public FetchedImage load(RequestHedger.Attempt attempt) throws IOException {
+                        return fetchWithClient(context, uri, stale, attempt);
+                    }
+                });
+            } else {
+                result = fetchWithClient(context, uri, stale, null);
+            }
+            if (isOverloaded(result.getStatusCode())) {
+                markFailed(permit, call);
+            } else if (call != null) {
+                call.markSucceeded();
+            }
+            return result;
+        } catch (IOException e) {
+            if (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException) {
+                markFailed(permit, call);
+            }
+            throw e;
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+            if (call != null) {
+                call.close();
+            }
+        }
+    }
+
+    private static void markFailed(HostConcurrencyLimiter.Permit permit, HostCircuitBreaker.Call call) {
+        if (permit != null) {
+            permit.markFailed();
+        }
+        if (call != null) {
+            call.markFailed();
+        }
+    }
+
+    /**
+     * @param attempt where to register how to abort the request when it is hedged. Can be null.
+     */
+    private static FetchedImage fetchWithClient(RenderingContext context, URI uri, CachedImage stale,
+                                                RequestHedger.Attempt attempt) throws IOException {
+        if (context.getConfig().getAsyncHttpClient() != null) {
+            return fetchWithAsyncHttpClient(context, uri, stale, attempt);
+        } else {
+            return fetchWithHttpClient(context, uri, stale, attempt);
+        }
+    }
+
+    /**
+     * @return true if the status code means the server is too busy.
+     */
+    static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private static FetchedImage fetchFromLocalHost(RenderingContext context, URI uri, CachedImage stale) throws IOException {
+        String scheme = uri.getScheme();
+        final String host = uri.getHost();
+        if (uri.getScheme().equals("https")
+                && context.getConfig().localHostForwardIsHttps2http()) {
+            scheme = "http";
+        }
+        URL url = new URL(scheme, "localhost", uri.getPort(),
+                uri.getPath() + "?" + uri.getQuery());
+
+        HttpURLConnection connexion = (HttpURLConnection) url.openConnection();
+        connexion.setRequestProperty("Host", host);
+        for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+            connexion.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+        if (stale != null) {
+            if (stale.getImage().getEtag() != null) {
+                connexion.setRequestProperty("If-None-Match", stale.getImage().getEtag());
+            }
+            if (stale.getImage().getLastModified() != null) {
+                connexion.setRequestProperty("If-Modified-Since", stale.getImage().getLastModified());
+            }
+        }
+        final HttpURLConnection toAbort = connexion;
+        final Closeable cancelRegistration = context.getCancellation().onCancel(new Runnable() {
+            public void run() {
+                toAbort.disconnect();
+            }
+        });
+        byte[] data = null;
+        InputStream is = null;
+        try {
+            try {
+                is = connexion.getInputStream();
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int length;
+                while ((length = is.read(buffer)) != -1) {
+                    baos.write(buffer, 0, length);
+                }
+                baos.flush();
+                data = baos.toByteArray();
+            } catch (IOException e) {
+                context.getCancellation().check();
+                LOGGER.warn(e);
+            }
+            return new FetchedImage(connexion.getResponseCode(), connexion.getResponseMessage(), connexion.getContentType(), data,
+                    connexion.getHeaderField("ETag"), connexion.getHeaderField("Last-Modified"),
+                    connexion.getHeaderField("Cache-Control"));
+        } finally {
+            cancelRegistration.close();
+            if (is != null) {
+                is.close();
+            }
+        }
+    }
+
+    private static FetchedImage fetchWithHttpClient(RenderingContext context, URI uri, CachedImage stale,
+                                                    RequestHedger.Attempt attempt) throws IOException {
+        MetricRegistry registry = context.getConfig().getMetricRegistry();
+        final Timer.Context timer = registry.timer("http_" + uri.getAuthority()).time();
+        try {
+            final HttpGet request = new HttpGet(uri.toString());
+            for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+                request.addHeader(entry.getKey(), entry.getValue());
+            }
+            if (stale != null) {
+                if (stale.getImage().getEtag() != null) {
+                    request.addHeader("If-None-Match", stale.getImage().getEtag());
+                }
+                if (stale.getImage().getLastModified() != null) {
+                    request.addHeader("If-Modified-Since", stale.getImage().getLastModified());
+                }
+            }
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("loading image: " + uri);
+            HttpClientContext clientContext = getHttpClientContext(context, uri);
+            final Runnable abort = new Runnable() {
+                public void run() {
+                    request.cancel();
+                }
+            };
+            if (attempt != null) {
+                attempt.onAbort(abort);
+            }
+            final Closeable cancelRegistration = context.getCancellation().onCancel(abort);
+            try (CloseableHttpResponse response = context.getConfig().getHttpClient(uri).execute(request, clientContext)) {
+                HttpEntity entity = response.getEntity();
+                return new FetchedImage(response.getCode(), response.getReasonPhrase(), getHeader(response, "Content-Type"),
+                        entity != null ? EntityUtils.toByteArray(entity) : null,
+                        getHeader(response, "ETag"), getHeader(response, "Last-Modified"), getHeader(response, "Cache-Control"));
+            } catch (IOException e) {
+                context.getCancellation().check();
+                throw e;
+            } finally {
+                cancelRegistration.close();
+            }
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * The calling thread waits for the response, but the I/O is done by the few threads of the
+     * async client that multiplexes the requests of all the prints.
+     */
+    private static FetchedImage fetchWithAsyncHttpClient(RenderingContext context, URI uri, CachedImage stale,
+                                                         RequestHedger.Attempt attempt) throws IOException {
+        MetricRegistry registry = context.getConfig().getMetricRegistry();
+        final Timer.Context timer = registry.timer("http_" + uri.getAuthority()).time();
+        try {
+            SimpleRequestBuilder builder = SimpleRequestBuilder.get(uri);
+            for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+                builder.addHeader(entry.getKey(), entry.getValue());
+            }
+            if (stale != null) {
+                if (stale.getImage().getEtag() != null) {
+                    builder.addHeader("If-None-Match", stale.getImage().getEtag());
+                }
+                if (stale.getImage().getLastModified() != null) {
+                    builder.addHeader("If-Modified-Since", stale.getImage().getLastModified());
+                }
+            }
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("loading image (async): " + uri);
+            HttpClientContext clientContext = getHttpClientContext(context, uri);
+            final Future<SimpleHttpResponse> future = context.getConfig().getAsyncHttpClient().execute(builder.build(), clientContext, null);
+            final Runnable abort = new Runnable() {
+                public void run() {
+                    future.cancel(true);
+                }
+            };
+            if (attempt != null) {
+                attempt.onAbort(abort);
+            }
+            final Closeable cancelRegistration = context.getCancellation().onCancel(abort);
+            final SimpleHttpResponse response;
+            try {
+                response = future.get();
+            } catch (CancellationException e) {
+                context.getCancellation().check();
+                throw new InterruptedIOException("Fetch of " + uri + " cancelled");
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + uri);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error while fetching " + uri, e.getCause());
+            } finally {
+                cancelRegistration.close();
+            }
+            return new FetchedImage(response.getCode(), response.getReasonPhrase(), getHeader(response, "Content-Type"),
+                    response.getBodyBytes(), getHeader(response, "ETag"), getHeader(response, "Last-Modified"),
+                    getHeader(response, "Cache-Control"));
+        } finally {
+            timer.close();
+        }
+    }
+
+    /**
+     * Get the context of the request, with a response timeout not going past the deadline of the print.
+     */
+    private static HttpClientContext getHttpClientContext(RenderingContext context, URI uri) {
+        final HttpClientContext result = context.getConfig().getHttpClientContext(uri);
+        final long remaining = context.getCancellation().getRemainingMillis();
+        final RequestConfig requestConfig = result.getRequestConfig();
+        final Timeout responseTimeout = requestConfig.getResponseTimeout();
+        if (responseTimeout == null || responseTimeout.isDisabled() || responseTimeout.toMilliseconds() > remaining) {
+            result.setRequestConfig(RequestConfig.copy(requestConfig)
+                    .setResponseTimeout(Timeout.ofMilliseconds(Math.max(1, remaining)))
+                    .build());
+        }
+        return result;
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        final Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+}
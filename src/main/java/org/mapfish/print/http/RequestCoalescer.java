@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.http;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.mapfish.print.CancellationToken;
+import org.mapfish.print.PrintCancelledException;
+import org.mapfish.print.cache.MemoryImageCache;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Makes the concurrent fetches of the same image share a single request to the map server.
+ * <p/>
+ * The first thread asking for an image does the request, the threads asking for the same
+ * image (same URI and same forwarded headers) while it's in flight wait for
+ * it and get the same response (or error). If the print of the first thread is cancelled,
+ * the others try again. A waiting thread gives up when its own print is cancelled. Nothing
+ * is kept once the request is done, that's the job of the image caches.
+ */
+public class RequestCoalescer {
+    /**
+     * How often a waiting thread checks if its print has been cancelled.
+     */
+    private static final long CANCELLATION_CHECK_MILLIS = 100;
+
+    /**
+     * The forwarded headers that don't change the images returned by the servers.
+     */
+    private static final List<String> IGNORED_HEADERS = Arrays.asList("Referer", "X-Forwarded-For");
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private boolean enabled = false;
+
+    private final ConcurrentHashMap<String, CompletableFuture<FetchedImage>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<FetchedImage>>();
+
+    private Meter coalesced;
+
+    @PostConstruct
+    public void init() {
+        coalesced = metricRegistry.meter(MetricRegistry.name(getClass(), "coalesced"));
+        final String fullName = MetricRegistry.name(getClass(), "in-flight");
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, new Gauge<Integer>() {
+            public Integer getValue() {
+                return inFlight.size();
+            }
+        });
+    }
+
+    /**
+     * Compute the key of the image at the given URI, fetched with the given headers (the ones
+     * forwarded to the map servers, as configured with the "headers" of the config). All of them
+     * are taken into account, except Referer and X-Forwarded-For.
+     */
+    public String createKey(URI uri, Map<String, String> headers) {
+        final List<String> keyHeaders = new ArrayList<String>();
+        if (headers != null) {
+            for (String name : headers.keySet()) {
+                if (!isIgnored(name)) {
+                    keyHeaders.add(name);
+                }
+            }
+        }
+        Collections.sort(keyHeaders, String.CASE_INSENSITIVE_ORDER);
+        return MemoryImageCache.createKey(uri, headers, keyHeaders);
+    }
+
+    private static boolean isIgnored(String header) {
+        for (String ignored : IGNORED_HEADERS) {
+            if (ignored.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the image with the given key, using the given loader if it's not already in flight.
+     *
+     * @param cancellation the cancellation of the print asking for the image. Can be null.
+     * @throws PrintCancelledException if the print is cancelled while waiting for another one's request.
+     */
+    public FetchedImage fetch(String key, CancellationToken cancellation, Loader loader) throws IOException {
+        final CompletableFuture<FetchedImage> future = new CompletableFuture<FetchedImage>();
+        CompletableFuture<FetchedImage> existing;
+        while ((existing = inFlight.putIfAbsent(key, future)) != null) {
+            coalesced.mark();
+            final FetchedImage result = waitFor(existing, cancellation);
+            if (result != null) {
+                return result;
+            }
+            //the print of the thread doing the request has been cancelled, try again
+        }
+
+        try {
+            final FetchedImage result = loader.load();
+            future.complete(result);
+            return result;
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return null if the request has been abandoned because the print doing it was cancelled.
+     */
+    private static FetchedImage waitFor(CompletableFuture<FetchedImage> future, CancellationToken cancellation)
+            throws IOException {
+        try {
+            if (cancellation == null) {
+                return future.get();
+            }
+            while (true) {
+                cancellation.check();
+                final long wait = Math.max(1, Math.min(cancellation.getRemainingMillis(), CANCELLATION_CHECK_MILLIS));
+                try {
+                    return future.get(wait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    //check the cancellation again
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the same image to be fetched");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof PrintCancelledException) {
+                return null;
+            } else if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Does the actual fetch.
+     */
+    public interface Loader {
+        FetchedImage load() throws IOException;
+    }
+}
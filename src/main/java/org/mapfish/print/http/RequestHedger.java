@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.http;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Cuts the tail latency of the prints (a print is as slow as its slowest tile) by sending a
+ * second request for the images that take too long and by taking the first response.
+ * <p/>
+ * The delay before sending the second request is the given percentile of the latencies of
+ * the host, once enough of them are known. They are kept by this class, in the
+ * RequestHedger.latency.&lt;authority&gt; timers: only the requests that completed are counted,
+ * not the ones aborted because the other request of the image won. The number
+ * of second requests is limited by a global budget: each request earns budgetRatio of a
+ * second request, up to maxBurst.
+ * <p/>
+ * The first request is done in the calling thread. The second one is done in a thread of this
+ * class (at most maxParallelHedges at a time), only if the host's concurrency limit allows it.
+ * The request that loses is aborted, giving its connection back.
+ */
+public class RequestHedger {
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private boolean enabled = false;
+    private double percentile = 0.95;
+    private int minSamples = 100;
+    private int minDelayMillis = 50;
+    private double budgetRatio = 0.05;
+    private int maxBurst = 10;
+    private int maxParallelHedges = 10;
+
+    /**
+     * Number of second requests that can be sent right now. Protected by this.
+     */
+    private double budget = 0.0;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+    private Semaphore hedgeSlots;
+    private Meter hedges;
+    private Meter hedgeWins;
+
+    @PostConstruct
+    public void init() {
+        hedges = metricRegistry.meter(MetricRegistry.name(getClass(), "hedges"));
+        hedgeWins = metricRegistry.meter(MetricRegistry.name(getClass(), "hedge-wins"));
+        if (enabled) {
+            hedgeSlots = new Semaphore(maxParallelHedges);
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("hedgeScheduler").setDaemon(true).build());
+            //bounded by hedgeSlots
+            executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("hedgedRequest%d").setDaemon(true).build());
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Do the given request, hedged if the latencies of the host are known.
+     *
+     * @param limiter the limiter of the requests to the hosts, the second request needs a permit
+     *                from it. Can be null.
+     */
+    public FetchedImage fetch(URI uri, HostConcurrencyLimiter limiter, Loader request) throws IOException {
+        final long delay = getDelayMillis(uri);
+        earnBudget();
+        if (delay < 0) {
+            return timedLoad(uri, request, null);
+        }
+
+        final Hedge hedge = new Hedge(uri, limiter, request);
+        final ScheduledFuture<?> timer = scheduler.schedule(hedge, delay, TimeUnit.MILLISECONDS);
+        try {
+            return timedLoad(uri, request, hedge.primary);
+        } catch (IOException e) {
+            // aborted because the second request won, or failed: give a chance to the second request
+            final FetchedImage result = hedge.awaitResult();
+            if (result == null) {
+                throw e;
+            }
+            return result;
+        } finally {
+            timer.cancel(false);
+            hedge.primaryDone();
+        }
+    }
+
+    /**
+     * The second request of an image. Scheduled to be sent once the delay is elapsed.
+     */
+    private final class Hedge implements Runnable {
+        private final URI uri;
+        private final HostConcurrencyLimiter limiter;
+        private final Loader request;
+        private final Attempt primary = new Attempt();
+        private final Attempt secondary = new Attempt();
+        /**
+         * The response of the second request, null if it failed.
+         */
+        private final CompletableFuture<FetchedImage> result = new CompletableFuture<FetchedImage>();
+        /**
+         * Protected by this.
+         */
+        private boolean primaryDone = false;
+        /**
+         * Protected by this.
+         */
+        private boolean sent = false;
+
+        private Hedge(URI uri, HostConcurrencyLimiter limiter, Loader request) {
+            this.uri = uri;
+            this.limiter = limiter;
+            this.request = request;
+        }
+
+        /**
+         * Send the second request, if allowed. Called by the scheduler.
+         */
+        public void run() {
+            if (!hedgeSlots.tryAcquire()) {
+                return;
+            }
+            HostConcurrencyLimiter.Permit permit = null;
+            boolean budgetSpent = false;
+            boolean submitted = false;
+            try {
+                synchronized (this) {
+                    if (primaryDone) {
+                        return;
+                    }
+                }
+                budgetSpent = spendBudget();
+                if (!budgetSpent) {
+                    return;
+                }
+                if (limiter != null) {
+                    permit = limiter.tryAcquire(uri);
+                    if (permit == null) {
+                        return;
+                    }
+                }
+                synchronized (this) {
+                    if (primaryDone) {
+                        return;
+                    }
+                    sent = true;
+                }
+                final HostConcurrencyLimiter.Permit hedgePermit = permit;
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            send(hedgePermit);
+                        }
+                    });
+                    submitted = true;
+                    hedges.mark();
+                } catch (RejectedExecutionException e) {
+                    result.complete(null);
+                }
+            } finally {
+                if (!submitted) {
+                    if (permit != null) {
+                        permit.abandon();
+                    }
+                    if (budgetSpent) {
+                        refundBudget();
+                    }
+                    hedgeSlots.release();
+                }
+            }
+        }
+
+        private void send(HostConcurrencyLimiter.Permit permit) {
+            try {
+                final FetchedImage image = timedLoad(uri, request, secondary);
+                if (permit != null && ImageFetcher.isOverloaded(image.getStatusCode())) {
+                    permit.markFailed();
+                }
+                final boolean won;
+                synchronized (this) {
+                    won = !primaryDone;
+                }
+                result.complete(image);
+                if (won) {
+                    hedgeWins.mark();
+                    primary.abort();
+                }
+            } catch (IOException e) {
+                if (permit != null && !secondary.isAborted() &&
+                        (!(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException)) {
+                    permit.markFailed();
+                }
+                result.complete(null);
+            } catch (RuntimeException e) {
+                result.complete(null);
+                throw e;
+            } finally {
+                if (permit != null) {
+                    if (secondary.isAborted()) {
+                        permit.abandon();
+                    } else {
+                        permit.close();
+                    }
+                }
+                hedgeSlots.release();
+            }
+        }
+
+        /**
+         * Wait for the second request, if it was sent.
+         *
+         * @return null if not sent or failed.
+         */
+        private FetchedImage awaitResult() throws InterruptedIOException {
+            synchronized (this) {
+                primaryDone = true;
+                if (!sent) {
+                    return null;
+                }
+            }
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching " + uri);
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        /**
+         * The first request is done, abort the second one if still running.
+         */
+        private void primaryDone() {
+            synchronized (this) {
+                primaryDone = true;
+            }
+            secondary.abort();
+        }
+    }
+
+    /**
+     * One of the requests of a hedged image. The request registers how to abort it.
+     */
+    public static final class Attempt {
+        private Runnable abortAction = null;
+        private boolean aborted = false;
+
+        /**
+         * Register how to abort the request. Called right away if already aborted.
+         */
+        public void onAbort(Runnable action) {
+            synchronized (this) {
+                if (!aborted) {
+                    abortAction = action;
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        void abort() {
+            final Runnable action;
+            synchronized (this) {
+                if (aborted) {
+                    return;
+                }
+                aborted = true;
+                action = abortAction;
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+
+        public synchronized boolean isAborted() {
+            return aborted;
+        }
+    }
+
+    /**
+     * Does one request of an image.
+     */
+    public interface Loader {
+        /**
+         * @param attempt where to register how to abort the request. Null if the request is not hedged.
+         */
+        FetchedImage load(Attempt attempt) throws IOException;
+    }
+
+    /**
+     * Do one request, adding its latency to the ones of the host if it completed without being aborted.
+     */
+    private FetchedImage timedLoad(URI uri, Loader request, Attempt attempt) throws IOException {
+        final long start = System.nanoTime();
+        final FetchedImage result = request.load(attempt);
+        if (attempt == null || !attempt.isAborted()) {
+            metricRegistry.timer(getLatencyTimerName(uri)).update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        return result;
+    }
+
+    static String getLatencyTimerName(URI uri) {
+        return MetricRegistry.name(RequestHedger.class, "latency", uri.getAuthority());
+    }
+
+    /**
+     * @return -1 if not enough latencies of the host are known.
+     */
+    long getDelayMillis(URI uri) {
+        final Timer timer = metricRegistry.getTimers().get(getLatencyTimerName(uri));
+        if (timer == null || timer.getCount() < minSamples) {
+            return -1L;
+        }
+        final double value = timer.getSnapshot().getValue(percentile);
+        return Math.max(minDelayMillis, TimeUnit.NANOSECONDS.toMillis((long) value));
+    }
+
+    private synchronized void earnBudget() {
+        budget = Math.min(maxBurst, budget + budgetRatio);
+    }
+
+    private synchronized boolean spendBudget() {
+        if (budget >= 1.0) {
+            budget -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void refundBudget() {
+        budget = Math.min(maxBurst, budget + 1.0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The percentile of the latencies of a host after which a second request is sent (between 0 and 1).
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * Number of requests to a host before its latencies are used.
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Minimum delay before sending a second request.
+     */
+    public void setMinDelayMillis(int minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * The part of the requests that can be sent twice (0.05 means 5% more requests at most).
+     */
+    public void setBudgetRatio(double budgetRatio) {
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * Maximum number of second requests sent in a burst.
+     */
+    public void setMaxBurst(int maxBurst) {
+        this.maxBurst = maxBurst;
+    }
+
+    /**
+     * Maximum number of second requests in flight at the same time.
+     */
+    public void setMaxParallelHedges(int maxParallelHedges) {
+        this.maxParallelHedges = maxParallelHedges;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+}
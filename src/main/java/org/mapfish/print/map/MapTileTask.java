@@ -21,6 +21,7 @@ package org.mapfish.print.map;
 
 import java.io.IOException;
 
+import org.mapfish.print.CancellationToken;
 import org.mapfish.print.RenderingContext;
 import org.pvalsecc.concurrent.OrderedResultsExecutor;
 
@@ -36,8 +37,21 @@ public abstract class MapTileTask implements OrderedResultsExecutor.Task<MapTile
      */
     private Exception readException;
 
+    /**
+     * Tells if the print is still wanted. Set when the task is scheduled, can be null.
+     */
+    private CancellationToken cancellation;
+
+    void setCancellation(CancellationToken cancellation) {
+        this.cancellation = cancellation;
+    }
+
     public MapTileTask process() {
         try {
+            if (cancellation != null) {
+                //don't fetch anything for an abandoned print
+                cancellation.check();
+            }
             readTile();
         } catch (Exception e) {
             readException = e;
@@ -19,8 +19,11 @@
 
 package org.mapfish.print.map;
 
+import org.mapfish.print.CancellationToken;
+import org.mapfish.print.PrintCancelledException;
 import org.mapfish.print.RenderingContext;
 import org.pvalsecc.concurrent.BlockingSimpleTarget;
+import org.pvalsecc.concurrent.OrderedExecutor;
 import org.pvalsecc.concurrent.OrderedResultsExecutor;
 
 import java.util.concurrent.TimeUnit;
@@ -37,18 +40,24 @@ import com.lowagie.text.pdf.PdfContentByte;
  * the shared resources. One of the big ones is the DirectContent (dc) or the
  * PDFWriter. For those, a lock on context.getPdfLock() is used.
  * <p/>
- * This class uses a global {@link org.pvalsecc.concurrent.OrderedResultsExecutor} to
+ * This class uses a global {@link org.pvalsecc.concurrent.OrderedExecutor} to
  * do the things in // and a {@link org.pvalsecc.concurrent.BlockingSimpleTarget} to
  * know when everything is finished.
  */
 public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultCollector<MapTileTask> {
+    /**
+     * The maximum value of the "priority" spec attribute, to avoid a print monopolizing
+     * the map rendering threads.
+     */
+    public static final int MAX_PRIORITY = 10;
+
     private final PdfContentByte dc;
     private RenderingContext context;
 
     /**
      * Reference on the global executor to use.
      */
-    private final OrderedResultsExecutor<MapTileTask> executor;
+    private final OrderedExecutor<MapTileTask> executor;
 
     /**
      * Target used to know when all the tiles are read and rendered.
@@ -60,10 +69,18 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
      */
     private int nbTiles = 0;
 
+    /**
+     * The number of tiles of this print fetched in a row when the map rendering threads
+     * are shared with other prints.
+     */
+    private final int priority;
+
     public ParallelMapTileLoader(RenderingContext context, PdfContentByte dc) {
         executor = context.getConfig().getMapRenderingExecutor();
         this.dc = dc;
         this.context = context;
+        final int specPriority = context.getGlobalParams().optInt("priority", OrderedResultsExecutor.DEFAULT_PRIORITY);
+        this.priority = Math.max(OrderedResultsExecutor.DEFAULT_PRIORITY, Math.min(MAX_PRIORITY, specPriority));
     }
 
     /**
@@ -71,8 +88,9 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
      */
     public void addTileToLoad(MapTileTask task) {
         nbTiles++;
+        task.setCancellation(context.getCancellation());
         if (executor != null) {
-            executor.addTask(task, this);
+            executor.addTask(task, this, priority);
         } else {
             //no parallel loading... do it right away
             task.process();
@@ -81,15 +99,22 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
     }
 
     /**
-     * Wait for all the tiles to be loaded and rendered.
+     * Wait for all the tiles to be loaded and rendered. If the deadline of the print is reached,
+     * the print is cancelled, which aborts the tasks still queued or in flight.
      */
     public void waitForCompletion() {
         target.setTarget(nbTiles);
+        final CancellationToken cancellation = context.getCancellation();
         try {
-            target.waitForCompletion(TimeUnit.MINUTES.toMillis(context.getConfig().getPrintTimeoutMinutes()));
+            //the print-wide deadline (if any)
+            target.waitForCompletion(Math.min(cancellation.getRemainingMillis(), TimeUnit.DAYS.toMillis(1)));
         } catch (TimeoutException e) {
+            cancellation.cancel("the print took more than " + context.getConfig().getPrintTimeoutMinutes() + " minutes");
             throw new RuntimeException(e);
         }
+        if (cancellation.isCancelled()) {
+            throw new RuntimeException(new PrintCancelledException(cancellation.getReason()));
+        }
     }
 
     /**
@@ -98,6 +123,10 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
      */
     public void handle(MapTileTask mapTileTaskResult) {
         try {
+            if (context.getCancellation().isCancelled()) {
+                //no need to render anything
+                return;
+            }
             if (!mapTileTaskResult.handleException(context)) {
                 synchronized (context.getPdfLock()) {  //tiles may be currently loading in another thread
                     dc.saveState();
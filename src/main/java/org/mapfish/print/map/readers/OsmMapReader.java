@@ -99,4 +99,9 @@ public class OsmMapReader extends TileableMapReader {
     public String toString() {
         return layer;
     }
+
+    @Override
+    protected String getDiskCacheLayer() {
+        return layer;
+    }
 }
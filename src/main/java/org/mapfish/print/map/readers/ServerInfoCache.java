@@ -1,25 +1,42 @@
 package org.mapfish.print.map.readers;
 
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.core5.http.HttpEntity;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.mapfish.print.RenderingContext;
+import org.mapfish.print.config.Config;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,96 +44,485 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Contains shared code for loading information from a server and caching it for later use.
+ * <p/>
+ * The information of a server is loaded only once, even if several prints ask for it at the same time (the other
+ * ones wait for the result). It is kept during capabilitiesTtlSeconds (capabilitiesErrorTtlSeconds if the loading
+ * failed). After that and during capabilitiesMaxStaleSeconds, the old information is still used while being
+ * refreshed in the background.
+ * <p/>
+ * If capabilitiesSnapshotDirectory is set, the documents loaded are saved there. After a restart, they are used
+ * (while being refreshed in the background) instead of waiting for the servers.
  *
  * Created by Jesse on 1/17/14.
  */
 public class ServerInfoCache<T extends ServiceInfo> {
-    private final Map<URI, T> cache = Collections.synchronizedMap(new HashMap<URI, T>());
+    private static final ExecutorService REFRESHER = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("capabilitiesRefresh%d").setDaemon(true).build());
+
+    private final ConcurrentMap<URI, Entry<T>> cache = new ConcurrentHashMap<URI, Entry<T>>();
 
     private final ServiceInfoLoader<T> loader;
 
+    /**
+     * Used in the name of the metrics.
+     */
+    private final String name;
+
     public ServerInfoCache(ServiceInfoLoader<T> loader) {
         this.loader = loader;
+        final Class<?> enclosing = loader.getClass().getEnclosingClass();
+        this.name = (enclosing != null ? enclosing : loader.getClass()).getSimpleName();
     }
 
-    public synchronized void clearCache() {
+    public void clearCache() {
         cache.clear();
     }
 
-    public synchronized final T getInfo(URI uri, RenderingContext context) {
-        T result = cache.get(uri);
-        if (result == null) {
-            try {
-                result = requestInfo(uri, context);
-            } catch (Exception e) {
-                loader.logger().info("Error while getting capabilities for "+uri+". The print module will assume it's a standard WMS.");
-                String stackTrace = "";
-                for (StackTraceElement el : e.getStackTrace()) {
-                    stackTrace += el.toString() +"\n";
+    public final T getInfo(URI uri, RenderingContext context) {
+        final Config config = context.getConfig();
+        while (true) {
+            Entry<T> entry = cache.get(uri);
+            if (entry == null) {
+                final Entry<T> newEntry = new Entry<T>();
+                entry = cache.putIfAbsent(uri, newEntry);
+                if (entry == null) {
+                    meter(config, "misses").mark();
+                    return load(uri, newEntry, context);
+                }
+            }
+
+            if (!entry.future.isDone()) {
+                //someone else is loading it
+                meter(config, "hits").mark();
+                try {
+                    return entry.future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return loader.createNewErrorResult();
+                } catch (ExecutionException e) {
+                    //the loading was abandoned, try again
+                    continue;
                 }
-                loader.logger().info(stackTrace);
-                result = loader.createNewErrorResult();
             }
-            if (loader.logger().isDebugEnabled()) {
-                loader.logger().debug("GetCapabilities " + uri + ": " + result);
+
+            final long age = System.currentTimeMillis() - entry.loadedAt;
+            final long ttl = TimeUnit.SECONDS.toMillis(entry.error ?
+                    config.getCapabilitiesErrorTtlSeconds() : config.getCapabilitiesTtlSeconds());
+            if (age <= ttl && !entry.fromSnapshot) {
+                meter(config, "hits").mark();
+                return entry.future.getNow(null);
+            }
+            if (!entry.error && age <= ttl + TimeUnit.SECONDS.toMillis(config.getCapabilitiesMaxStaleSeconds())) {
+                meter(config, "stale").mark();
+                refresh(uri, entry, context);
+                return entry.future.getNow(null);
+            }
+
+            final Entry<T> newEntry = new Entry<T>();
+            if (cache.replace(uri, entry, newEntry)) {
+                meter(config, "misses").mark();
+                return load(uri, newEntry, context);
             }
-            cache.put(uri, result);
         }
+    }
+
+    /**
+     * Load the information in the calling thread and publish it in the given entry.
+     */
+    private T load(URI uri, Entry<T> entry, RenderingContext context) {
+        if (loadSnapshot(uri, entry, context.getConfig())) {
+            refresh(uri, entry, context);
+            return entry.future.getNow(null);
+        }
+
+        T result;
+        boolean error = false;
+        try {
+            result = timedRequestInfo(new Request(uri, context));
+        } catch (InterruptedIOException e) {
+            //the print was cancelled, that says nothing about the server
+            cache.remove(uri, entry);
+            entry.future.completeExceptionally(e);
+            return loader.createNewErrorResult();
+        } catch (Exception e) {
+            logError(uri, e);
+            result = loader.createNewErrorResult();
+            error = true;
+        } catch (Error e) {
+            cache.remove(uri, entry);
+            entry.future.completeExceptionally(e);
+            throw e;
+        }
+        if (loader.logger().isDebugEnabled()) {
+            loader.logger().debug("GetCapabilities " + uri + ": " + result);
+        }
+        entry.complete(result, error);
         return result;
+    }
+
+    /**
+     * Load the information again in the background. The stale entry is kept if that fails.
+     * <p/>
+     * The context of the print is not kept by the background task (it would keep its document alive), only what is
+     * needed for the request.
+     */
+    private void refresh(final URI uri, final Entry<T> stale, RenderingContext context) {
+        if (System.currentTimeMillis() < stale.nextRefresh || !stale.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        final Request request;
+        try {
+            request = new Request(uri, context);
+        } catch (Exception e) {
+            logError(uri, e);
+            stale.nextRefresh = System.currentTimeMillis() +
+                    TimeUnit.SECONDS.toMillis(context.getConfig().getCapabilitiesErrorTtlSeconds());
+            stale.refreshing.set(false);
+            return;
+        }
+        try {
+            REFRESHER.execute(new Runnable() {
+                public void run() {
+                    try {
+                        final Entry<T> fresh = new Entry<T>();
+                        fresh.complete(timedRequestInfo(request), false);
+                        cache.replace(uri, stale, fresh);
+                    } catch (Exception e) {
+                        logError(uri, e);
+                        stale.nextRefresh = System.currentTimeMillis() +
+                                TimeUnit.SECONDS.toMillis(request.config.getCapabilitiesErrorTtlSeconds());
+                    } finally {
+                        stale.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stale.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Publish the saved document of the server in the given entry, if there is one young enough.
+     *
+     * @return true if it was the case.
+     */
+    private boolean loadSnapshot(URI uri, Entry<T> entry, Config config) {
+        final File file = getSnapshotFile(uri, config);
+        if (file == null || !file.isFile()) {
+            return false;
+        }
+        final long loadedAt = file.lastModified();
+        final long maxAge = TimeUnit.SECONDS.toMillis(
+                config.getCapabilitiesTtlSeconds() + (long) config.getCapabilitiesMaxStaleSeconds());
+        if (System.currentTimeMillis() - loadedAt > maxAge) {
+            return false;
+        }
+        try {
+            final T result;
+            final InputStream stream = new BufferedInputStream(new FileInputStream(file));
+            try {
+                result = loader.parseInfo(stream);
+            } finally {
+                stream.close();
+            }
+            meter(config, "snapshots").mark();
+            entry.completeFromSnapshot(result, loadedAt);
+            return true;
+        } catch (Exception e) {
+            loader.logger().warn("Cannot read the capabilities snapshot " + file + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Parse the document, saving it in the snapshot directory (if configured) at the same time.
+     */
+    private T parseInfo(InputStream stream, URI uri, Config config) throws ParserConfigurationException, IOException, SAXException {
+        final File snapshot = getSnapshotFile(uri, config);
+        File part = null;
+        OutputStream copy = null;
+        if (snapshot != null) {
+            try {
+                final File directory = snapshot.getParentFile();
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create the directory " + directory);
+                }
+                part = File.createTempFile(snapshot.getName(), ".part", directory);
+                copy = new FileOutputStream(part);
+            } catch (IOException e) {
+                loader.logger().warn("Cannot save the capabilities of " + uri + ": " + e);
+                if (part != null && !part.delete()) {
+                    loader.logger().warn("Cannot delete file:" + part.getAbsolutePath());
+                }
+            }
+        }
+        if (copy == null) {
+            return loader.parseInfo(stream);
+        }
+
+        boolean saved = false;
+        try {
+            final CopyingInputStream copying = new CopyingInputStream(stream, copy);
+            final T result = loader.parseInfo(copying);
+            //what is after the root element
+            ByteStreams.exhaust(copying);
+            copy.close();
+            if (copying.isComplete()) {
+                try {
+                    Files.move(part.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    saved = true;
+                } catch (IOException e) {
+                    loader.logger().warn("Cannot save the capabilities of " + uri + ": " + e);
+                }
+            }
+            return result;
+        } finally {
+            if (!saved) {
+                try {
+                    copy.close();
+                } catch (IOException ignored) {
+                    //already failed
+                }
+                if (!part.delete()) {
+                    loader.logger().warn("Cannot delete file:" + part.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null if the snapshots are disabled.
+     */
+    private File getSnapshotFile(URI uri, Config config) {
+        final String directory = config.getCapabilitiesSnapshotDirectory();
+        if (directory == null) {
+            return null;
+        }
+        return new File(directory, name + "-" + hash(uri.toString()) + ".xml");
+    }
+
+    private static String hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder result = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private T timedRequestInfo(Request request) throws IOException, ParserConfigurationException, SAXException {
+        final Timer.Context timer = request.config.getMetricRegistry().timer(
+                MetricRegistry.name(ServerInfoCache.class, name, "load-time")).time();
+        try {
+            return requestInfo(request);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private Meter meter(Config config, String type) {
+        return config.getMetricRegistry().meter(MetricRegistry.name(ServerInfoCache.class, name, type));
+    }
+
+    private void logError(URI uri, Exception e) {
+        loader.logger().info("Error while getting capabilities for "+uri+". The print module will assume it's a standard WMS.");
+        String stackTrace = "";
+        for (StackTraceElement el : e.getStackTrace()) {
+            stackTrace += el.toString() +"\n";
+        }
+        loader.logger().info(stackTrace);
+    }
+
+    /**
+     * What is needed to load the information of one server, taken from the context of the print asking for it.
+     */
+    private final class Request {
+        private final URI baseUrl;
+        private final URL url;
+        private final Config config;
+        private final Map<String, String> headers;
 
+        private Request(URI baseUrl, RenderingContext context) throws UnsupportedEncodingException, URISyntaxException,
+                MalformedURLException {
+            this.baseUrl = baseUrl;
+            this.url = loader.createURL(baseUrl, context);
+            this.config = context.getConfig();
+            this.headers = Collections.unmodifiableMap(new HashMap<String, String>(context.getHeaders()));
+        }
     }
 
+    /**
+     * The information of one server, being loaded or loaded.
+     */
+    private static final class Entry<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private volatile long loadedAt;
+        private volatile boolean error;
+        /**
+         * True if read from a snapshot. It is then refreshed whatever its age.
+         */
+        private volatile boolean fromSnapshot = false;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+        /**
+         * Don't try to refresh before this time (a refresh just failed).
+         */
+        private volatile long nextRefresh = 0L;
+
+        private void complete(T value, boolean error) {
+            this.loadedAt = System.currentTimeMillis();
+            this.error = error;
+            future.complete(value);
+        }
+
+        private void completeFromSnapshot(T value, long loadedAt) {
+            this.loadedAt = loadedAt;
+            this.fromSnapshot = true;
+            future.complete(value);
+        }
+    }
+
+    /**
+     * Writes what is read to a stream. The failures of this stream are ignored (it stops being written).
+     */
+    private final class CopyingInputStream extends FilterInputStream {
+        private OutputStream copy;
+        private boolean complete = true;
+
+        private CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0 && copy != null) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    copyFailed(e);
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int nb = in.read(b, off, len);
+            if (nb > 0 && copy != null) {
+                try {
+                    copy.write(b, off, nb);
+                } catch (IOException e) {
+                    copyFailed(e);
+                }
+            }
+            return nb;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            //must go through the copy
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            final int nb = read(buffer, 0, buffer.length);
+            return Math.max(nb, 0);
+        }
 
-    private T requestInfo(URI baseUrl, RenderingContext context) throws IOException, URISyntaxException, ParserConfigurationException, SAXException {
-        URL url = loader.createURL(baseUrl, context);
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {
+        }
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        private void copyFailed(IOException e) {
+            loader.logger().warn("Cannot write the capabilities snapshot: " + e);
+            complete = false;
+            copy = null;
+        }
+
+        /**
+         * @return false if the copy failed.
+         */
+        private boolean isComplete() {
+            return complete;
+        }
+    }
 
-        HttpGet request;
+    private T requestInfo(Request request) throws IOException, ParserConfigurationException, SAXException {
+        final URI baseUrl = request.baseUrl;
+        final URL url = request.url;
+        final Config config = request.config;
 
-        MetricRegistry registry = context.getConfig().getMetricRegistry();
+
+        MetricRegistry registry = config.getMetricRegistry();
         final com.codahale.metrics.Timer.Context timer = registry.timer("http_" + url.getAuthority()).time();
         try {
             final InputStream stream;
 
             if ((url.getProtocol().equals("http") || url.getProtocol().equals("https")) &&
-                context.getConfig().localHostForwardIsFrom(url.getHost())) {
+                config.localHostForwardIsFrom(url.getHost())) {
                 String scheme = url.getProtocol();
                 final String host = url.getHost();
                 if (url.getProtocol().equals("https") &&
-                    context.getConfig().localHostForwardIsHttps2http()) {
+                    config.localHostForwardIsHttps2http()) {
                     scheme = "http";
                 }
                 URL localUrl = new URL(scheme, "localhost", url.getPort(),
                         url.getFile());
                 HttpURLConnection connexion = (HttpURLConnection)localUrl.openConnection();
                 connexion.setRequestProperty("Host", host);
-                for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+                for (Map.Entry<String, String> entry : request.headers.entrySet()) {
                     connexion.setRequestProperty(entry.getKey(), entry.getValue());
                 }
                 stream = connexion.getInputStream();
             }
             else {
-                request = new HttpGet(url.toString());
-                for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
-                    request.addHeader(entry.getKey(), entry.getValue());
+                HttpGet httpGet = new HttpGet(url.toString());
+                for (Map.Entry<String, String> entry : request.headers.entrySet()) {
+                    httpGet.addHeader(entry.getKey(), entry.getValue());
                 }
-                HttpClientContext clientContext = context.getConfig().getHttpClientContext(baseUrl);
-                try(CloseableHttpResponse response = context.getConfig().getHttpClient(baseUrl).execute(request, clientContext)) {
+                HttpClientContext clientContext = config.getHttpClientContext(baseUrl);
+                try(CloseableHttpResponse response = config.getHttpClient(baseUrl).execute(httpGet, clientContext)) {
                     int code = response.getCode();
                     String reason = response.getReasonPhrase();
                     if (code < 200 || code >= 300) {
                         throw new IOException("Error " + code + " while reading the Capabilities from " + url + ": " + reason);
                     }
                     stream = response.getEntity().getContent();
-                    return loader.parseInfo(stream);
+                    return parseInfo(stream, baseUrl, config);
                 }
             }
             final T result;
             try {
-                result = loader.parseInfo(stream);
+                result = parseInfo(stream, baseUrl, config);
             } finally {
                 stream.close();
             }
@@ -135,6 +541,90 @@ public class ServerInfoCache<T extends ServiceInfo> {
 
         public abstract T parseInfo(InputStream stream) throws ParserConfigurationException, IOException, SAXException;
 
+        /**
+         * Create a streaming reader on a document. Unlike with a DOM, the document is never fully in memory.
+         */
+        public static XMLStreamReader createStreamReader(InputStream stream) throws XMLStreamException {
+            return ServiceInfo.xmlInputFactory.createXMLStreamReader(stream);
+        }
+
+        /**
+         * Read the text content of the current element of the reader, including the text of its descendants (like
+         * {@link Node#getTextContent()}). The reader is left on the end of the element.
+         *
+         * @param reader a reader on a start element
+         */
+        public static String readTextContent(XMLStreamReader reader) throws XMLStreamException {
+            final StringBuilder text = new StringBuilder();
+            int depth = 1;
+            while (depth > 0) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        text.append(reader.getText());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return text.toString();
+        }
+
+        /**
+         * Read the text content of the children of the current element of the reader. Only the first child of each
+         * name is kept and the namespaces are ignored. The reader is left on the end of the element.
+         *
+         * @param reader a reader on a start element
+         * @return the text by child name
+         */
+        public static Map<String, String> readChildrenText(XMLStreamReader reader) throws XMLStreamException {
+            final Map<String, String> result = new HashMap<String, String>();
+            int event;
+            while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT) {
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    final String text = readTextContent(reader);
+                    if (!result.containsKey(name)) {
+                        result.put(name, text);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Get a text read by {@link #readChildrenText(XMLStreamReader)} or return default value if the child does not
+         * exist or is empty.
+         */
+        public static String getChildText(Map<String, String> children, String tagName, String defaultValue) {
+            final String text = children.get(tagName);
+            if (text == null || text.trim().isEmpty()) {
+                return defaultValue;
+            }
+            return text;
+        }
+
+        /**
+         * Get a text read by {@link #readChildrenText(XMLStreamReader)}. An exception is thrown if the child does not
+         * exist or is empty.
+         *
+         * @param elementName the name of the parent element, for the error message
+         */
+        public static String getRequiredChildText(Map<String, String> children, String tagName, String elementName) {
+            final String result = getChildText(children, tagName, null);
+            if (result == null) {
+                throw new NoSuchElementException("No child "+tagName+" was found in element "+elementName);
+            }
+            return result;
+        }
+
 
         /**
          * Get the text content of the _child_ element or return default value if element does not exist. An exception is thrown
@@ -2,6 +2,7 @@ package org.mapfish.print.map.readers;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
 
 /**
  * Represents data loaded from a server that describes the service
@@ -12,6 +13,8 @@ public class ServiceInfo {
 
     protected final static DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 
+    protected final static XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
     // Features to disable for protection against external entity injection
     private final static String[] featuresToDisable = {
             "http://xml.org/sax/features/external-general-entities",
@@ -28,6 +31,11 @@ public class ServiceInfo {
             }
         }
         documentBuilderFactory.setValidating(false);  //doesn't work?!?!?
+
+        // the DTDs are not needed and must not be loaded
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
     }
 
 }
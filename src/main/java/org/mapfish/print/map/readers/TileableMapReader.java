@@ -128,7 +128,15 @@ public abstract class TileableMapReader extends HTTPMapReader {
             bitmapTileH = transformer.getRotatedBitmapH();
             urls.add(getTileUri(commonUri, transformer, minGeoX, minGeoY, maxGeoX, maxGeoY, bitmapTileW, bitmapTileH));
         }
-        formatter.render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesW, offsetX, offsetY, bitmapTileW, bitmapTileH);
+        formatter.render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesW, offsetX, offsetY, bitmapTileW, bitmapTileH,
+                getDiskCacheLayer());
+    }
+
+    /**
+     * @return the name under which the tiles can be stored in the disk tile cache, null if they must not be.
+     */
+    protected String getDiskCacheLayer() {
+        return null;
     }
 
     /**
@@ -134,4 +134,9 @@ public class TmsMapReader extends TileableMapReader {
     public String toString() {
         return layer;
     }
+
+    @Override
+    protected String getDiskCacheLayer() {
+        return layer;
+    }
 }
@@ -24,12 +24,18 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -105,8 +111,83 @@ public class WMSServiceInfo extends ServiceInfo {
             return url;
         }
 
+        /**
+         * Parse the capabilities while streaming them, keeping only what is needed for the TileCache layers.
+         */
         @Override
-        public WMSServiceInfo parseInfo(InputStream stream) throws ParserConfigurationException, IOException, SAXException {
+        public WMSServiceInfo parseInfo(InputStream stream) throws IOException {
+            try {
+                final XMLStreamReader reader = createStreamReader(stream);
+                try {
+                    return parseInfo(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Cannot parse the capabilities: " + e.getMessage(), e);
+            }
+        }
+
+        private WMSServiceInfo parseInfo(XMLStreamReader reader) throws XMLStreamException {
+            final List<Map<String, String>> tileSets = new ArrayList<Map<String, String>>();
+            //all the layers, in document order
+            final List<LayerSummary> layers = new ArrayList<LayerSummary>();
+            final Deque<LayerSummary> openLayers = new ArrayDeque<LayerSummary>();
+            int depth = 0;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    final String name = reader.getLocalName();
+                    final LayerSummary parent = openLayers.peek();
+                    if (name.equals("TileSet")) {
+                        tileSets.add(readChildrenText(reader));
+                        depth--;
+                    } else if (name.equals("Layer")) {
+                        final LayerSummary layer = new LayerSummary(depth);
+                        layers.add(layer);
+                        openLayers.push(layer);
+                    } else if (parent != null && parent.depth == depth - 1) {
+                        if (name.equals("Name") && parent.name == null) {
+                            parent.name = readTextContent(reader);
+                            depth--;
+                        } else if (name.equals("BoundingBox") && parent.minX == null) {
+                            parent.minX = reader.getAttributeValue(null, "minx");
+                            parent.minY = reader.getAttributeValue(null, "miny");
+                            parent.maxX = reader.getAttributeValue(null, "maxx");
+                            parent.maxY = reader.getAttributeValue(null, "maxy");
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (!openLayers.isEmpty() && openLayers.peek().depth == depth) {
+                        openLayers.pop();
+                    }
+                    depth--;
+                }
+            }
+
+            final WMSServiceInfo result = new WMSServiceInfo();
+            for (int i = 0; i < tileSets.size(); ++i) {
+                final Map<String, String> tileSet = tileSets.get(i);
+                final LayerSummary layer = layers.get(i + 1);
+                int width = Integer.parseInt(tileSet.get("Width"));
+                int height = Integer.parseInt(tileSet.get("Height"));
+                float minX = Float.parseFloat(layer.minX);
+                float minY = Float.parseFloat(layer.minY);
+                float maxX = Float.parseFloat(layer.maxX);
+                float maxY = Float.parseFloat(layer.maxY);
+                final TileCacheLayerInfo info = new TileCacheLayerInfo(tileSet.get("Resolutions"), width, height,
+                        minX, minY, maxX, maxY, tileSet.get("Format"));
+                result.tileCacheLayers.put(layer.name, info);
+            }
+            return result;
+        }
+
+        /**
+         * Parse the capabilities by building their DOM. Gives the same result as {@link #parseInfo(InputStream)}
+         * but needs a lot more memory for big documents. Kept as a reference for the tests and benchmarks.
+         */
+        WMSServiceInfo parseInfoWithDom(InputStream stream) throws ParserConfigurationException, IOException, SAXException {
             DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
 
             //we don't want the DTD to be checked and it's the only way I found
@@ -146,4 +227,20 @@ public class WMSServiceInfo extends ServiceInfo {
 
             return result;        }
     }
+
+    /**
+     * What is needed of a layer while streaming the capabilities.
+     */
+    private static final class LayerSummary {
+        private final int depth;
+        private String name;
+        private String minX;
+        private String minY;
+        private String maxX;
+        private String maxY;
+
+        private LayerSummary(int depth) {
+            this.depth = depth;
+        }
+    }
 }
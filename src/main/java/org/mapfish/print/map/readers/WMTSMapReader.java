@@ -295,6 +295,11 @@ public class WMTSMapReader extends TileableMapReader {
         return layer;
     }
 
+    @Override
+    protected String getDiskCacheLayer() {
+        return layer;
+    }
+
     private enum WMTSRequestEncoding {
         KVP, REST
     }
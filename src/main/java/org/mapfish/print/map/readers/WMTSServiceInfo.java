@@ -33,6 +33,9 @@ import org.xml.sax.SAXException;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
@@ -103,8 +106,148 @@ public class WMTSServiceInfo extends ServiceInfo {
             return url;
         }
 
+        /**
+         * Parse the capabilities while streaming them, keeping only what is needed for the layers.
+         */
         @Override
-        public WMTSServiceInfo parseInfo(InputStream stream) throws ParserConfigurationException, IOException, SAXException {
+        public WMTSServiceInfo parseInfo(InputStream stream) throws IOException {
+            try {
+                final XMLStreamReader reader = createStreamReader(stream);
+                try {
+                    return parseInfo(reader);
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Cannot parse the capabilities: " + e.getMessage(), e);
+            }
+        }
+
+        private WMTSServiceInfo parseInfo(XMLStreamReader reader) throws XMLStreamException {
+            final WMTSServiceInfo result = new WMTSServiceInfo();
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("Layer")) {
+                    try {
+                        final WmtsCapabilitiesInfo layer = readLayer(reader);
+                        result.tileCacheLayers.put(layer.getIdentifier(), layer);
+                    } catch (NoSuchElementException e) {
+                        LOGGER.warn(e.getMessage(), e);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Read a layer up to its end.
+         *
+         * @throws NoSuchElementException if a mandatory element is missing (once the layer is read)
+         */
+        private static WmtsCapabilitiesInfo readLayer(XMLStreamReader reader) throws XMLStreamException {
+            final Map<String, String> children = new HashMap<String, String>();
+            final ArrayList<String> formats = new ArrayList<String>();
+            Map<String, String> bbox = null;
+            final Map<String, TileMatrixSet> tileMatrices = new HashMap<String, TileMatrixSet>();
+            NoSuchElementException error = null;
+            int depth = 1;
+            while (depth > 0) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("TileMatrixSetLink")) {
+                        try {
+                            final TileMatrixSet tileMatrixSet = readTileMatrixSetLink(reader);
+                            tileMatrices.put(tileMatrixSet.id, tileMatrixSet);
+                        } catch (NoSuchElementException e) {
+                            if (error == null) {
+                                error = e;
+                            }
+                        }
+                    } else if (depth == 1 && name.equals("WGS84BoundingBox")) {
+                        if (bbox == null) {
+                            bbox = readChildrenText(reader);
+                        } else {
+                            readTextContent(reader);
+                        }
+                    } else if (depth == 1 && name.equals("Format")) {
+                        final String format = readTextContent(reader);
+                        if (!format.trim().isEmpty()) {
+                            formats.add(format);
+                        }
+                    } else if (depth == 1 && (name.equals("Identifier") || name.equals("Title"))) {
+                        final String text = readTextContent(reader);
+                        if (!children.containsKey(name)) {
+                            children.put(name, text);
+                        }
+                    } else {
+                        depth++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+
+            String identifier = getRequiredChildText(children, "Identifier", "Layer");
+            if (error != null) {
+                throw error;
+            }
+            String title = getChildText(children, "Title", identifier);
+            if (bbox == null) {
+                bbox = Collections.emptyMap();
+            }
+            final String[] lowerCorner = getChildText(bbox, "LowerCorner", "-180 -90").split(" ");
+            final String[] upperCorner = getChildText(bbox, "UpperCorner", "180 90").split(" ");
+            final Envelope bounds = new Envelope(Double.parseDouble(lowerCorner[0]), Double.parseDouble(upperCorner[0]),
+                    Double.parseDouble(lowerCorner[1]), Double.parseDouble(upperCorner[1]));
+            return new WmtsCapabilitiesInfo(identifier, title, formats, bounds, tileMatrices);
+        }
+
+        /**
+         * Read a TileMatrixSetLink up to its end.
+         */
+        private static TileMatrixSet readTileMatrixSetLink(XMLStreamReader reader) throws XMLStreamException {
+            String id = null;
+            final List<Map<String, String>> limits = new ArrayList<Map<String, String>>();
+            int depth = 1;
+            while (depth > 0) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if (name.equals("TileMatrixLimits")) {
+                        limits.add(readChildrenText(reader));
+                    } else if (depth == 1 && name.equals("TileMatrixSet")) {
+                        final String text = readTextContent(reader);
+                        if (id == null) {
+                            id = text;
+                        }
+                    } else {
+                        depth++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+
+            if (id == null || id.trim().isEmpty()) {
+                throw new NoSuchElementException("No child TileMatrixSet was found in element TileMatrixSetLink");
+            }
+            final Map<String, TileMatrixLimit> tmpLimits = new HashMap<String, TileMatrixLimit>();
+            for (Map<String, String> limit : limits) {
+                final String limitId = getRequiredChildText(limit, "TileMatrix", "TileMatrixLimits");
+                tmpLimits.put(limitId, new TileMatrixLimit(limitId,
+                        Integer.parseInt(getRequiredChildText(limit, "MinTileRow", "TileMatrixLimits")),
+                        Integer.parseInt(getRequiredChildText(limit, "MaxTileRow", "TileMatrixLimits")),
+                        Integer.parseInt(getRequiredChildText(limit, "MinTileCol", "TileMatrixLimits")),
+                        Integer.parseInt(getRequiredChildText(limit, "MaxTileCol", "TileMatrixLimits"))));
+            }
+            return new TileMatrixSet(id, tmpLimits);
+        }
+
+        /**
+         * Parse the capabilities by building their DOM. Gives the same result as {@link #parseInfo(InputStream)}
+         * but needs a lot more memory for big documents. Kept as a reference for the tests and benchmarks.
+         */
+        WMTSServiceInfo parseInfoWithDom(InputStream stream) throws ParserConfigurationException, IOException, SAXException {
             DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
 
             //we don't want the DTD to be checked and it's the only way I found
@@ -168,6 +311,11 @@ public class WMTSServiceInfo extends ServiceInfo {
             }
             this.limits = Collections.unmodifiableMap(tmpLimits);
         }
+
+        public TileMatrixSet(String id, Map<String, TileMatrixLimit> limits) {
+            this.id = id;
+            this.limits = Collections.unmodifiableMap(limits);
+        }
     }
 
     static class TileMatrixLimit {
@@ -185,5 +333,13 @@ public class WMTSServiceInfo extends ServiceInfo {
             MinTileCol = Integer.parseInt(getTextContentOfChild(el, "MinTileCol"));
             MaxTileCol = Integer.parseInt(getTextContentOfChild(el, "MaxTileCol"));
         }
+
+        public TileMatrixLimit(String id, int minTileRow, int maxTileRow, int minTileCol, int maxTileCol) {
+            this.id = id;
+            MinTileRow = minTileRow;
+            MaxTileRow = maxTileRow;
+            MinTileCol = minTileCol;
+            MaxTileCol = maxTileCol;
+        }
     }
 }
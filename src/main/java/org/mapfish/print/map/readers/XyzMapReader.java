@@ -127,6 +127,11 @@ public class XyzMapReader extends TileableMapReader {
         return layer;
     }
 
+    @Override
+    protected String getDiskCacheLayer() {
+        return layer;
+    }
+
     private void url_regex_replace(String needle, StringBuilder haystack, Object replaceValue) {
         Pattern pattern = Pattern.compile("\\$\\{("+needle+"+)\\}");
         Matcher matcher = pattern.matcher(haystack);
@@ -21,6 +21,7 @@ package org.mapfish.print.map.renderers;
 
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
@@ -45,8 +46,15 @@ public class BitmapTileRenderer extends TileRenderer {
     private static final Log LOGGER = LogFactory.getLog(BitmapTileRenderer.class);
 
     public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, final RenderingContext context, final float opacity, int nbTilesHorizontal, double offsetX, double offsetY, final long bitmapTileW, final long bitmapTileH) throws IOException {
+        render(transformer, uris, parallelMapTileLoader, context, opacity, nbTilesHorizontal, offsetX, offsetY, bitmapTileW, bitmapTileH, null);
+    }
+
+    @Override
+    public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, final RenderingContext context, final float opacity, int nbTilesHorizontal, double offsetX, double offsetY, final long bitmapTileW, final long bitmapTileH, final String diskCacheLayer) throws IOException {
         final AffineTransform bitmapTransformer = transformer.getBitmapTransform();
         final double rotation = transformer.getRotation();
+        final TileComposite composite = createComposite(transformer, uris, context, nbTilesHorizontal, offsetX, offsetY,
+                bitmapTileW, bitmapTileH);
 
         for (int i = 0; i < uris.size(); i++) {
             final URI uri = uris.get(i);
@@ -70,22 +78,66 @@ public class BitmapTileRenderer extends TileRenderer {
                 public Image map;
 
                 protected void readTile() throws IOException, DocumentException {
-                    map = PDFUtils.getImage(context, uri, bitmapTileW, bitmapTileH);
+                    if (composite != null) {
+                        final BufferedImage bitmap = PDFUtils.getTileBitmap(context, uri, diskCacheLayer);
+                        if (bitmap != null) {
+                            composite.draw(bitmap, posX, posY, bitmapTileW, bitmapTileH);
+                            return;
+                        }
+                        //errors and co. are dealt with as usual
+                    }
+                    map = PDFUtils.getTileImage(context, uri, bitmapTileW, bitmapTileH, diskCacheLayer);
                     map.setAbsolutePosition((float) posX, (float) posY);
                 }
 
                 protected void renderOnPdf(PdfContentByte dc) throws DocumentException {
-                    dc.transform(bitmapTransformer);
-                    if (opacity < 1.0) {
-                        PdfGState gs = new PdfGState();
-                        gs.setFillOpacity(opacity);
-                        gs.setStrokeOpacity(opacity);
-                        dc.setGState(gs);
+                    if (map != null) {
+                        addImage(dc, map, bitmapTransformer, opacity);
                     }
-                    dc.addImage(map);
                 }
             });
         }
+
+        if (composite != null) {
+            //scheduled after the tiles, so rendered once they have all been drawn
+            parallelMapTileLoader.addTileToLoad(new MapTileTask.RenderOnly() {
+                protected void renderOnPdf(PdfContentByte dc) throws DocumentException {
+                    addImage(dc, composite.toImage(), bitmapTransformer, opacity);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return null if the tiles must be added one by one to the PDF.
+     */
+    private TileComposite createComposite(Transformer transformer, List<URI> uris, RenderingContext context,
+                                          int nbTilesHorizontal, double offsetX, double offsetY, long bitmapTileW,
+                                          long bitmapTileH) {
+        final int maxMegaBytes = context.getConfig().getTileCompositingMaxMegaBytes();
+        if (maxMegaBytes <= 0 || uris.size() < 2) {
+            return null;
+        }
+        final int nbTilesVertical = (uris.size() + nbTilesHorizontal - 1) / nbTilesHorizontal;
+        final TileComposite result = TileComposite.create(-offsetX, -offsetY,
+                -offsetX + nbTilesHorizontal * bitmapTileW, -offsetY + nbTilesVertical * bitmapTileH,
+                transformer.getRotatedBitmapW(), transformer.getRotatedBitmapH(), maxMegaBytes * 1024L * 1024L);
+        if (result == null && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Too big to be composited, adding the " + uris.size() + " tiles one by one");
+        }
+        return result;
+    }
+
+    private static void addImage(PdfContentByte dc, Image image, AffineTransform bitmapTransformer, float opacity)
+            throws DocumentException {
+        dc.transform(bitmapTransformer);
+        if (opacity < 1.0) {
+            PdfGState gs = new PdfGState();
+            gs.setFillOpacity(opacity);
+            gs.setStrokeOpacity(opacity);
+            dc.setGState(gs);
+        }
+        dc.addImage(image);
     }
 
     private boolean isTileVisible(double x, double y, long w, long h, AffineTransform bitmapTransformer, Transformer transformer) {
@@ -35,6 +35,7 @@ import org.mapfish.print.RenderingContext;
 import org.mapfish.print.Transformer;
 import org.mapfish.print.map.MapTileTask;
 import org.mapfish.print.map.ParallelMapTileLoader;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
 
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.pdf.PdfContentByte;
@@ -66,7 +67,9 @@ public class PDFTileRenderer extends TileRenderer {
                     }
                 }
 
-                try (InputStream in = connection.getInputStream()) {
+                final HostConcurrencyLimiter limiter = context.getConfig().getHostConcurrencyLimiter();
+                try (HostConcurrencyLimiter.Permit permit = limiter != null ? limiter.acquire(uri, context.getCancellation()) : null;
+                     InputStream in = connection.getInputStream()) {
 
                     PdfReader reader = new PdfReader(in);
                     synchronized (context.getPdfLock()) {
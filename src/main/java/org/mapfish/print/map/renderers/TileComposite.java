@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.map.renderers;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.Image;
+
+/**
+ * The tiles of a layer assembled into a single bitmap, in order to add only one image to the PDF.
+ * <p/>
+ * Works in the bitmap coordinates of the tile renderers (pixels at the map's DPI, Y going up) and
+ * only keeps the part of the tiles that is within the map.
+ */
+final class TileComposite {
+    /**
+     * Memory used by a pixel while converting: the ARGB bitmap (4 bytes) is still alive when its RGB (3 bytes) and
+     * alpha (1 byte) copies are made by {@link #toImage()}.
+     */
+    private static final int BYTES_PER_PIXEL = 8;
+
+    private final BufferedImage bitmap;
+    private final int originX;
+    private final int originY;
+
+    private TileComposite(int originX, int originY, int width, int height) {
+        this.originX = originX;
+        this.originY = originY;
+        this.bitmap = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * @param minX      left of the tile grid
+     * @param minY      bottom of the tile grid
+     * @param maxX      right of the tile grid
+     * @param maxY      top of the tile grid
+     * @param mapW      width of the map
+     * @param mapH      height of the map
+     * @param maxBytes  maximum memory used by the bitmap and its conversion to a PDF image
+     * @return null if the bitmap would be too big or empty.
+     */
+    static TileComposite create(double minX, double minY, double maxX, double maxY, long mapW, long mapH,
+                                long maxBytes) {
+        final int left = (int) Math.floor(Math.max(minX, 0.0));
+        final int bottom = (int) Math.floor(Math.max(minY, 0.0));
+        final long right = (long) Math.ceil(Math.min(maxX, mapW));
+        final long top = (long) Math.ceil(Math.min(maxY, mapH));
+        final long width = right - left;
+        final long height = top - bottom;
+        if (width <= 0 || height <= 0 || width * height * BYTES_PER_PIXEL > Math.min(maxBytes, Integer.MAX_VALUE)) {
+            return null;
+        }
+        return new TileComposite(left, bottom, (int) width, (int) height);
+    }
+
+    /**
+     * Paint a tile, scaling it to the given size if needed. Can be called from several threads.
+     *
+     * @param x left of the tile
+     * @param y bottom of the tile
+     */
+    void draw(BufferedImage tile, double x, double y, long w, long h) {
+        final int left = (int) Math.round(x - originX);
+        final int top = (int) Math.round(originY + bitmap.getHeight() - (y + h));
+        synchronized (bitmap) {
+            final Graphics2D graphics = bitmap.createGraphics();
+            try {
+                if (tile.getWidth() != w || tile.getHeight() != h) {
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                }
+                graphics.drawImage(tile, left, top, (int) w, (int) h, null);
+            } finally {
+                graphics.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the composite as an iText image placed at its position in the bitmap coordinates.
+     *         The alpha channel is only added if some pixels are not opaque.
+     */
+    Image toImage() throws DocumentException {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final byte[] rgb = new byte[width * height * 3];
+        final byte[] alpha = new byte[width * height];
+        boolean opaque = true;
+        synchronized (bitmap) {
+            final int[] pixels = ((DataBufferInt) bitmap.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) {
+                final int pixel = pixels[i];
+                rgb[i * 3] = (byte) (pixel >> 16);
+                rgb[i * 3 + 1] = (byte) (pixel >> 8);
+                rgb[i * 3 + 2] = (byte) pixel;
+                alpha[i] = (byte) (pixel >>> 24);
+                opaque &= (pixel >>> 24) == 0xFF;
+            }
+        }
+        final Image image = Image.getInstance(width, height, 3, 8, rgb);
+        if (!opaque) {
+            final Image mask = Image.getInstance(width, height, 1, 8, alpha);
+            mask.makeMask();
+            image.setImageMask(mask);
+        }
+        image.setAbsolutePosition(originX, originY);
+        return image;
+    }
+
+    BufferedImage getBitmap() {
+        return bitmap;
+    }
+}
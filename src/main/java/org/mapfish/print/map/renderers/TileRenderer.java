@@ -48,6 +48,16 @@ public abstract class TileRenderer {
     public abstract void render(Transformer transformer, List<URI> urls, ParallelMapTileLoader parallelMapTileLoader, RenderingContext context,
                                 float opacity, int nbTilesHorizontal, double offsetX, double offsetY, long bitmapTileW, long bitmapTileH) throws IOException;
 
+    /**
+     * Same as the other render method, but the tiles can be stored in the disk tile cache under the given
+     * layer name. Only supported by the bitmap renderer, the others ignore the diskCacheLayer.
+     */
+    public void render(Transformer transformer, List<URI> urls, ParallelMapTileLoader parallelMapTileLoader, RenderingContext context,
+                       float opacity, int nbTilesHorizontal, double offsetX, double offsetY, long bitmapTileW, long bitmapTileH,
+                       String diskCacheLayer) throws IOException {
+        render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesHorizontal, offsetX, offsetY, bitmapTileW, bitmapTileH);
+    }
+
     public enum Format {
         BITMAP,
         PDF,
@@ -26,7 +26,8 @@ public abstract class AbstractOutputFormat implements OutputFormat {
             writer.setPdfVersion(PdfWriter.PDF_VERSION_1_5);
             writer.setCompressionLevel(PdfStream.BEST_COMPRESSION);
         }
-        RenderingContext context = new RenderingContext(doc, writer, params.config, params.jsonSpec, params.configDir.getPath(), layout, params.headers);
+        RenderingContext context = new RenderingContext(doc, writer, params.config, params.jsonSpec, params.configDir.getPath(), layout, params.headers,
+                params.cancellation);
 
         layout.render(params.jsonSpec, context);
 
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.Map;
 
+import org.mapfish.print.CancellationToken;
 import org.mapfish.print.config.Config;
 import org.mapfish.print.utils.PJsonObject;
 
@@ -14,14 +15,24 @@ public class PrintParams {
     public PJsonObject jsonSpec;
     public OutputStream outputStream;
     public Map<String, String> headers;
+    /**
+     * Tells if the print is still wanted. Can be null.
+     */
+    public CancellationToken cancellation;
 
     public PrintParams(Config config, File configDir, PJsonObject jsonSpec,
             OutputStream outputStream, Map<String, String> headers) {
+        this(config, configDir, jsonSpec, outputStream, headers, null);
+    }
+
+    public PrintParams(Config config, File configDir, PJsonObject jsonSpec,
+            OutputStream outputStream, Map<String, String> headers, CancellationToken cancellation) {
         this.config = config;
         this.configDir = configDir;
         this.jsonSpec = jsonSpec;
         this.outputStream = outputStream;
         this.headers = headers;
+        this.cancellation = cancellation;
     }
 
     /**
@@ -30,6 +41,6 @@ public class PrintParams {
      * @return Use config to construct new PrintParams with provided output stream
      */
     public PrintParams withOutput(FileOutputStream newOut) {
-        return new PrintParams(config, configDir, jsonSpec, newOut, headers);
+        return new PrintParams(config, configDir, jsonSpec, newOut, headers, cancellation);
     }
 }
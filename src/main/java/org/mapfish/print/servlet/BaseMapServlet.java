@@ -19,7 +19,6 @@
 
 package org.mapfish.print.servlet;
 
-import com.google.common.collect.Maps;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.mapfish.print.MapPrinter;
@@ -31,9 +30,7 @@ import org.springframework.web.context.support.WebApplicationContextUtils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.io.Serial;
-import java.util.Map;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 
@@ -46,8 +43,9 @@ public abstract class BaseMapServlet extends HttpServlet {
 
     public static final Logger LOGGER = LogManager.getLogger(BaseMapServlet.class);
 
-    private final Map<String, MapPrinter> printers = Maps.newHashMap();
-    private final Map<String,Long> lastModifieds = Maps.newHashMap();
+    private static final int DEFAULT_CONFIG_CHECK_INTERVAL_MILLIS = 1000;
+
+    private volatile MapPrinterRegistry registry;
 
     private volatile ApplicationContext context;
 
@@ -60,16 +58,18 @@ public abstract class BaseMapServlet extends HttpServlet {
      * </ul>
      * <p/>
      * If the location is a relative path, it's taken from the servlet's root directory.
+     * <p/>
+     * The returned printer is started and must be stopped once done. The modifications of the
+     * configuration file are taken into account within configCheckIntervalMillis (init-param,
+     * 1 second by default).
      */
-    protected synchronized MapPrinter getMapPrinter(String app) throws ServletException {
+    protected MapPrinter getMapPrinter(String app) throws ServletException {
         String configPath = System.getProperty("mapfish-print-config", getInitParameter("config"));
         if (configPath == null) {
             throw new ServletException("Missing configuration in web.xml 'web-app/servlet/init-param[param-name=config]' or 'web-app/context-param[param-name=config]'");
         }
-        //String debugPath = "";
 
         if (app == null) {
-            LOGGER.info("app is null, setting it as default configPath: " + configPath);
             app = configPath;
         }
 
@@ -77,6 +77,15 @@ public abstract class BaseMapServlet extends HttpServlet {
             app = app + ".yaml";
         }
 
+        final MapPrinterRegistry printers = getRegistry();
+        final MapPrinter printer = printers.get(app);
+        if (printer != null) {
+            return printer;
+        }
+        return printers.load(app, getConfigFile(app));
+    }
+
+    private File getConfigFile(String app) {
         File configFile = new File(app);
 
         if (!configFile.isAbsolute() || !configFile.exists()) {
@@ -92,68 +101,42 @@ public abstract class BaseMapServlet extends HttpServlet {
                 configFile = new File(realPath);
             }
         }
-
         LOGGER.info("Loading app from: " + configFile);
-        MapPrinter printer;
-        final String configFileCanonicalPath;
-        try {
-            configFileCanonicalPath = configFile.getCanonicalPath();
-            printer = printers.get(configFileCanonicalPath);
-        } catch (IOException e) {
-            throw new ServletException(e);
-        }
-
-        final long lastModified;
-        if (lastModifieds.containsKey(app)) {
-            lastModified = lastModifieds.get(app);
-        } else {
-            lastModified = 0L;
-        }
-
-        boolean forceReload = false;
-        if (printer != null && (!printer.isRunning() || printer.getConfig().getReloadConfig())) {
-            forceReload = true;
-        }
-
-        if (forceReload || (printer != null && (configFile.lastModified() != lastModified || !printer.isRunning()))) {
-            //file modified, reload it
-            if (!forceReload) {
-                LOGGER.info("Configuration file modified. Reloading...");
-            }
-            try {
-                printer.stop();
+        return configFile;
+    }
 
-                //debugPath += "printer stopped, setting NULL\n";
-            } catch (NullPointerException npe) {
-                LOGGER.info("BaseMapServlet.java: printer was not stopped. This happens when a switch between applications happens.\n"+ npe);
+    private MapPrinterRegistry getRegistry() {
+        if (registry == null) {
+            synchronized (this) {
+                if (registry == null) {
+                    final String interval = getInitParameter("configCheckIntervalMillis");
+                    registry = new MapPrinterRegistry(new MapPrinterRegistry.Loader() {
+                        public MapPrinter load(File configFile) throws ServletException {
+                            try {
+                                return getApplicationContext().getBean(MapPrinter.class).setYamlConfigFile(configFile);
+                            } catch (FileNotFoundException e) {
+                                throw new ServletException("Cannot read configuration file: " + configFile, e);
+                            } catch (Throwable e) {
+                                LOGGER.error("Error occurred while reading configuration file", e);
+                                throw new ServletException("Error occurred while reading configuration file '" + configFile + "': " + e);
+                            }
+                        }
+                    }, interval != null ? Integer.parseInt(interval) : DEFAULT_CONFIG_CHECK_INTERVAL_MILLIS);
+                }
             }
-
-            printer = null;
-            LOGGER.info("Printer for "+ app +" stopped");
-            printers.put(configFileCanonicalPath, null);
         }
+        return registry;
+    }
 
-        if (printer == null) {
-            //debugPath += "printer == null, lastModified from configFile = "+lastModified+"\n";
-            try {
-                LOGGER.info("Loading configuration file: " + configFile.getAbsolutePath());
-                printer = getApplicationContext().getBean(MapPrinter.class).setYamlConfigFile(configFile);
-                printers.put(configFileCanonicalPath, printer);
-                lastModifieds.put(app,  configFile.lastModified());
-            } catch (FileNotFoundException e) {
-                throw new ServletException("Cannot read configuration file: " + configPath, e);
-            } catch (Throwable e) {
-                LOGGER.error("Error occurred while reading configuration file", e);
-                throw new ServletException("Error occurred while reading configuration file '" + configFile + "': " + e );
-            }
-        }
-        if (printer != null) {
-            printer.start();
+    @Override
+    public void destroy() {
+        if (registry != null) {
+            registry.close();
         }
-        return printer;
+        super.destroy();
     }
 
-    private ApplicationContext getApplicationContext() {
+    protected ApplicationContext getApplicationContext() {
         if (this.context == null) {
             synchronized (this) {
                 if (this.context == null) {
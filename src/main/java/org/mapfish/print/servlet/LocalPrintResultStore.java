@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.servlet;
+
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The default store: the printouts are in the temporary directory of the servlet and
+ * indexed by a {@link TempFileMetadataStore}.
+ */
+class LocalPrintResultStore implements PrintResultStore {
+    private final File dir;
+    private final TempFileMetadataStore index;
+
+    /**
+     * @param indexLog the file to persist the index to, null to keep it only in memory.
+     */
+    LocalPrintResultStore(File dir, File indexLog, long maxAgeMillis) {
+        this.dir = dir;
+        this.index = new TempFileMetadataStore(indexLog, maxAgeMillis);
+    }
+
+    public File createFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, dir);
+    }
+
+    public void publish(String id, TempFileMetadata metadata) {
+        index.put(id, metadata);
+    }
+
+    public TempFileMetadata getMetadata(String id) {
+        return index.get(id);
+    }
+
+    public void purge() {
+        index.purge();
+    }
+}
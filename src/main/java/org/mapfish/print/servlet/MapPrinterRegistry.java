@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.servlet;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.MapPrinter;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jakarta.servlet.ServletException;
+
+/**
+ * The printers of the apps, by app. The lookups don't take any lock and don't touch the
+ * filesystem: the configuration files are checked by a background thread that replaces
+ * the printers of the modified ones. Only the first load of an app is done in the request
+ * thread.
+ * <p/>
+ * The registry holds a usage of each printer it knows (see {@link MapPrinter#start()}), so
+ * a replaced printer is really stopped once the last print using it is done.
+ */
+class MapPrinterRegistry {
+    private static final Logger LOGGER = LogManager.getLogger(MapPrinterRegistry.class);
+
+    /**
+     * Creates the printer of a configuration file.
+     */
+    interface Loader {
+        MapPrinter load(File configFile) throws ServletException;
+    }
+
+    private final Loader loader;
+    private final Map<String, Registered> printers = new ConcurrentHashMap<String, Registered>();
+    private final ScheduledExecutorService checker;
+
+    MapPrinterRegistry(Loader loader, int checkIntervalMillis) {
+        this.loader = loader;
+        checker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("configChecker").setDaemon(true).build());
+        checker.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkConfigs();
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the started printer of the app (to stop once done), null if the app is not loaded yet.
+     */
+    MapPrinter get(String app) {
+        Registered registered;
+        while ((registered = printers.get(app)) != null) {
+            if (registered.printer.tryStart()) {
+                return registered.printer;
+            }
+            //stopped in the mean time, it has already been replaced or removed
+            if (printers.get(app) == registered) {
+                printers.remove(app, registered);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Load the printer of an app, unless another thread did it in the mean time.
+     *
+     * @return the started printer of the app (to stop once done).
+     */
+    synchronized MapPrinter load(String app, File configFile) throws ServletException {
+        final MapPrinter existing = get(app);
+        if (existing != null) {
+            return existing;
+        }
+        final Registered registered = create(configFile);
+        printers.put(app, registered);
+        registered.printer.start();
+        return registered.printer;
+    }
+
+    private Registered create(File configFile) throws ServletException {
+        LOGGER.info("Loading configuration file: " + configFile.getAbsolutePath());
+        final long lastModified = configFile.lastModified();
+        final MapPrinter printer = loader.load(configFile);
+        //the usage of the registry
+        printer.start();
+        return new Registered(configFile, printer, lastModified);
+    }
+
+    /**
+     * Reload the printers of the modified configuration files (or configured to be always reloaded).
+     */
+    void checkConfigs() {
+        for (Map.Entry<String, Registered> entry : printers.entrySet()) {
+            final Registered registered = entry.getValue();
+            final MapPrinter printer = registered.printer;
+            final boolean running = printer.isRunning();
+            if (running && registered.configFile.lastModified() == registered.lastModified &&
+                    !printer.getConfig().getReloadConfig()) {
+                continue;
+            }
+            if (running && !printer.getConfig().getReloadConfig()) {
+                LOGGER.info("Configuration file modified. Reloading...");
+            }
+            try {
+                final Registered reloaded = create(registered.configFile);
+                if (!printers.replace(entry.getKey(), registered, reloaded)) {
+                    reloaded.printer.stop();
+                    continue;
+                }
+            } catch (ServletException e) {
+                LOGGER.error("Error occurred while reloading configuration file " + registered.configFile, e);
+                if (running) {
+                    //keep the previous version
+                    continue;
+                }
+                printers.remove(entry.getKey(), registered);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error occurred while reloading configuration file " + registered.configFile, e);
+                continue;
+            }
+            if (running) {
+                //release the usage of the registry
+                printer.stop();
+                LOGGER.info("Printer for " + entry.getKey() + " stopped");
+            }
+        }
+    }
+
+    void close() {
+        checker.shutdownNow();
+        for (Registered registered : printers.values()) {
+            registered.printer.stop();
+        }
+        printers.clear();
+    }
+
+    private static final class Registered {
+        private final File configFile;
+        private final MapPrinter printer;
+        private final long lastModified;
+
+        private Registered(File configFile, MapPrinter printer, long lastModified) {
+            this.configFile = configFile;
+            this.printer = printer;
+            this.lastModified = lastModified;
+        }
+    }
+}
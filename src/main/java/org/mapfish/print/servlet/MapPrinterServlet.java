@@ -21,23 +21,25 @@ package org.mapfish.print.servlet;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.lowagie.text.DocumentException;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.Serial;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.text.DateFormat;
@@ -47,8 +49,11 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jakarta.servlet.ServletException;
@@ -61,9 +66,10 @@ import org.json.JSONException;
 import org.json.JSONWriter;
 import org.mapfish.print.Constants;
 import org.mapfish.print.MapPrinter;
+import org.mapfish.print.ThreadResources;
+import org.mapfish.print.cache.PrintResultCache;
 import org.mapfish.print.output.OutputFormat;
 import org.mapfish.print.utils.PJsonObject;
-import org.pvalsecc.misc.FileUtilities;
 
 /**
  * Main print servlet.
@@ -78,12 +84,21 @@ public class MapPrinterServlet extends BaseMapServlet {
     private static final String INFO_URL = "/info.json";
     private static final String PRINT_URL = "/print.pdf";
     private static final String CREATE_URL = "/create.json";
+    private static final String STATUS_URL = "/status/";
+    private static final String STATUS_SUFFIX = ".json";
     private static final String TEMP_FILE_SUFFIX = ".printout";
     private static final int TEMP_FILE_PURGE_SECONDS = 10 * 60;
+    private static final int PURGE_INTERVAL_SECONDS = 60;
     /**
-     * Map of temporary files.
+     * The file the index of the printouts is persisted to, in the temporary directory.
      */
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String TEMP_FILE_INDEX = "printouts.index";
+    private static final int QUEUE_FULL_RETRY_AFTER_SECONDS = 30;
+    private static final int NOT_FINISHED_RETRY_AFTER_SECONDS = 2;
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
     /**
      * Map of temporary files.
      */
@@ -91,9 +106,29 @@ public class MapPrinterServlet extends BaseMapServlet {
     private File tempDir = null;
     private String encoding = null;
     /**
-     * Tells if a thread is alread purging the old temporary files or not.
+     * Cache of the printouts of the identical specs. Null if disabled.
+     */
+    private PrintResultCache resultCache = null;
+    /**
+     * Where the printouts are kept until downloaded.
+     */
+    private PrintResultStore resultStore = null;
+    /**
+     * Purges the old printouts in the background.
+     */
+    private ScheduledExecutorService purgeScheduler = null;
+    /**
+     * Runs the prints submitted through /create.json. Null if they are done in the request's thread.
+     */
+    private PrintJobManager jobManager = null;
+    /**
+     * Limits the number of prints done in parallel. Null if not limited.
      */
-    private AtomicBoolean purging = new AtomicBoolean(false);
+    private PrintAdmissionController admissionController = null;
+    /**
+     * If true, the result of /print.pdf is written to the response while printed instead of going through a temporary file.
+     */
+    private boolean streamPrint = false;
 
     protected void doGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ServletException, IOException {
         //do the routing in function of the actual URL
@@ -106,6 +141,9 @@ public class MapPrinterServlet extends BaseMapServlet {
             createAndGetPDF(httpServletRequest, httpServletResponse);
         } else if (additionalPath.equals(INFO_URL)) {
             getInfo(httpServletRequest, httpServletResponse, getBaseUrl(httpServletRequest));
+        } else if (additionalPath.startsWith(STATUS_URL) && additionalPath.endsWith(STATUS_SUFFIX)) {
+            getStatus(httpServletResponse, additionalPath.substring(STATUS_URL.length(), additionalPath.length() - STATUS_SUFFIX.length()),
+                    getBaseUrl(httpServletRequest));
         } else if (additionalPath.startsWith("/") && additionalPath.endsWith(TEMP_FILE_SUFFIX)) {
             getFile(httpServletRequest, httpServletResponse, additionalPath.substring(1, additionalPath.length() - TEMP_FILE_SUFFIX.length()));
         } else {
@@ -137,6 +175,35 @@ public class MapPrinterServlet extends BaseMapServlet {
                 LOGGER.debug("Unable to handle file :: ", e);
             }
         }
+
+        final ExecutorService printJobExecutor = getApplicationContext().getBean(ThreadResources.class).getPrintJobExecutor();
+        if (printJobExecutor != null) {
+            jobManager = new PrintJobManager(printJobExecutor);
+        }
+        admissionController = getApplicationContext().getBeanProvider(PrintAdmissionController.class).getIfAvailable();
+        streamPrint = Boolean.parseBoolean(getInitParameter("streamPrint"));
+
+        final PrintResultCache cache = getApplicationContext().getBeanProvider(PrintResultCache.class).getIfAvailable();
+        if (cache != null && cache.isEnabled()) {
+            resultCache = cache;
+        }
+        resultStore = getApplicationContext().getBeanProvider(PrintResultStore.class).getIfAvailable();
+        if (resultStore == null) {
+            final boolean persistIndex = !"false".equalsIgnoreCase(getInitParameter("persistTempFileIndex"));
+            resultStore = new LocalPrintResultStore(dir, persistIndex ? new File(dir, TEMP_FILE_INDEX) : null,
+                    TEMP_FILE_PURGE_SECONDS * 1000L);
+        }
+        purgeScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("printoutPurge").setDaemon(true).build());
+        purgeScheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    purgeOldTemporaryFiles();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Error while purging the old printouts", e);
+                }
+            }
+        }, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     public boolean shouldFileBeDelete(File file) throws IOException {
@@ -147,6 +214,9 @@ public class MapPrinterServlet extends BaseMapServlet {
     }
 
     public void destroy() {
+        if (purgeScheduler != null) {
+            purgeScheduler.shutdownNow();
+        }
         super.destroy();
     }
 
@@ -154,7 +224,7 @@ public class MapPrinterServlet extends BaseMapServlet {
      * All in one method: create and returns the PDF to the client. Avoid to use
      * it, the accents in the spec are not all supported.
      */
-    protected void createAndGetPDF(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+    protected void createAndGetPDF(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ServletException {
         //get the spec from the query
         TempFileMetadata tempFileMetadata = null;
         String spec = null;
@@ -177,38 +247,102 @@ public class MapPrinterServlet extends BaseMapServlet {
             error(httpServletResponse, "Missing 'spec' parameter", 500);
             return;
         }
+        if (streamPrint) {
+            streamPDF(spec, httpServletRequest, httpServletResponse);
+            return;
+        }
 
         try {
             tempFileMetadata = doCreatePDFFile(spec, httpServletRequest);
             sendPdfFile(httpServletResponse, tempFileMetadata, Boolean.parseBoolean(httpServletRequest.getParameter("inline")));
+        } catch (PrintRejectedException e) {
+            rejected(httpServletResponse, e);
         } catch (Throwable e) {
             error(httpServletResponse, e);
         } finally {
-            deleteFile(tempFileMetadata.tempFile);
+            if (tempFileMetadata != null) {
+                deleteFile(tempFileMetadata.tempFile);
+            }
+        }
+    }
+
+    /**
+     * Create the PDF and write it to the response while it's generated (the pages are sent as
+     * soon as they are done). The headers are sent with the first bytes of the PDF, so the errors
+     * happening before that are still reported to the client. After that, the only thing that can
+     * be done is to abort the response.
+     */
+    protected void streamPDF(String spec, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ServletException {
+        try {
+            final PrintJob job = createPrintJob(spec, httpServletRequest, false);
+            //the job releases its admission ticket and its printer once printed, or if cancelled
+            boolean printing = false;
+            try {
+                final TempFileMetadata metadata = job.getTempFileMetadata();
+                final String fileName;
+                if (Boolean.parseBoolean(httpServletRequest.getParameter("inline"))) {
+                    fileName = null;
+                } else {
+                    fileName = metadata.getOutputFileName(job.getMapPrinter());
+                }
+                final ResponseOutputStream out = new ResponseOutputStream(httpServletResponse, metadata.contentType(), fileName);
+                printing = true;
+                job.print(out);
+                out.finish();
+            } catch (Throwable e) {
+                if (!printing) {
+                    job.cancel(e);
+                }
+                throw e;
+            }
+        } catch (PrintRejectedException e) {
+            rejected(httpServletResponse, e);
+        } catch (Throwable e) {
+            if (!httpServletResponse.isCommitted()) {
+                error(httpServletResponse, e);
+            } else {
+                LOGGER.error("Error while streaming PDF", e);
+                throw new ServletException("Error while streaming PDF", e);
+            }
         }
     }
 
     /**
      * Create the PDF and returns to the client (in JSON) the URL to get the PDF.
+     * <p/>
+     * If print job threads are configured, the PDF is created asynchronously and the
+     * returned URL can already be used: the download waits for the print to be finished.
+     * The progress can be followed using the returned statusURL.
      */
     protected void createPDF(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, String basePath) throws ServletException {
-        TempFileMetadata tempFileMetadata = null;
+        final TempFileMetadata tempFileMetadata;
+        final String id;
         try {
-            purgeOldTemporaryFiles();
-
             String spec = getSpecFromPostBody(httpServletRequest);
-            tempFileMetadata = doCreatePDFFile(spec, httpServletRequest);
-            if (tempFileMetadata == null) {
-                error(httpServletResponse, "Missing 'spec' parameter", 500);
-                return;
+            final PrintJob job = createPrintJob(spec, httpServletRequest);
+            tempFileMetadata = job.getTempFileMetadata();
+            id = generateId(tempFileMetadata.tempFile);
+            if (jobManager != null) {
+                jobManager.submit(id, job, new Runnable() {
+                    public void run() {
+                        addTempFileMetaData(tempFileMetadata, id);
+                    }
+                });
+            } else {
+                job.print();
             }
+        } catch (RejectedExecutionException e) {
+            rejected(httpServletResponse, new PrintRejectedException("Too many print jobs waiting, try again later",
+                    QUEUE_FULL_RETRY_AFTER_SECONDS));
+            return;
+        } catch (PrintRejectedException e) {
+            rejected(httpServletResponse, e);
+            return;
         } catch (Throwable e) {
-            deleteFile(tempFileMetadata.tempFile);
             error(httpServletResponse, e);
             return;
         }
 
-        final String id = generateId(tempFileMetadata.tempFile);
         httpServletResponse.setContentType("application/json; charset=utf-8");
         PrintWriter writer = null;
         try {
@@ -217,33 +351,42 @@ public class MapPrinterServlet extends BaseMapServlet {
             json.object();
             {
                 json.key("getURL").value(basePath + "/" + id + TEMP_FILE_SUFFIX);
+                if (jobManager != null) {
+                    json.key("ref").value(id);
+                    json.key("statusURL").value(basePath + STATUS_URL + id + STATUS_SUFFIX);
+                }
             }
             json.endObject();
         } catch (JSONException e) {
-            deleteFile(tempFileMetadata.tempFile);
+            if (jobManager == null) {
+                deleteFile(tempFileMetadata.tempFile);
+            }
             throw new ServletException(e);
         } catch (IOException e) {
-            deleteFile(tempFileMetadata.tempFile);
+            if (jobManager == null) {
+                deleteFile(tempFileMetadata.tempFile);
+            }
             throw new ServletException(e);
         } finally {
             if (writer != null) {
                 writer.close();
             }
         }
-        addTempFileMetaData(tempFileMetadata, id);
+        if (jobManager == null) {
+            addTempFileMetaData(tempFileMetadata, id);
+        }
     }
 
     /**
-     * Creates a json file to hold the meta-data for the temp file.
+     * Makes the printout available for download.
      * @param tempFileMetadata Object holding the information regarding the file to be printed
-     * @param id identifier for the temp file and is being used to identify the meta data file
+     * @param id identifier for the temp file
      */
     protected void addTempFileMetaData(TempFileMetadata tempFileMetadata, String id) {
         try {
-            objectMapper.writeValue(File.createTempFile(TEMP_FILE_METADATA_PREFIX + id + "_",
-                    ".json", getTempDir()), tempFileMetadata);
+            resultStore.publish(id, tempFileMetadata);
         } catch (IOException e) {
-            LOGGER.debug("Unable to persist tempFileMetadata", e);
+            LOGGER.warn("Unable to publish the printout " + id, e);
         }
     }
 
@@ -280,36 +423,87 @@ public class MapPrinterServlet extends BaseMapServlet {
     }
 
     /**
-     * To get the PDF created previously.
+     * To get the PDF created previously. If it is still being printed, answers right away with
+     * an HTTP 409 error (the request's thread is not kept during the print).
      */
     protected void getFile(HttpServletRequest req, HttpServletResponse httpServletResponse, String id) throws IOException, ServletException {
-        TempFileMetadata tempFileMetadata = getTempFileMetadata(id);
+        final PrintJob job = jobManager != null ? jobManager.getJob(id) : null;
+        TempFileMetadata tempFileMetadata;
+        if (job != null) {
+            if (!job.isDone()) {
+                notFinished(httpServletResponse, id, job);
+                return;
+            }
+            if (job.getError() instanceof PrintRejectedException rejection) {
+                rejected(httpServletResponse, rejection);
+                return;
+            } else if (job.getStatus() != PrintJob.Status.FINISHED) {
+                error(httpServletResponse, job.getError());
+                return;
+            }
+            tempFileMetadata = job.getTempFileMetadata();
+        } else {
+            tempFileMetadata = getTempFileMetadata(id);
+        }
         if (tempFileMetadata == null) {
             error(httpServletResponse, "File with id=" + id + " unknown", 404);
             return;
         }
-        sendPdfFile(httpServletResponse, tempFileMetadata, Boolean.parseBoolean(req.getParameter("inline")));
+        sendPdfFile(req, httpServletResponse, tempFileMetadata, Boolean.parseBoolean(req.getParameter("inline")));
     }
 
     /**
-     *
-     * @param id identifier to fetch the meta-data json file from the disk.
-     * @return
+     * @param id identifier of the printout.
+     * @return null if unknown or purged.
      */
     private TempFileMetadata getTempFileMetadata(String id) {
-        TempFileMetadata tempFileMetadata = null;
-            // get from disk
-            File[] files = getTempDir().listFiles(file -> file.getName().startsWith(TEMP_FILE_METADATA_PREFIX + id + "_"));
-            if (0 != files.length) {
-                try {
-                    tempFileMetadata = objectMapper.readValue(files[0], TempFileMetadata.class);
-                } catch (IOException e) {
-                    // could be deleted while the reading has not started
-                    LOGGER.info("File requested for the id ::" + id + " has been deleted");
-                    tempFileMetadata = null;
+        return resultStore.getMetadata(id);
+    }
+
+    /**
+     * Used by the tests.
+     */
+    void setJobManager(PrintJobManager jobManager) {
+        this.jobManager = jobManager;
+    }
+
+    /**
+     * To get (in JSON) the state of a print submitted through /create.json.
+     */
+    protected void getStatus(HttpServletResponse resp, String id, String basePath) throws ServletException, IOException {
+        final PrintJob job = jobManager != null ? jobManager.getJob(id) : null;
+        if (job == null && getTempFileMetadata(id) == null) {
+            error(resp, "Print job with id=" + id + " unknown", 404);
+            return;
+        }
+
+        resp.setContentType("application/json; charset=utf-8");
+        final PrintWriter writer = resp.getWriter();
+        try {
+            JSONWriter json = new JSONWriter(writer);
+            json.object();
+            {
+                if (job != null) {
+                    json.key("done").value(job.isDone());
+                    json.key("status").value(job.getStatus().name().toLowerCase());
+                    json.key("waitingTime").value(job.getWaitingTime());
+                    json.key("elapsedTime").value(job.getElapsedTime());
+                    if (job.getError() != null) {
+                        json.key("error").value(job.getError().toString());
+                    }
+                } else {
+                    //done before this servlet was started or synchronously
+                    json.key("done").value(true);
+                    json.key("status").value(PrintJob.Status.FINISHED.name().toLowerCase());
                 }
+                json.key("getURL").value(basePath + "/" + id + TEMP_FILE_SUFFIX);
             }
-        return tempFileMetadata;
+            json.endObject();
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        } finally {
+            writer.close();
+        }
     }
 
     /**
@@ -369,6 +563,21 @@ public class MapPrinterServlet extends BaseMapServlet {
      * @throws InterruptedException
      */
     protected TempFileMetadata doCreatePDFFile(String spec, HttpServletRequest httpServletRequest) throws IOException, DocumentException, ServletException, InterruptedException {
+        return createPrintJob(spec, httpServletRequest).print();
+    }
+
+    /**
+     * Prepare everything needed to print the spec: the printer, the headers to forward from the
+     * request and the temporary file. The print itself can be done in another thread.
+     */
+    protected PrintJob createPrintJob(String spec, HttpServletRequest httpServletRequest) throws IOException, ServletException {
+        return createPrintJob(spec, httpServletRequest, true);
+    }
+
+    /**
+     * @param toTempFile if false, no temporary file is created and the job must be printed to a given stream.
+     */
+    protected PrintJob createPrintJob(String spec, HttpServletRequest httpServletRequest, boolean toTempFile) throws IOException, ServletException {
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Generating PDF for spec=" + spec);
         }
@@ -378,13 +587,24 @@ public class MapPrinterServlet extends BaseMapServlet {
         }
 
         PJsonObject specJson = MapPrinter.parseSpec(spec);
+        final String specApp;
         if (specJson.has("app")) {
-            app = specJson.getString("app");
+            specApp = specJson.getString("app");
         } else {
-            app = null;
+            specApp = null;
         }
+        app = specApp;
 
-        MapPrinter mapPrinter = getMapPrinter(app);
+        final PrintAdmissionController.Ticket ticket = admissionController != null ? admissionController.admit(specApp) : null;
+        final MapPrinter mapPrinter;
+        try {
+            mapPrinter = getMapPrinter(specApp);
+        } catch (ServletException e) {
+            if (ticket != null) {
+                ticket.close();
+            }
+            throw e;
+        }
         try {
             Map<String, String> headers = new HashMap<String, String>();
             TreeSet<String> configHeaders = mapPrinter.getConfig().getHeaders();
@@ -399,50 +619,39 @@ public class MapPrinterServlet extends BaseMapServlet {
                     headers.put(header, httpServletRequest.getHeader(header));
                 }
             }
+            if (mapPrinter.getConfig().isAddForwardedFor()) {
+                String ipAddress = httpServletRequest.getHeader("X-FORWARDED-FOR");
+                if (ipAddress != null) {
+                    String[] ips = ipAddress.split(", ");
+                    ipAddress = ips[0];
+                } else {
+                    ipAddress = httpServletRequest.getRemoteAddr();
+                }
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Forwarded for: " + ipAddress);
+                }
+                headers.put("X-Forwarded-For", ipAddress);
+            }
 
             final OutputFormat outputFormat = mapPrinter.getOutputFormat(specJson);
             // create a temporary file that will contain the PDF
-            final File tempJavaFile = File.createTempFile(TEMP_FILE_PREFIX,
-                    "." + outputFormat.getFileSuffix() + TEMP_FILE_SUFFIX, getTempDir());
-            TempFileMetadata tempFileMetadata = new TempFileMetadata(tempJavaFile, specJson, outputFormat);
-
-            FileOutputStream out = null;
-            try {
-                out = new FileOutputStream(tempFileMetadata.tempFile);
-                if (mapPrinter.getConfig().isAddForwardedFor()) {
-                    String ipAddress = httpServletRequest.getHeader("X-FORWARDED-FOR");
-                    if (ipAddress != null) {
-                        String[] ips = ipAddress.split(", ");
-                        ipAddress = ips[0];
-                    } else {
-                        ipAddress = httpServletRequest.getRemoteAddr();
-                    }
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Forwarded for: " + ipAddress);
-                    }
-                    headers.put("X-Forwarded-For", ipAddress);
-                }
-                mapPrinter.print(specJson, out, headers);
+            final File tempJavaFile = toTempFile ? resultStore.createFile(TEMP_FILE_PREFIX,
+                    "." + outputFormat.getFileSuffix() + TEMP_FILE_SUFFIX) : null;
+            TempFileMetadata tempFileMetadata = new TempFileMetadata(tempJavaFile, specJson, outputFormat, specApp);
 
-                return tempFileMetadata;
-            } catch (IOException e) {
-                deleteFile(tempFileMetadata.tempFile);
-                throw e;
-            } catch (DocumentException e) {
-                deleteFile(tempFileMetadata.tempFile);
-                throw e;
-            } catch (InterruptedException e) {
-                deleteFile(tempFileMetadata.tempFile);
-                throw e;
-            } finally {
-                if (out != null) {
-                    out.close();
-                }
+            return new PrintJob(mapPrinter, specJson, headers, tempFileMetadata, ticket, resultCache);
+        } catch (IOException e) {
+            if (ticket != null) {
+                ticket.close();
             }
-        } finally {
-            if (mapPrinter != null) {
-                mapPrinter.stop();
+            mapPrinter.stop();
+            throw e;
+        } catch (RuntimeException e) {
+            if (ticket != null) {
+                ticket.close();
             }
+            mapPrinter.stop();
+            throw e;
         }
     }
 
@@ -450,28 +659,105 @@ public class MapPrinterServlet extends BaseMapServlet {
      * copy the PDF into the output stream
      */
     protected void sendPdfFile(HttpServletResponse httpServletResponse, TempFileMetadata tempFileMetadata, boolean inline) throws IOException, ServletException {
-        FileInputStream pdf = new FileInputStream(tempFileMetadata.tempFile);
-        final OutputStream response = httpServletResponse.getOutputStream();
-        MapPrinter mapPrinter = getMapPrinter(app);
-        try {
-            httpServletResponse.setContentType(tempFileMetadata.contentType());
-            if (!inline) {
+        sendPdfFile(null, httpServletResponse, tempFileMetadata, inline);
+    }
+
+    /**
+     * Send the PDF to the client. If the request is given, its Range and If-None-Match headers are
+     * honored and the file may be sent by the container itself (sendfile), after this method returns.
+     * So the file must not be deleted right away in this case.
+     */
+    protected void sendPdfFile(HttpServletRequest req, HttpServletResponse httpServletResponse, TempFileMetadata tempFileMetadata, boolean inline) throws IOException, ServletException {
+        final File file = tempFileMetadata.tempFile;
+        if (!file.isFile()) {
+            error(httpServletResponse, "File " + file.getName() + " has been deleted", 404);
+            return;
+        }
+        final long length = file.length();
+        final String etag = "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(length) + "\"";
+        httpServletResponse.setHeader("ETag", etag);
+        httpServletResponse.setHeader("Accept-Ranges", "bytes");
+        if (req != null && etagMatches(req.getHeader("If-None-Match"), etag)) {
+            httpServletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        ByteRange range = null;
+        if (req != null) {
+            final String ifRange = req.getHeader("If-Range");
+            if (ifRange == null || ifRange.equals(etag)) {
+                range = ByteRange.parse(req.getHeader("Range"), length);
+            }
+        }
+        if (range == ByteRange.UNSATISFIABLE) {
+            httpServletResponse.setHeader("Content-Range", range.toContentRange(length));
+            httpServletResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        final long start = range != null ? range.start : 0;
+        final long count = range != null ? range.getLength() : length;
+        httpServletResponse.setContentType(tempFileMetadata.contentType());
+        if (!inline) {
+            MapPrinter mapPrinter = getMapPrinter(tempFileMetadata.app);
+            try {
                 final String fileName = tempFileMetadata.getOutputFileName(mapPrinter);
                 httpServletResponse.setHeader("Content-disposition", "attachment; filename=" + fileName);
+            } finally {
+                if (mapPrinter != null) {
+                    mapPrinter.stop();
+                }
             }
-            FileUtilities.copyStream(pdf, response);
-        } finally {
-            if (mapPrinter != null) {
-                mapPrinter.stop();
+        }
+        if (range != null) {
+            httpServletResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            httpServletResponse.setHeader("Content-Range", range.toContentRange(length));
+        }
+        httpServletResponse.setContentLengthLong(count);
+
+        if (req != null && Boolean.TRUE.equals(req.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            //the container will send the file itself, without going through the JVM
+            req.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+            req.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+            req.setAttribute(SENDFILE_END_ATTRIBUTE, start + count);
+            return;
+        }
+
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final OutputStream response = httpServletResponse.getOutputStream();
+        try {
+            final WritableByteChannel target = Channels.newChannel(response);
+            long position = start;
+            final long end = start + count;
+            while (position < end) {
+                final long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    break;
+                }
+                position += sent;
             }
+        } finally {
             try {
-                pdf.close();
+                channel.close();
             } finally {
                 response.close();
             }
         }
     }
 
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String value : ifNoneMatch.split(",")) {
+            final String trimmed = value.trim();
+            if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Send an error XXX to the client with an exception
      */
@@ -494,6 +780,35 @@ public class MapPrinterServlet extends BaseMapServlet {
         }
     }
 
+    /**
+     * Send a 503 error to the client telling it when to retry.
+     */
+    protected void rejected(HttpServletResponse httpServletResponse, PrintRejectedException e) {
+        httpServletResponse.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+        error(httpServletResponse, e.getMessage(), 503);
+    }
+
+    /**
+     * Send a 409 error to the client telling it that the job is not finished and when to retry. The client is
+     * expected to poll status/{ID}.json.
+     */
+    protected void notFinished(HttpServletResponse httpServletResponse, String id, PrintJob job) {
+        PrintWriter out = null;
+        try {
+            httpServletResponse.setContentType("text/plain");
+            httpServletResponse.setStatus(409);
+            httpServletResponse.setHeader("Retry-After", Integer.toString(NOT_FINISHED_RETRY_AFTER_SECONDS));
+            out = httpServletResponse.getWriter();
+            out.println("Print job " + id + " is not finished: " + job.getStatus().name().toLowerCase());
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
     /**
      * Send an error XXX to the client with a message
      */
@@ -579,48 +894,106 @@ public class MapPrinterServlet extends BaseMapServlet {
     }
 
     /**
-     * Will purge all the known temporary files older than TEMP_FILE_PURGE_SECONDS.
+     * Will purge all the known temporary files older than TEMP_FILE_PURGE_SECONDS. Called regularly
+     * in the background.
      */
     protected void purgeOldTemporaryFiles() {
-        if (!purging.getAndSet(true)) {
-            File[] tempDirFiles = getTempDir().listFiles();
-            for (File file : tempDirFiles) {
-                try {
-                    if (shouldFileBeDelete(file)) {
-                        deleteFile(file);
-                    }
-                } catch (IOException e) {
-                    LOGGER.warn("Unable to delete file :: ", e);
+        if (jobManager != null) {
+            jobManager.purgeOldJobs(TEMP_FILE_PURGE_SECONDS * 1000L);
+        }
+        resultStore.purge();
+    }
+
+    /**
+     * Sends the headers of the response with its first bytes. Is not closed by the print, in order to
+     * not terminate the response of a failed print as if it was complete.
+     */
+    private static final class ResponseOutputStream extends OutputStream {
+        private final HttpServletResponse response;
+        private final String contentType;
+        /**
+         * Null if the PDF is to be displayed inline.
+         */
+        private final String fileName;
+        private OutputStream out = null;
+
+        private ResponseOutputStream(HttpServletResponse response, String contentType, String fileName) {
+            this.response = response;
+            this.contentType = contentType;
+            this.fileName = fileName;
+        }
+
+        private OutputStream getOut() throws IOException {
+            if (out == null) {
+                response.setContentType(contentType);
+                if (fileName != null) {
+                    response.setHeader("Content-disposition", "attachment; filename=" + fileName);
                 }
+                out = response.getOutputStream();
             }
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            getOut().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            getOut().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * To call once the print is successfully done.
+         */
+        void finish() throws IOException {
+            getOut().close();
         }
-        purging.set(false);
     }
 
-    static class TempFileMetadata {
+    public static class TempFileMetadata {
         private static final long serialVersionUID = 455104129549002361L;
         public final String printedLayoutName;
         public final String outputFileName;
         public final String contentType;
         public final File tempFile;
         public String suffix;
+        /**
+         * The app the spec was printed with (null for the default one).
+         */
+        public final String app;
 
-        public TempFileMetadata(File tempFile, PJsonObject jsonSpec, OutputFormat format) {
+        public TempFileMetadata(File tempFile, PJsonObject jsonSpec, OutputFormat format, String app) {
             this.outputFileName = jsonSpec.optString(Constants.OUTPUT_FILENAME_KEY);
             this.printedLayoutName = jsonSpec.optString(Constants.JSON_LAYOUT_KEY, null);
             this.tempFile = tempFile;
             this.suffix = format.getFileSuffix();
             this.contentType = format.getContentType();
+            this.app = app;
         }
 
         @JsonCreator
         public TempFileMetadata(@JsonProperty("tempFile") File tempFile, @JsonProperty("outputFileName") String outputFileName, @JsonProperty("printedLayoutName") String printedLayoutName,
-                @JsonProperty("suffix") String suffix, @JsonProperty("contentType") String contentType) {
+                @JsonProperty("suffix") String suffix, @JsonProperty("contentType") String contentType, @JsonProperty("app") String app) {
             this.outputFileName = outputFileName;
             this.printedLayoutName = printedLayoutName;
             this.tempFile = tempFile;
             this.suffix = suffix;
             this.contentType = contentType;
+            this.app = app;
         }
 
         public static String formatFileName(String suffix, String startingName, Date date) {
@@ -671,7 +1044,8 @@ public class MapPrinterServlet extends BaseMapServlet {
             if (outputFileName != null) {
                 return formatFileName(suffix, outputFileName, new Date());
             } else {
-                return formatFileName(suffix, mapPrinter.getOutputFilename(printedLayoutName, tempFile.getName()), new Date());
+                return formatFileName(suffix, mapPrinter.getOutputFilename(printedLayoutName,
+                        tempFile != null ? tempFile.getName() : TEMP_FILE_PREFIX), new Date());
             }
         }
 
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Limits the number of prints done in parallel, in order to not have the JVM thrashing
+ * when a lot of prints are asked at the same time.
+ * <p/>
+ * A print is first admitted (on the request's thread), that fails right away if too many
+ * prints are waiting or if the quota of the print's app is reached. Then, when the print
+ * is about to start, it waits for one of the maxConcurrentPrints slots to be free.
+ */
+public class PrintAdmissionController {
+    private static final String DEFAULT_APP = "default";
+
+    @Autowired
+    private MetricRegistry metricRegistry;
+
+    private int maxConcurrentPrints = 10;
+    private int maxWaitingPrints = 100;
+    private int maxWaitSeconds = 60;
+    private int retryAfterSeconds = 30;
+    private int defaultAppQuota = 0;
+    private Map<String, Integer> appQuotas = Collections.emptyMap();
+
+    private Semaphore slots;
+    private final AtomicInteger nbWaiting = new AtomicInteger(0);
+    private final Map<String, AtomicInteger> appUsages = new ConcurrentHashMap<String, AtomicInteger>();
+    private Timer waitTimer;
+    private Meter rejectedMeter;
+
+    @PostConstruct
+    public void init() {
+        slots = new Semaphore(maxConcurrentPrints, true);
+        waitTimer = metricRegistry.timer(MetricRegistry.name(getClass(), "wait-time"));
+        rejectedMeter = metricRegistry.meter(MetricRegistry.name(getClass(), "rejected"));
+        registerGauge("waiting", new Gauge<Integer>() {
+            public Integer getValue() {
+                return nbWaiting.get();
+            }
+        });
+        registerGauge("running", new Gauge<Integer>() {
+            public Integer getValue() {
+                return maxConcurrentPrints - slots.availablePermits();
+            }
+        });
+    }
+
+    private void registerGauge(String name, Gauge<Integer> gauge) {
+        final String fullName = MetricRegistry.name(getClass(), name);
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, gauge);
+    }
+
+    /**
+     * Check there is room for a new print of the given app.
+     *
+     * @param app the app of the print (null for the default one)
+     * @throws PrintRejectedException if there is no room
+     */
+    public Ticket admit(String app) {
+        final String key = app == null ? DEFAULT_APP : app;
+        final AtomicInteger appUsage = getAppUsage(key);
+        final int quota = getQuota(key);
+        if (appUsage.incrementAndGet() > quota && quota > 0) {
+            appUsage.decrementAndGet();
+            throw reject("Too many prints running or waiting for the app '" + key + "'");
+        }
+
+        if (nbWaiting.incrementAndGet() > maxWaitingPrints && slots.availablePermits() == 0) {
+            nbWaiting.decrementAndGet();
+            appUsage.decrementAndGet();
+            throw reject("Too many prints waiting, try again later");
+        }
+        return new Ticket(appUsage);
+    }
+
+    private AtomicInteger getAppUsage(String app) {
+        AtomicInteger result = appUsages.get(app);
+        if (result == null) {
+            final AtomicInteger newUsage = new AtomicInteger(0);
+            result = appUsages.putIfAbsent(app, newUsage);
+            if (result == null) {
+                result = newUsage;
+            }
+        }
+        return result;
+    }
+
+    private int getQuota(String app) {
+        final Integer quota = appQuotas.get(app);
+        return quota != null ? quota : defaultAppQuota;
+    }
+
+    private PrintRejectedException reject(String message) {
+        rejectedMeter.mark();
+        return new PrintRejectedException(message, retryAfterSeconds);
+    }
+
+    /**
+     * Maximum number of prints done at the same time.
+     */
+    public void setMaxConcurrentPrints(int maxConcurrentPrints) {
+        this.maxConcurrentPrints = maxConcurrentPrints;
+    }
+
+    /**
+     * Maximum number of prints waiting for a slot. When reached, the new prints are rejected.
+     */
+    public void setMaxWaitingPrints(int maxWaitingPrints) {
+        this.maxWaitingPrints = maxWaitingPrints;
+    }
+
+    /**
+     * Maximum time a print can wait for a slot before being rejected.
+     */
+    public void setMaxWaitSeconds(int maxWaitSeconds) {
+        this.maxWaitSeconds = maxWaitSeconds;
+    }
+
+    /**
+     * Value of the Retry-After header sent with the rejections.
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Maximum number of prints running or waiting for the apps not listed in appQuotas. 0 means no limit.
+     */
+    public void setDefaultAppQuota(int defaultAppQuota) {
+        this.defaultAppQuota = defaultAppQuota;
+    }
+
+    /**
+     * Maximum number of prints running or waiting, by app name. The default app is named "default".
+     */
+    public void setAppQuotas(Map<String, Integer> appQuotas) {
+        this.appQuotas = appQuotas;
+    }
+
+    public void setMetricRegistry(MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * An admitted print. Must be closed once the print is done or abandoned.
+     */
+    public final class Ticket implements Closeable {
+        private final AtomicInteger appUsage;
+        private boolean waiting = true;
+        private boolean running = false;
+        private boolean closed = false;
+
+        private Ticket(AtomicInteger appUsage) {
+            this.appUsage = appUsage;
+        }
+
+        /**
+         * Wait for a free slot. The wait is done outside of the ticket's monitor, the ticket can be
+         * closed in the mean time.
+         *
+         * @throws PrintRejectedException if no slot was freed in time or if the ticket was closed.
+         */
+        public void start() throws InterruptedException {
+            synchronized (this) {
+                if (closed) {
+                    throw new PrintRejectedException("The print has been abandoned", retryAfterSeconds);
+                }
+            }
+            boolean acquired = false;
+            final Timer.Context timer = waitTimer.time();
+            try {
+                acquired = slots.tryAcquire(maxWaitSeconds, TimeUnit.SECONDS);
+            } finally {
+                timer.stop();
+                synchronized (this) {
+                    stopWaiting();
+                    if (acquired) {
+                        if (closed) {
+                            slots.release();
+                        } else {
+                            running = true;
+                        }
+                    }
+                }
+            }
+            if (!acquired) {
+                close();
+                throw reject("Timeout while waiting for the other prints to finish, try again later");
+            }
+            if (!running) {
+                throw new PrintRejectedException("The print has been abandoned", retryAfterSeconds);
+            }
+        }
+
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            stopWaiting();
+            if (running) {
+                slots.release();
+            }
+            appUsage.decrementAndGet();
+        }
+
+        private void stopWaiting() {
+            if (waiting) {
+                waiting = false;
+                nbWaiting.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import com.google.common.io.ByteStreams;
+import com.lowagie.text.DocumentException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.CancellationToken;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.RenderingContext;
+import org.mapfish.print.cache.PrintResultCache;
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+import org.mapfish.print.utils.PJsonObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One print: the spec, the printer to use and the temporary file the result is written to
+ * (none if the result is streamed to the client).
+ * <p/>
+ * A job is created on the request thread (that's where the headers are available) and can
+ * then be run right away or later on by a {@link PrintJobManager}. The printer given to the
+ * constructor must have been started, it is stopped once the job is done or cancelled.
+ */
+class PrintJob implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(PrintJob.class);
+
+    enum Status {
+        WAITING, RUNNING, FINISHED, ERROR
+    }
+
+    private final MapPrinter mapPrinter;
+    private final PJsonObject specJson;
+    private final Map<String, String> headers;
+    private final TempFileMetadata tempFileMetadata;
+    /**
+     * The admission of this print. Null if the number of prints is not limited.
+     */
+    private final PrintAdmissionController.Ticket ticket;
+    /**
+     * Null if the printouts are not cached.
+     */
+    private final PrintResultCache resultCache;
+    /**
+     * The key of the printout in the cache. Null if it must not be cached.
+     */
+    private final String cacheKey;
+    private final long creationTime = System.currentTimeMillis();
+
+    /**
+     * Released when the job is either finished, in error or cancelled.
+     */
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Status status = Status.WAITING;
+    private volatile Throwable error = null;
+    private volatile long startTime = 0L;
+    private volatile long endTime = 0L;
+    /**
+     * Cancels the running print. Null until the job is started.
+     */
+    private volatile CancellationToken cancellation = null;
+
+    PrintJob(MapPrinter mapPrinter, PJsonObject specJson, Map<String, String> headers, TempFileMetadata tempFileMetadata,
+             PrintAdmissionController.Ticket ticket) {
+        this(mapPrinter, specJson, headers, tempFileMetadata, ticket, null);
+    }
+
+    PrintJob(MapPrinter mapPrinter, PJsonObject specJson, Map<String, String> headers, TempFileMetadata tempFileMetadata,
+             PrintAdmissionController.Ticket ticket, PrintResultCache resultCache) {
+        this.mapPrinter = mapPrinter;
+        this.specJson = specJson;
+        this.headers = headers;
+        this.tempFileMetadata = tempFileMetadata;
+        this.ticket = ticket;
+        this.resultCache = resultCache;
+        this.cacheKey = resultCache != null ? resultCache.createKey(specJson, headers, mapPrinter.getConfigVersion()) : null;
+    }
+
+    /**
+     * Do the print, keeping track of the outcome. Used when the job is run by a {@link PrintJobManager}.
+     */
+    public void run() {
+        try {
+            print();
+        } catch (Throwable e) {
+            LOGGER.error("Error while generating PDF", e);
+        }
+    }
+
+    /**
+     * Do the print in the calling thread.
+     */
+    TempFileMetadata print() throws IOException, DocumentException, InterruptedException {
+        print(null);
+        return tempFileMetadata;
+    }
+
+    /**
+     * Do the print in the calling thread, writing the result to the given stream.
+     *
+     * @param target where to write the result, null for the job's temporary file. Is closed once done.
+     */
+    void print(OutputStream target) throws IOException, DocumentException, InterruptedException {
+        try {
+            if (copyFromCache(target)) {
+                status = Status.FINISHED;
+                return;
+            }
+            if (ticket != null) {
+                ticket.start();
+            }
+            startTime = System.currentTimeMillis();
+            status = Status.RUNNING;
+            final CancellationToken token = new CancellationToken(
+                    TimeUnit.MINUTES.toMillis(mapPrinter.getConfig().getPrintTimeoutMinutes()));
+            cancellation = token;
+            //a streamed printout is copied to the cache while written
+            final File cacheFile = cacheKey != null && target != null ? resultCache.createTempFile() : null;
+            try {
+                OutputStream out = new CancellingOutputStream(
+                        target != null ? target : new FileOutputStream(tempFileMetadata.tempFile), token);
+                final CopyingOutputStream copying = cacheFile != null ?
+                        new CopyingOutputStream(out, new FileOutputStream(cacheFile)) : null;
+                if (copying != null) {
+                    out = copying;
+                }
+                final RenderingContext context;
+                try {
+                    context = mapPrinter.print(specJson, out, headers, token);
+                } finally {
+                    out.close();
+                }
+                //a printout with broken images or errors must not be served once the servers are back
+                final boolean degraded = context == null || context.isDegraded();
+                if (degraded && cacheKey != null) {
+                    LOGGER.info("Not caching a degraded printout");
+                }
+                if (copying != null) {
+                    if (copying.isComplete() && !degraded) {
+                        try {
+                            resultCache.putTempFile(cacheKey, cacheFile);
+                        } catch (IOException e) {
+                            LOGGER.warn("Cannot cache the printout: " + e);
+                        }
+                    }
+                } else if (cacheKey != null && !degraded) {
+                    resultCache.put(cacheKey, tempFileMetadata.tempFile);
+                }
+            } finally {
+                if (cacheFile != null && cacheFile.exists() && !cacheFile.delete()) {
+                    LOGGER.warn("Cannot delete file:" + cacheFile.getAbsolutePath());
+                }
+            }
+            status = Status.FINISHED;
+        } catch (Throwable e) {
+            fail(e);
+            throw e;
+        } finally {
+            endTime = System.currentTimeMillis();
+            if (ticket != null) {
+                ticket.close();
+            }
+            mapPrinter.stop();
+            done.countDown();
+        }
+    }
+
+    /**
+     * @return true if the printout was found in the cache and written to the target (or the temporary file).
+     */
+    private boolean copyFromCache(OutputStream target) throws IOException {
+        final File cached = cacheKey != null ? resultCache.get(cacheKey) : null;
+        if (cached == null) {
+            return false;
+        }
+        startTime = System.currentTimeMillis();
+        try {
+            if (target != null) {
+                final InputStream in = new FileInputStream(cached);
+                try {
+                    ByteStreams.copy(in, target);
+                } finally {
+                    in.close();
+                }
+                target.close();
+            } else {
+                Files.copy(cached.toPath(), tempFileMetadata.tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            //evicted in the mean time
+        } catch (NoSuchFileException e) {
+            //evicted in the mean time
+        }
+        return false;
+    }
+
+    /**
+     * Abandon a job. If it is running, its print and the fetches it is doing are stopped.
+     */
+    void cancel(Throwable reason) {
+        final CancellationToken token = cancellation;
+        if (token != null) {
+            token.cancel(String.valueOf(reason.getMessage()));
+            return;
+        }
+        try {
+            fail(reason);
+            if (ticket != null) {
+                ticket.close();
+            }
+            mapPrinter.stop();
+        } finally {
+            endTime = System.currentTimeMillis();
+            done.countDown();
+        }
+    }
+
+    private void fail(Throwable e) {
+        error = e;
+        status = Status.ERROR;
+        if (tempFileMetadata.tempFile != null && !tempFileMetadata.tempFile.delete()) {
+            LOGGER.warn("Cannot delete file:" + tempFileMetadata.tempFile.getAbsolutePath());
+        }
+    }
+
+    boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    Status getStatus() {
+        return status;
+    }
+
+    Throwable getError() {
+        return error;
+    }
+
+    TempFileMetadata getTempFileMetadata() {
+        return tempFileMetadata;
+    }
+
+    /**
+     * @return the printer of the job. Started until the job is done or cancelled.
+     */
+    MapPrinter getMapPrinter() {
+        return mapPrinter;
+    }
+
+    long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return the time the job spent waiting before being started (until now if still waiting).
+     */
+    long getWaitingTime() {
+        final long start = startTime;
+        return (start == 0L ? System.currentTimeMillis() : start) - creationTime;
+    }
+
+    /**
+     * @return the time elapsed since the job has been submitted (until the end if done).
+     */
+    long getElapsedTime() {
+        final long end = endTime;
+        return (end == 0L ? System.currentTimeMillis() : end) - creationTime;
+    }
+
+    /**
+     * Writes to a second stream too. The failures of the second stream are ignored (it stops being written).
+     */
+    static class CopyingOutputStream extends FilterOutputStream {
+        private OutputStream copy;
+        private boolean complete = true;
+
+        CopyingOutputStream(OutputStream out, OutputStream copy) {
+            super(out);
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                try {
+                    copy.write(b);
+                } catch (IOException e) {
+                    copyFailed(e);
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                try {
+                    copy.write(b, off, len);
+                } catch (IOException e) {
+                    copyFailed(e);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (copy != null) {
+                    try {
+                        copy.close();
+                    } catch (IOException e) {
+                        copyFailed(e);
+                    }
+                }
+            }
+        }
+
+        private void copyFailed(IOException e) {
+            LOGGER.warn("Cannot write the copy of the printout: " + e);
+            complete = false;
+            final OutputStream failed = copy;
+            copy = null;
+            try {
+                failed.close();
+            } catch (IOException ignored) {
+                //already failed
+            }
+        }
+
+        /**
+         * @return false if the copy failed.
+         */
+        boolean isComplete() {
+            return complete;
+        }
+    }
+
+    /**
+     * Cancels the print as soon as writing its output fails. When the output goes to the client,
+     * that's how we notice it went away.
+     */
+    static class CancellingOutputStream extends FilterOutputStream {
+        private final CancellationToken cancellation;
+
+        CancellingOutputStream(OutputStream out, CancellationToken cancellation) {
+            super(out);
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                throw cancel(e);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                throw cancel(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw cancel(e);
+            }
+        }
+
+        private IOException cancel(IOException e) {
+            cancellation.cancel("cannot write the output (" + e.getMessage() + ")");
+            return e;
+        }
+    }
+}
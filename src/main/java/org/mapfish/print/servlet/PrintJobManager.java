@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps track of the print jobs submitted through /create.json and runs them on the
+ * print job threads of {@link org.mapfish.print.ThreadResources}.
+ * <p/>
+ * The jobs are only known by the node that created them. Once a job is finished, the
+ * printout is found through its metadata file like the ones created synchronously.
+ */
+class PrintJobManager {
+    private final ExecutorService executor;
+
+    /**
+     * The jobs that are queued, running or done but not yet purged, indexed by id.
+     */
+    private final Map<String, PrintJob> jobs = new ConcurrentHashMap<String, PrintJob>();
+
+    PrintJobManager(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue the given job.
+     *
+     * @param onSuccess called in the job's thread once the printout has been successfully written.
+     * @throws RejectedExecutionException if the queue is full. The job is cancelled in this case.
+     */
+    void submit(final String id, final PrintJob job, final Runnable onSuccess) {
+        jobs.put(id, job);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    job.run();
+                    if (job.getStatus() == PrintJob.Status.FINISHED) {
+                        onSuccess.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(id);
+            job.cancel(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return null if the job is not (or no more) known.
+     */
+    PrintJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Forget about the jobs that are done since more than the given time.
+     */
+    void purgeOldJobs(long maxAgeMillis) {
+        final long minTime = System.currentTimeMillis() - maxAgeMillis;
+        for (Iterator<PrintJob> iterator = jobs.values().iterator(); iterator.hasNext(); ) {
+            PrintJob job = iterator.next();
+            if (job.isDone() && job.getCreationTime() + job.getElapsedTime() < minTime) {
+                iterator.remove();
+            }
+        }
+    }
+}
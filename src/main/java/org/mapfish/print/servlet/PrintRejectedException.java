@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import java.io.Serial;
+
+import org.mapfish.print.PrintException;
+
+/**
+ * Thrown when the server is too busy to accept a print.
+ */
+public class PrintRejectedException extends PrintException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final int retryAfterSeconds;
+
+    public PrintRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return the number of seconds the client should wait before trying again.
+     */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.servlet;
+
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the printouts are kept until downloaded. By default they are in the temporary
+ * directory of the servlet, so they can be downloaded only from the node that printed
+ * them. To have them available from all the nodes of a cluster, define a bean
+ * implementing this interface (for example a {@link SharedFilesystemPrintResultStore}).
+ * <p/>
+ * The printouts are sent from their file, so the implementations must give a file
+ * readable by every node.
+ */
+public interface PrintResultStore {
+    /**
+     * Create the empty file a printout will be written to. It's not available for download until published.
+     */
+    File createFile(String prefix, String suffix) throws IOException;
+
+    /**
+     * Make a printout available for download.
+     */
+    void publish(String id, TempFileMetadata metadata) throws IOException;
+
+    /**
+     * @return null if the printout is unknown or expired.
+     */
+    TempFileMetadata getMetadata(String id);
+
+    /**
+     * Delete the expired printouts. Called regularly in the background.
+     */
+    void purge();
+}
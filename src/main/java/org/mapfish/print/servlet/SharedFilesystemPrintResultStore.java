@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Keeps the printouts in a directory shared by all the nodes of a cluster (NFS, SMB, ...),
+ * so the URL returned by create.json works whatever node the download goes to.
+ * <p/>
+ * The metadata of a printout is written next to it, in a file named after its id. It's written
+ * to a temporary file first and then renamed atomically, so the lookups don't need any lock:
+ * the metadata is either complete or not there. The purge lists the directory, but it's
+ * done in the background.
+ */
+public class SharedFilesystemPrintResultStore implements PrintResultStore {
+    private static final Logger LOGGER = LogManager.getLogger(SharedFilesystemPrintResultStore.class);
+    private static final String METADATA_PREFIX = "metadata-";
+    private static final String METADATA_SUFFIX = ".json";
+    private static final String PARTIAL_SUFFIX = ".part";
+    /**
+     * The ids are file names, don't let them go outside of the directory.
+     */
+    private static final Pattern VALID_ID = Pattern.compile("[\\w.-]+");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private File directory;
+    private int maxAgeSeconds = 10 * 60;
+
+    @PostConstruct
+    public void init() {
+        if (directory == null) {
+            throw new IllegalStateException("The directory of the shared print result store is not set");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create dir:" + directory);
+        }
+    }
+
+    public File createFile(String prefix, String suffix) throws IOException {
+        return File.createTempFile(prefix, suffix, directory);
+    }
+
+    public void publish(String id, TempFileMetadata metadata) throws IOException {
+        final File partial = File.createTempFile(METADATA_PREFIX, PARTIAL_SUFFIX, directory);
+        try {
+            objectMapper.writeValue(partial, metadata);
+            Files.move(partial.toPath(), getMetadataFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (partial.exists() && !partial.delete()) {
+                LOGGER.warn("Cannot delete file:" + partial.getAbsolutePath());
+            }
+        }
+    }
+
+    public TempFileMetadata getMetadata(String id) {
+        if (!VALID_ID.matcher(id).matches() || id.contains("..")) {
+            return null;
+        }
+        final File file = getMetadataFile(id);
+        if (!file.isFile() || isExpired(file, System.currentTimeMillis())) {
+            return null;
+        }
+        try {
+            return objectMapper.readValue(file, TempFileMetadata.class);
+        } catch (IOException e) {
+            // could be purged while being read
+            LOGGER.info("Printout with the id " + id + " has been deleted");
+            return null;
+        }
+    }
+
+    public void purge() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        //the metadata first, for the printouts to not be found anymore before being deleted
+        for (File file : files) {
+            if (file.getName().startsWith(METADATA_PREFIX) && isExpired(file, now)) {
+                delete(file);
+            }
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(METADATA_PREFIX) && file.isFile() && isExpired(file, now)) {
+                delete(file);
+            }
+        }
+    }
+
+    private boolean isExpired(File file, long now) {
+        return file.lastModified() < now - TimeUnit.SECONDS.toMillis(maxAgeSeconds);
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Cannot delete file:" + file.getAbsolutePath());
+        }
+    }
+
+    private File getMetadataFile(String id) {
+        return new File(directory, METADATA_PREFIX + id + METADATA_SUFFIX);
+    }
+
+    /**
+     * The shared directory, must be mounted on all the nodes.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The time after which a printout is deleted.
+     */
+    public void setMaxAgeSeconds(int maxAgeSeconds) {
+        this.maxAgeSeconds = maxAgeSeconds;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print.servlet;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the printouts available for download, by id. Replaces the listing of the temporary
+ * directory that was done for each download and each print.
+ * <p/>
+ * The entries are kept in memory, ordered by age for the purge. If a log file is given, each
+ * new entry is appended to it. It is read back at startup and, when an id is not found, in
+ * case another node sharing the same temporary directory added it. It is rewritten from time
+ * to time to drop the purged entries.
+ * <p/>
+ * The nodes sharing the log lock the file log.lock while appending, reading or rewriting it,
+ * a rewrite keeps the lines the other nodes appended. A node notices the log has been
+ * rewritten by another one thanks to the identity of the file (its inode). On the file
+ * systems not giving it, only a log shorter than what was read is noticed: the log must
+ * then not be shared.
+ */
+class TempFileMetadataStore {
+    private static final Logger LOGGER = LogManager.getLogger(TempFileMetadataStore.class);
+
+    /**
+     * The file locks are held by the whole JVM, these monitors serialize the accesses of the
+     * stores of the same JVM to a log. By absolute path of the log.
+     */
+    private static final ConcurrentMap<String, Object> LOG_MONITORS = new ConcurrentHashMap<String, Object>();
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final File log;
+    private final File lockFile;
+    private final Object logMonitor;
+    private final long maxAgeMillis;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentSkipListSet<Entry> byAge = new ConcurrentSkipListSet<Entry>(new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            final int result = Long.compare(a.time, b.time);
+            return result != 0 ? result : a.id.compareTo(b.id);
+        }
+    });
+
+    /**
+     * Position up to where the log has been read. Protected by this.
+     */
+    private long logOffset = 0;
+    /**
+     * The identity of the log file that has been read up to logOffset. Protected by this.
+     */
+    private Object logFileKey = null;
+    /**
+     * Number of entries in the log that are not in the index anymore. Protected by this.
+     */
+    private int nbDeadInLog = 0;
+
+    /**
+     * @param log the file to persist the index to, null to keep it only in memory.
+     * @param maxAgeMillis the time after which a printout is purged.
+     */
+    TempFileMetadataStore(File log, long maxAgeMillis) {
+        this.log = log;
+        this.maxAgeMillis = maxAgeMillis;
+        if (log != null) {
+            lockFile = new File(log.getPath() + ".lock");
+            final Object monitor = new Object();
+            final Object existing = LOG_MONITORS.putIfAbsent(log.getAbsolutePath(), monitor);
+            logMonitor = existing != null ? existing : monitor;
+            readLog();
+        } else {
+            lockFile = null;
+            logMonitor = null;
+        }
+    }
+
+    void put(String id, TempFileMetadata metadata) {
+        final Entry entry = new Entry(id, System.currentTimeMillis(), metadata);
+        entries.put(id, entry);
+        byAge.add(entry);
+        if (log != null) {
+            append(entry);
+        }
+    }
+
+    /**
+     * @return null if unknown or expired.
+     */
+    TempFileMetadata get(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null && log != null) {
+            readLog();
+            entry = entries.get(id);
+        }
+        return entry != null && !isExpired(entry, System.currentTimeMillis()) ? entry.metadata : null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Forget about the expired printouts and delete their files.
+     */
+    void purge() {
+        final long now = System.currentTimeMillis();
+        int nbPurged = 0;
+        Entry oldest;
+        while ((oldest = byAge.pollFirst()) != null) {
+            if (!isExpired(oldest, now)) {
+                byAge.add(oldest);
+                break;
+            }
+            if (entries.remove(oldest.id, oldest)) {
+                ++nbPurged;
+                final File file = oldest.metadata.tempFile;
+                if (file != null && file.exists() && !file.delete()) {
+                    LOGGER.warn("Cannot delete file:" + file.getAbsolutePath());
+                }
+            }
+        }
+        if (log != null && nbPurged > 0) {
+            synchronized (this) {
+                nbDeadInLog += nbPurged;
+                if (nbDeadInLog > entries.size()) {
+                    compactLog();
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return entry.time < now - maxAgeMillis;
+    }
+
+    private synchronized void append(Entry entry) {
+        try {
+            final byte[] line = (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+            synchronized (logMonitor) {
+                final FileChannel lock = lockLog();
+                try {
+                    final boolean upToDate = log.isFile() ?
+                            log.length() == logOffset && Objects.equals(getLogFileKey(), logFileKey) :
+                            logOffset == 0;
+                    final OutputStream out = new FileOutputStream(log, true);
+                    try {
+                        out.write(line);
+                    } finally {
+                        out.close();
+                    }
+                    if (upToDate) {
+                        logOffset += line.length;
+                        logFileKey = getLogFileKey();
+                    }
+                } finally {
+                    lock.close();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to persist the metadata of the printout " + entry.id, e);
+        }
+    }
+
+    /**
+     * Read what was added to the log since the last time.
+     */
+    private synchronized void readLog() {
+        synchronized (logMonitor) {
+            try {
+                final FileChannel lock = lockLog();
+                try {
+                    readLogLocked();
+                } finally {
+                    lock.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read " + log, e);
+            }
+        }
+    }
+
+    private void readLogLocked() throws IOException {
+        if (!log.isFile()) {
+            logOffset = 0;
+            logFileKey = null;
+            return;
+        }
+        final Object fileKey = getLogFileKey();
+        final long length = log.length();
+        final boolean rewritten = !Objects.equals(fileKey, logFileKey) || length < logOffset;
+        if (rewritten) {
+            //by another node, read it from the start
+            logOffset = 0;
+            nbDeadInLog = 0;
+        }
+        logFileKey = fileKey;
+        if (length == logOffset) {
+            return;
+        }
+        final byte[] data;
+        final RandomAccessFile file = new RandomAccessFile(log, "r");
+        try {
+            file.seek(logOffset);
+            data = new byte[(int) (length - logOffset)];
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+
+        final long now = System.currentTimeMillis();
+        int start = 0;
+        for (int i = 0; i < data.length; ++i) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            final String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            try {
+                final Entry entry = objectMapper.readValue(line, Entry.class);
+                if (isExpired(entry, now)) {
+                    ++nbDeadInLog;
+                } else if (entries.containsKey(entry.id)) {
+                    if (!rewritten) {
+                        ++nbDeadInLog;
+                    }
+                } else {
+                    entries.put(entry.id, entry);
+                    byAge.add(entry);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Ignoring an invalid line in " + log + ": " + line);
+            }
+        }
+        //an incomplete line is read again next time
+        logOffset += start;
+    }
+
+    private void compactLog() {
+        synchronized (logMonitor) {
+            final File newLog = new File(log.getPath() + ".new");
+            try {
+                final FileChannel lock = lockLog();
+                try {
+                    //keep the entries the other nodes appended since the last read
+                    readLogLocked();
+                    final OutputStream out = new FileOutputStream(newLog);
+                    long length = 0;
+                    try {
+                        for (Entry entry : byAge) {
+                            final byte[] line = (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+                            out.write(line);
+                            length += line.length;
+                        }
+                    } finally {
+                        out.close();
+                    }
+                    Files.move(newLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    logOffset = length;
+                    logFileKey = getLogFileKey();
+                    nbDeadInLog = 0;
+                } finally {
+                    lock.close();
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to rewrite " + log, e);
+            }
+        }
+    }
+
+    /**
+     * Lock the log for the other nodes.
+     *
+     * @return the channel to close to release the lock.
+     */
+    private FileChannel lockLog() throws IOException {
+        final FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        boolean locked = false;
+        try {
+            channel.lock();
+            locked = true;
+            return channel;
+        } finally {
+            if (!locked) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return the identity of the current log file, null if not available.
+     */
+    private Object getLogFileKey() throws IOException {
+        try {
+            return Files.readAttributes(log.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * An entry of the index, as written in the log.
+     */
+    static final class Entry {
+        public String id;
+        public long time;
+        public TempFileMetadata metadata;
+
+        public Entry() {
+        }
+
+        Entry(String id, long time, TempFileMetadata metadata) {
+            this.id = id;
+            this.time = time;
+            this.metadata = metadata;
+        }
+    }
+}
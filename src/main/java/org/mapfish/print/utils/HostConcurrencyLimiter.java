@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.utils;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.mapfish.print.CancellationToken;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests done in parallel to each host and in total.
+ * <p/>
+ * Used when the map chunks are fetched with one (virtual) thread per tile: the
+ * number of threads doesn't limit anything anymore and the tiles wait here instead
+ * of in the connection pool (where the wait time is limited by the connection timeout).
+ * <p/>
+ * The limit of each host can be adaptive (AIMD): it's increased by one after a full window of
+ * successful requests done while the host was saturated and multiplied by backoffRatio when a
+ * request fails (IO error, 429 or 5xx) or takes more than latencyTolerance times the usual
+ * latency of the host. The usual latency is the lowest one observed, slowly drifting to the
+ * current ones. A slow map server gets less requests in parallel and a fast one more.
+ */
+public class HostConcurrencyLimiter {
+    /**
+     * How often a waiting request checks if its print has been cancelled.
+     */
+    private static final long CANCELLATION_CHECK_MILLIS = 100;
+
+    private final int initialPerHost;
+    private final int minPerHost;
+    private final int maxPerHost;
+    private final Semaphore global;
+    private final ConcurrentMap<String, Host> perHost = new ConcurrentHashMap<String, Host>();
+    private final MetricRegistry metricRegistry;
+
+    private double latencyTolerance = 2.0;
+    private double backoffRatio = 0.75;
+
+    /**
+     * Create a limiter with a fixed limit for each host.
+     */
+    public HostConcurrencyLimiter(int maxPerHost, int maxTotal) {
+        this(maxPerHost, maxPerHost, maxPerHost, maxTotal, null);
+    }
+
+    /**
+     * Create a limiter with an adaptive limit for each host (if minPerHost != maxPerHost).
+     *
+     * @param metricRegistry where to publish the limit of each host. Can be null.
+     */
+    public HostConcurrencyLimiter(int initialPerHost, int minPerHost, int maxPerHost, int maxTotal, MetricRegistry metricRegistry) {
+        this.initialPerHost = Math.max(minPerHost, Math.min(maxPerHost, initialPerHost));
+        this.minPerHost = minPerHost;
+        this.maxPerHost = maxPerHost;
+        this.global = new Semaphore(maxTotal, true);
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Wait for the right to do a request to the given URI.
+     *
+     * @return the permit to close once the request is done.
+     */
+    public Permit acquire(URI uri) throws InterruptedIOException {
+        return acquire(uri, null);
+    }
+
+    /**
+     * Wait for the right to do a request to the given URI, as long as the print is not cancelled
+     * and its deadline not reached.
+     *
+     * @param cancellation the cancellation of the print doing the request. Can be null.
+     * @return the permit to close once the request is done.
+     * @throws org.mapfish.print.PrintCancelledException if the print is cancelled while waiting.
+     */
+    public Permit acquire(URI uri, CancellationToken cancellation) throws InterruptedIOException {
+        final Host host = getHost(uri.getAuthority());
+        try {
+            host.acquire(cancellation);
+        } catch (InterruptedException e) {
+            throw interrupted(uri);
+        }
+        boolean acquired = false;
+        try {
+            if (cancellation == null) {
+                global.acquire();
+            } else {
+                while (!global.tryAcquire(getWaitMillis(cancellation), TimeUnit.MILLISECONDS)) {
+                    cancellation.check();
+                }
+            }
+            acquired = true;
+        } catch (InterruptedException e) {
+            throw interrupted(uri);
+        } finally {
+            if (!acquired) {
+                host.release(System.nanoTime(), true, false);
+            }
+        }
+        return new Permit(host);
+    }
+
+    /**
+     * Get the right to do a request to the given URI without waiting.
+     *
+     * @return null if the limit is reached, or else the permit to close once the request is done.
+     */
+    public Permit tryAcquire(URI uri) {
+        final Host host = getHost(uri.getAuthority());
+        if (!host.tryAcquire()) {
+            return null;
+        }
+        if (!global.tryAcquire()) {
+            host.release(System.nanoTime(), true, false);
+            return null;
+        }
+        return new Permit(host);
+    }
+
+    /**
+     * @throws org.mapfish.print.PrintCancelledException if the print is cancelled.
+     */
+    private static long getWaitMillis(CancellationToken cancellation) throws InterruptedIOException {
+        cancellation.check();
+        return Math.max(1, Math.min(cancellation.getRemainingMillis(), CANCELLATION_CHECK_MILLIS));
+    }
+
+    private Host getHost(String authority) {
+        final String key = authority != null ? authority : "";
+        Host result = perHost.get(key);
+        if (result == null) {
+            final Host newHost = new Host();
+            result = perHost.putIfAbsent(key, newHost);
+            if (result == null) {
+                result = newHost;
+                registerGauges(key, newHost);
+            }
+        }
+        return result;
+    }
+
+    private void registerGauges(String authority, final Host host) {
+        if (metricRegistry == null) {
+            return;
+        }
+        registerGauge(MetricRegistry.name(getClass(), authority, "limit"), new Gauge<Integer>() {
+            public Integer getValue() {
+                return host.getLimit();
+            }
+        });
+        registerGauge(MetricRegistry.name(getClass(), authority, "in-flight"), new Gauge<Integer>() {
+            public Integer getValue() {
+                return host.getInFlight();
+            }
+        });
+    }
+
+    private void registerGauge(String name, Gauge<Integer> gauge) {
+        metricRegistry.remove(name);
+        metricRegistry.register(name, gauge);
+    }
+
+    private static InterruptedIOException interrupted(URI uri) {
+        Thread.currentThread().interrupt();
+        return new InterruptedIOException("Interrupted while waiting to fetch " + uri);
+    }
+
+    /**
+     * @return the current limit of the given host (authority of the URIs).
+     */
+    public int getLimit(String authority) {
+        final Host host = perHost.get(authority);
+        return host != null ? host.getLimit() : initialPerHost;
+    }
+
+    public boolean isAdaptive() {
+        return minPerHost != maxPerHost;
+    }
+
+    /**
+     * A request slower than the usual latency of its host multiplied by this is considered as a sign of overload.
+     */
+    public void setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * The limit of a host is multiplied by this when it's overloaded.
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * State of one host. Uses a lock instead of synchronized to not pin the virtual threads waiting on it.
+     */
+    private final class Host {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        private final Condition available = lock.newCondition();
+        private int limit = initialPerHost;
+        private int inFlight = 0;
+        private int nbSuccesses = 0;
+        private long lastDecrease = System.nanoTime();
+        private long usualLatency = -1L;
+
+        void acquire(CancellationToken cancellation) throws InterruptedException, InterruptedIOException {
+            lock.lockInterruptibly();
+            boolean acquired = false;
+            try {
+                while (inFlight >= limit) {
+                    if (cancellation == null) {
+                        available.await();
+                    } else {
+                        available.await(getWaitMillis(cancellation), TimeUnit.MILLISECONDS);
+                    }
+                }
+                ++inFlight;
+                acquired = true;
+            } finally {
+                if (!acquired && inFlight < limit) {
+                    // may have been signaled, pass it to another waiter
+                    available.signal();
+                }
+                lock.unlock();
+            }
+        }
+
+        boolean tryAcquire() {
+            lock.lock();
+            try {
+                if (inFlight >= limit) {
+                    return false;
+                }
+                ++inFlight;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param startTime the time (System.nanoTime()) the request was started.
+         * @param success   false if the request failed in a way showing the host is overloaded.
+         * @param done      false if the request was not done at all.
+         */
+        void release(long startTime, boolean success, boolean done) {
+            final long now = System.nanoTime();
+            lock.lock();
+            try {
+                final boolean saturated = inFlight >= limit;
+                --inFlight;
+                if (done && isAdaptive()) {
+                    adapt(now - startTime, startTime, now, success, saturated);
+                }
+                for (int i = inFlight; i < limit && lock.hasWaiters(available); ++i) {
+                    available.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void adapt(long latency, long startTime, long now, boolean success, boolean saturated) {
+            final boolean slow = usualLatency > 0 && latency > usualLatency * latencyTolerance;
+            if (success) {
+                if (usualLatency < 0 || latency < usualLatency) {
+                    usualLatency = latency;
+                } else {
+                    usualLatency += (latency - usualLatency) / 64;
+                }
+            }
+
+            if (!success || slow) {
+                // only one decrease for the requests that were in flight together
+                if (startTime - lastDecrease > 0) {
+                    limit = Math.max(minPerHost, (int) (limit * backoffRatio));
+                    lastDecrease = now;
+                    nbSuccesses = 0;
+                }
+            } else if (saturated && ++nbSuccesses >= limit) {
+                nbSuccesses = 0;
+                limit = Math.min(maxPerHost, limit + 1);
+            }
+        }
+
+        int getLimit() {
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The right to do one request. Can be closed more than once.
+     */
+    public final class Permit implements Closeable {
+        private final Host host;
+        private final long startTime = System.nanoTime();
+        private boolean failed = false;
+        private boolean closed = false;
+
+        private Permit(Host host) {
+            this.host = host;
+        }
+
+        /**
+         * Tell the request failed in a way showing the host is overloaded (timeout, 429, 5xx, ...).
+         */
+        public synchronized void markFailed() {
+            failed = true;
+        }
+
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                global.release();
+                host.release(startTime, !failed, true);
+            }
+        }
+
+        /**
+         * Give the permit back without the request having been done (or finished), it is not
+         * taken into account by the adaptive limit.
+         */
+        public synchronized void abandon() {
+            if (!closed) {
+                closed = true;
+                global.release();
+                host.release(startTime, true, false);
+            }
+        }
+    }
+}
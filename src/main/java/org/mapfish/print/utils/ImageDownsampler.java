@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.utils;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Reduces the resolution of the images that are much bigger than the size they are printed at, in order
+ * to not embed pixels nobody will see in the PDF.
+ * <p/>
+ * The image is decoded with subsampling (only one pixel out of N is decoded in each direction) and encoded
+ * again, in JPEG if it was a JPEG, in PNG otherwise.
+ */
+public final class ImageDownsampler {
+    private static final float JPEG_QUALITY = 0.9f;
+
+    private ImageDownsampler() {
+    }
+
+    /**
+     * @param data      the encoded image
+     * @param maxWidth  the width, in pixels, the image is printed at
+     * @param maxHeight the height, in pixels, the image is printed at
+     * @return the encoded downsampled image, null if it is not at least twice as big as the target size (or
+     *         if it cannot be decoded).
+     */
+    public static Result downsample(byte[] data, long maxWidth, long maxHeight) throws IOException {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            return null;
+        }
+        final ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                //the result is never smaller than the target
+                final int factor = (int) Math.min(width / maxWidth, height / maxHeight);
+                if (factor < 2) {
+                    return null;
+                }
+
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                final BufferedImage image = reader.read(0, param);
+                final boolean jpeg = reader.getFormatName().toLowerCase(Locale.ROOT).startsWith("jp");
+                return new Result(encode(image, jpeg), width, height);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] encode(BufferedImage image, boolean jpeg) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : "png").next();
+        final ImageOutputStream output = ImageIO.createImageOutputStream(result);
+        try {
+            writer.setOutput(output);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (jpeg) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(JPEG_QUALITY);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * A downsampled image.
+     */
+    public static final class Result {
+        private final byte[] data;
+        private final int originalWidth;
+        private final int originalHeight;
+
+        private Result(byte[] data, int originalWidth, int originalHeight) {
+            this.data = data;
+            this.originalWidth = originalWidth;
+            this.originalHeight = originalHeight;
+        }
+
+        /**
+         * @return the encoded image.
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getOriginalWidth() {
+            return originalWidth;
+        }
+
+        public int getOriginalHeight() {
+            return originalHeight;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package org.pvalsecc.concurrent;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Same guaranties and same scheduling as {@link OrderedResultsExecutor}, but
+ * without any global lock. Meant for executors having a lot of threads.
+ * <ul>
+ * <li>the resultCollectors having tasks waiting are in a lock-free deque, served
+ * in weighted round-robin.
+ * <li>each resultCollector has its own sequence numbers and its own reorder
+ * buffer: a ring indexed by the sequence number (with a skip list for the
+ * results too far ahead). The results are sent out by the first thread finding
+ * the next one available, the other threads never wait for it.
+ * <li>the idle threads wait on a semaphore counting the tasks to do.
+ * </ul>
+ * Like with {@link OrderedResultsExecutor}, the resultCollectors are identified by
+ * identity (their equals/hashCode methods are not used).
+ */
+public class LockFreeOrderedResultsExecutor<RESULT> implements OrderedExecutor<RESULT> {
+    public static Log LOGGER = LogFactory.getLog(LockFreeOrderedResultsExecutor.class);
+
+    /**
+     * Size of the reorder ring of each resultCollector. Must be a power of 2.
+     */
+    private static final int RING_SIZE = 256;
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    /**
+     * Value of {@link CollectorState#nbPending} once a state is not usable anymore.
+     */
+    private static final int DEAD = -1;
+
+    /**
+     * The base name for the executor threads.
+     */
+    final String name;
+
+    /**
+     * The executor threads.
+     */
+    private final Thread[] threads;
+
+    /**
+     * The state of each resultCollector having tasks not yet sent out.
+     */
+    private final ConcurrentMap<CollectorKey, CollectorState> collectors = new ConcurrentHashMap<CollectorKey, CollectorState>();
+
+    /**
+     * The resultCollectors having tasks waiting to be executed, in the order they will
+     * be served. A state is in there at most once.
+     */
+    private final ConcurrentLinkedDeque<CollectorState> ready = new ConcurrentLinkedDeque<CollectorState>();
+
+    /**
+     * One permit per task waiting to be executed, plus one per thread once stopped.
+     */
+    private final Semaphore permits = new Semaphore(0);
+
+    private volatile boolean stopped = false;
+
+    public LockFreeOrderedResultsExecutor(int nbThreads, String name) {
+        this.name = name;
+        this.threads = new Thread[nbThreads];
+    }
+
+    public void start() {
+        stopped = false;
+        for (int i = 0; i < threads.length; i++) {
+            if (threads[i] == null) {
+                Thread thread = threads[i] = new Thread(new Runner(), name + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        permits.release(threads.length);
+
+        for (int i = 0; i < threads.length; i++) {
+            Thread thread = threads[i];
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    //retry
+                }
+            }
+            threads[i] = null;
+        }
+    }
+
+    public void addTask(OrderedResultsExecutor.Task<RESULT> command, OrderedResultsExecutor.ResultCollector<RESULT> resultCollector) {
+        addTask(command, resultCollector, OrderedResultsExecutor.DEFAULT_PRIORITY);
+    }
+
+    public void addTask(OrderedResultsExecutor.Task<RESULT> command, OrderedResultsExecutor.ResultCollector<RESULT> resultCollector,
+                        int priority) {
+        final InternalTask<RESULT> task = createTask(command, resultCollector, priority);
+        final CollectorState state = task.state;
+        state.queue.add(task);
+        if (state.nbQueued.getAndIncrement() == 0) {
+            //the state was not in the ready deque, we are the only one touching its credits
+            state.credits = state.priority;
+            ready.offerLast(state);
+        }
+        permits.release();
+    }
+
+    /**
+     * Attribute the next sequence number of the given resultCollector to a new task.
+     */
+    final InternalTask<RESULT> createTask(OrderedResultsExecutor.Task<RESULT> command,
+                                          OrderedResultsExecutor.ResultCollector<RESULT> resultCollector, int priority) {
+        final CollectorState state = getState(resultCollector, priority);
+        return new InternalTask<RESULT>(command, state, state.nextSequenceNumber.incrementAndGet());
+    }
+
+    /**
+     * Execute the given task in the current thread and send out the results available.
+     */
+    final void runTask(InternalTask<RESULT> task) {
+        try {
+            task.result = task.task.process();
+        } catch (Throwable t) {
+            LOGGER.error("Error while executing a task in [" + name + "]", t);
+            task.error = t;
+        } finally {
+            //even a task in error has to be sent out, otherwise the next results
+            //of the same collector would be blocked
+            addOutput(task);
+        }
+    }
+
+    /**
+     * Get the state of the given resultCollector, with one more pending task.
+     */
+    private CollectorState getState(OrderedResultsExecutor.ResultCollector<RESULT> resultCollector, int priority) {
+        final CollectorKey key = new CollectorKey(resultCollector);
+        while (true) {
+            CollectorState state = collectors.get(key);
+            if (state == null) {
+                final CollectorState newState = new CollectorState(key, Math.max(priority, OrderedResultsExecutor.DEFAULT_PRIORITY));
+                state = collectors.putIfAbsent(key, newState);
+                if (state == null) {
+                    state = newState;
+                }
+            }
+            if (state.addPending()) {
+                return state;
+            }
+            //all the tasks of this state have just been sent out, it's being removed
+            collectors.remove(key, state);
+        }
+    }
+
+    /**
+     * Wait for a task to execute, in round-robin between the resultCollectors.
+     *
+     * @return null if the thread has to stop.
+     */
+    private InternalTask<RESULT> takeTask() {
+        permits.acquireUninterruptibly();
+        while (true) {
+            final CollectorState state = ready.pollFirst();
+            if (state != null) {
+                //the task is added to the queue before nbQueued is incremented, there is one
+                final InternalTask<RESULT> result = state.queue.poll();
+                if (state.nbQueued.decrementAndGet() > 0) {
+                    if (--state.credits > 0) {
+                        ready.offerFirst(state);
+                    } else {
+                        //it's the turn of the next resultCollector
+                        state.credits = state.priority;
+                        ready.offerLast(state);
+                    }
+                }
+                return result;
+            }
+            if (stopped) {
+                return null;
+            }
+            //another thread is between the pollFirst and the offer of the state having our task
+            Thread.yield();
+        }
+    }
+
+    private void addOutput(InternalTask<RESULT> task) {
+        final CollectorState state = task.state;
+        if (task.sequenceNumber - state.nextOutput < RING_SIZE) {
+            state.ring.set((int) (task.sequenceNumber & RING_MASK), task);
+        } else {
+            state.overflow.put(task.sequenceNumber, task);
+        }
+
+        if (state.wip.getAndIncrement() != 0) {
+            //the thread currently sending the results of this collector will take care of it
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            InternalTask<RESULT> next;
+            while ((next = pollNextOutput(state)) != null) {
+                try {
+                    if (next.error == null) {
+                        state.key.resultCollector.handle(next.result);
+                    }
+                } catch (Throwable t) {
+                    LOGGER.error("Error while handling a result in [" + name + "]", t);
+                } finally {
+                    if (state.removePending()) {
+                        collectors.remove(state.key, state);
+                    }
+                }
+            }
+            missed = state.wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Only called by the thread sending out the results of the given state.
+     *
+     * @return null if the next result is not yet available.
+     */
+    private InternalTask<RESULT> pollNextOutput(CollectorState state) {
+        final long nextOutput = state.nextOutput;
+        final int index = (int) (nextOutput & RING_MASK);
+        InternalTask<RESULT> result = state.ring.get(index);
+        if (result != null && result.sequenceNumber == nextOutput) {
+            state.ring.set(index, null);
+        } else {
+            result = state.overflow.isEmpty() ? null : state.overflow.remove(nextOutput);
+            if (result == null) {
+                return null;
+            }
+        }
+        state.nextOutput = nextOutput + 1;
+        return result;
+    }
+
+    /**
+     * One executor thread.
+     */
+    private class Runner implements Runnable {
+        public void run() {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Runner [" + name + "] started");
+            while (true) {
+                final InternalTask<RESULT> cur = takeTask();
+                if (cur == null) {
+                    if (LOGGER.isDebugEnabled())
+                        LOGGER.debug("Runner [" + name + "] stopped");
+                    return;  //received the signal to stop
+                }
+
+                runTask(cur);
+            }
+        }
+    }
+
+    /**
+     * Identifies a resultCollector by identity in {@link #collectors}.
+     */
+    private final class CollectorKey {
+        private final OrderedResultsExecutor.ResultCollector<RESULT> resultCollector;
+
+        private CollectorKey(OrderedResultsExecutor.ResultCollector<RESULT> resultCollector) {
+            this.resultCollector = resultCollector;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof LockFreeOrderedResultsExecutor.CollectorKey &&
+                    ((LockFreeOrderedResultsExecutor<?>.CollectorKey) o).resultCollector == resultCollector;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(resultCollector);
+        }
+    }
+
+    /**
+     * The scheduling information of one resultCollector.
+     */
+    class CollectorState {
+        private final CollectorKey key;
+        private final int priority;
+
+        /**
+         * Tasks not yet started.
+         */
+        private final ConcurrentLinkedQueue<InternalTask<RESULT>> queue = new ConcurrentLinkedQueue<InternalTask<RESULT>>();
+
+        /**
+         * Number of tasks in {@link #queue}. When it goes from 0 to 1, the state is added to {@link #ready}.
+         */
+        private final AtomicInteger nbQueued = new AtomicInteger(0);
+
+        /**
+         * Number of tasks added and not yet sent out, {@link #DEAD} once the state has been dropped.
+         */
+        private final AtomicInteger nbPending = new AtomicInteger(0);
+
+        /**
+         * The sequence used to attribute the order of the tasks.
+         */
+        private final AtomicLong nextSequenceNumber = new AtomicLong(0L);
+
+        /**
+         * The results waiting for the previous ones, indexed by sequence number modulo {@link #RING_SIZE}.
+         */
+        private final AtomicReferenceArray<InternalTask<RESULT>> ring = new AtomicReferenceArray<InternalTask<RESULT>>(RING_SIZE);
+
+        /**
+         * The results too far ahead of {@link #nextOutput} to fit in the ring.
+         */
+        private final ConcurrentSkipListMap<Long, InternalTask<RESULT>> overflow = new ConcurrentSkipListMap<Long, InternalTask<RESULT>>();
+
+        /**
+         * Number of the next task to be sent out. Written only by the thread sending out the results.
+         */
+        private volatile long nextOutput = 1L;
+
+        /**
+         * Number of times the results have been signaled available. The thread incrementing it from
+         * 0 is the one sending out the results.
+         */
+        private final AtomicInteger wip = new AtomicInteger(0);
+
+        /**
+         * Number of tasks that can still be started before giving the turn to the next resultCollector.
+         * Touched only by the thread that took the state from {@link #ready} (or that put it in).
+         */
+        private int credits;
+
+        private CollectorState(CollectorKey key, int priority) {
+            this.key = key;
+            this.priority = priority;
+        }
+
+        /**
+         * @return false if the state is dead.
+         */
+        private boolean addPending() {
+            while (true) {
+                final int cur = nbPending.get();
+                if (cur == DEAD) {
+                    return false;
+                }
+                if (nbPending.compareAndSet(cur, cur + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if it was the last pending task and the state is now dead.
+         */
+        private boolean removePending() {
+            return nbPending.decrementAndGet() == 0 && nbPending.compareAndSet(0, DEAD);
+        }
+    }
+
+    /**
+     * Internal structure which represents a task and it's related information.
+     */
+    static class InternalTask<RESULT> {
+        private final OrderedResultsExecutor.Task<RESULT> task;
+        private final LockFreeOrderedResultsExecutor<RESULT>.CollectorState state;
+        private final long sequenceNumber;
+        /**
+         * Published by the write in the ring or the overflow.
+         */
+        private RESULT result = null;
+        private Throwable error = null;
+
+        public InternalTask(OrderedResultsExecutor.Task<RESULT> task, LockFreeOrderedResultsExecutor<RESULT>.CollectorState state,
+                            long sequenceNumber) {
+            this.task = task;
+            this.state = state;
+            this.sequenceNumber = sequenceNumber;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.pvalsecc.concurrent;
+
+/**
+ * Take tasks and execute them in //. Each task generates a result and the
+ * results are sent to a resultCollector, in the order their tasks have been
+ * added and one result at a time for a given resultCollector.
+ *
+ * @see OrderedResultsExecutor
+ * @see LockFreeOrderedResultsExecutor
+ */
+public interface OrderedExecutor<RESULT> {
+    /**
+     * Start the executor threads.
+     */
+    void start();
+
+    /**
+     * Stop the executor threads.
+     */
+    void stop();
+
+    /**
+     * Adds a task whose result will be sent to the given resultCollector.
+     */
+    void addTask(OrderedResultsExecutor.Task<RESULT> command, OrderedResultsExecutor.ResultCollector<RESULT> resultCollector);
+
+    /**
+     * Adds a task whose result will be sent to the given resultCollector.
+     *
+     * @param priority the number of tasks of this resultCollector that are started in a row
+     *                 when it's its turn.
+     */
+    void addTask(OrderedResultsExecutor.Task<RESULT> command, OrderedResultsExecutor.ResultCollector<RESULT> resultCollector,
+                 int priority);
+}
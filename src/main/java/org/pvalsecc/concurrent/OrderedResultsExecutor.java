@@ -3,12 +3,12 @@ package org.pvalsecc.concurrent;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Queue;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Take tasks and execute them in //. Each task generates a result and the
@@ -22,11 +22,23 @@ import java.util.concurrent.atomic.AtomicLong;
  * <li>{@link org.pvalsecc.concurrent.OrderedResultsExecutor.ResultCollector#handle(Object)}
  * is called only one result at a time for a given instance of {@link org.pvalsecc.concurrent.OrderedResultsExecutor.ResultCollector}.
  * No // call of this method for a given object.
+ * <li>the threads are shared fairly between the resultCollectors having tasks
+ * waiting (weighted round-robin on their priorities). A resultCollector
+ * with a lot of tasks doesn't delay the ones added later by other
+ * resultCollectors until all its tasks are done.
  * </ul>
+ *
+ * All the scheduling is protected by a single lock. See {@link LockFreeOrderedResultsExecutor}
+ * for an implementation scaling better with a lot of threads.
  */
-public class OrderedResultsExecutor<RESULT> {
+public class OrderedResultsExecutor<RESULT> implements OrderedExecutor<RESULT> {
     public static Log LOGGER = LogFactory.getLog(OrderedResultsExecutor.class);
 
+    /**
+     * The priority used when none is given.
+     */
+    public static final int DEFAULT_PRIORITY = 1;
+
     /**
      * The base name for the executor threads.
      */
@@ -38,35 +50,31 @@ public class OrderedResultsExecutor<RESULT> {
     private final Thread[] threads;
 
     /**
-     * The sequence used to attribute the order of the tasks.
-     */
-    private AtomicLong nextSequenceNumber = new AtomicLong(0L);
-
-    /**
-     * Queue of tasks to do. Protected by itself.
+     * The lock protecting all the scheduling state ({@link #collectors}, {@link #ready},
+     * {@link #nbStopSignals} and the content of the {@link CollectorState}s).
      */
-    private final Queue<InternalTask<RESULT>> queue;
+    private final Object lock = new Object();
 
     /**
-     * Ordered structure used to store the results the time they are in order.
+     * The state of each resultCollector having tasks not yet sent out. Protected by {@link #lock}.
      */
-    private final SortedSet<InternalTask<RESULT>> output = Collections.synchronizedSortedSet(new TreeSet<InternalTask<RESULT>>());
+    private final Map<ResultCollector<RESULT>, CollectorState> collectors = new IdentityHashMap<ResultCollector<RESULT>, CollectorState>();
 
     /**
-     * number of the next task to be sent out. Protected by {@link  #nextOutputLock}
+     * The resultCollectors having tasks waiting to be executed, in the order they will
+     * be served. Protected by {@link #lock}.
      */
-    private long nextOutput = 1L;
+    private final LinkedList<CollectorState> ready = new LinkedList<CollectorState>();
 
     /**
-     * The lock to protect {@link #nextOutput}.
+     * The number of threads asked to stop once there is nothing left to do. Protected by {@link #lock}.
      */
-    private final Object nextOutputLock = new Object();
+    private int nbStopSignals = 0;
 
 
     public OrderedResultsExecutor(int nbThreads, String name) {
         this.name = name;
         this.threads = new Thread[nbThreads];
-        queue = new LinkedList<InternalTask<RESULT>>();
     }
 
     /**
@@ -86,12 +94,10 @@ public class OrderedResultsExecutor<RESULT> {
      * Stop the executor threads.
      */
     public void stop() {
-        synchronized (queue) {
-            for (int i = 0; i < threads.length; ++i) {
-                  //null task means "die!"
-                queue.add(new InternalTask<RESULT>(null, null, 0));
-            }
-            queue.notifyAll();
+        synchronized (lock) {
+            //the threads stop once the tasks already added are started
+            nbStopSignals += threads.length;
+            lock.notifyAll();
         }
 
         for (int i = 0; i < threads.length; i++) {
@@ -112,44 +118,104 @@ public class OrderedResultsExecutor<RESULT> {
      * Adds a task whose result will be sent to the given resultCollector.
      */
     public void addTask(Task<RESULT> command, ResultCollector<RESULT> resultCollector) {
-        synchronized (queue) {
-            queue.add(new InternalTask<RESULT>(command, resultCollector, nextSequenceNumber.incrementAndGet()));
-            queue.notify();
+        addTask(command, resultCollector, DEFAULT_PRIORITY);
+    }
+
+    /**
+     * Adds a task whose result will be sent to the given resultCollector.
+     *
+     * @param priority the number of tasks of this resultCollector that are started in a row
+     *                 when it's its turn. Only the value given with the first task of a batch
+     *                 (while the resultCollector has tasks not sent out) is taken into account.
+     */
+    public void addTask(Task<RESULT> command, ResultCollector<RESULT> resultCollector, int priority) {
+        synchronized (lock) {
+            CollectorState state = collectors.get(resultCollector);
+            if (state == null) {
+                state = new CollectorState(resultCollector, Math.max(priority, DEFAULT_PRIORITY));
+                collectors.put(resultCollector, state);
+            }
+            state.queue.add(new InternalTask<RESULT>(command, state, ++state.nextSequenceNumber));
+            ++state.nbPending;
+            if (state.queue.size() == 1) {
+                state.credits = state.priority;
+                ready.add(state);
+            }
+            lock.notify();
+        }
+    }
+
+    /**
+     * Wait for a task to execute, in round-robin between the resultCollectors.
+     *
+     * @return null if the thread has to stop.
+     */
+    private InternalTask<RESULT> takeTask() {
+        synchronized (lock) {
+            while (true) {
+                if (!ready.isEmpty()) {
+                    final CollectorState state = ready.getFirst();
+                    final InternalTask<RESULT> result = state.queue.poll();
+                    if (state.queue.isEmpty()) {
+                        ready.removeFirst();
+                    } else if (--state.credits <= 0) {
+                        //it's the turn of the next resultCollector
+                        state.credits = state.priority;
+                        ready.addLast(ready.removeFirst());
+                    }
+                    return result;
+                }
+                if (nbStopSignals > 0) {
+                    --nbStopSignals;
+                    return null;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    //ignored
+                }
+            }
         }
     }
 
     private void addOutput(InternalTask<RESULT> task) {
-        output.add(task);
+        final CollectorState state = task.state;
+        synchronized (lock) {
+            state.output.add(task);
+            if (state.sending) {
+                //the thread currently sending the results of this collector will take care of it
+                return;
+            }
+            state.sending = true;
+        }
+
         while (true) {
             InternalTask<RESULT> first;
-            synchronized (nextOutputLock) {
-                if(output.isEmpty()) {
+            synchronized (lock) {
+                if (state.output.isEmpty() || state.output.first().sequenceNumber != state.nextOutput) {
                     //next one not yet available
+                    state.sending = false;
                     return;
                 }
-                first = output.first();
-                if (first.sequenceNumber != nextOutput) {
-                    //next one not yet available
-                    return;
-                }
-
-                //it wouldn't be a good idea to take the resultCollector lock here.
-                //That would serialize the calls between resultCollectors
+                first = state.output.first();
+                state.output.remove(first);
+                ++state.nextOutput;
             }
 
-            //"the dangerous point"
-
-            synchronized (first.resultCollector) {
-                synchronized (nextOutputLock) {
-                    if(first.sequenceNumber !=nextOutput) {
-                        //Another thread took over us during "the dangerous point" with the same nextOutputValue
-                        continue;
+            //the result collector is called without holding the lock, only one thread at a time can be here
+            //for a given collector, thanks to state.sending
+            try {
+                if (first.error == null) {
+                    state.resultCollector.handle(first.result);
+                }
+            } catch (Throwable t) {
+                LOGGER.error("Error while handling a result in [" + name + "]", t);
+            } finally {
+                synchronized (lock) {
+                    if (--state.nbPending == 0) {
+                        collectors.remove(state.resultCollector);
                     }
-                    //now we are sure we can output "first"
-                    ++nextOutput;
-                    output.remove(first);
                 }
-                first.resultCollector.handle(first.result);
             }
         }
     }
@@ -163,18 +229,9 @@ public class OrderedResultsExecutor<RESULT> {
                 LOGGER.debug("Runner [" + name + "] started");
             while (true) {
                 //gets a task to be executed
-                InternalTask<RESULT> cur;
-                synchronized (queue) {
-                    while ((cur = queue.poll()) == null) {
-                        try {
-                            queue.wait();
-                        } catch (InterruptedException e) {
-                            //ignored
-                        }
-                    }
-                }
+                InternalTask<RESULT> cur = takeTask();
 
-                if (cur.task == null) {
+                if (cur == null) {
                     if (LOGGER.isDebugEnabled())
                         LOGGER.debug("Runner [" + name + "] stopped");
                     return;  //received the signal to stop
@@ -185,11 +242,14 @@ public class OrderedResultsExecutor<RESULT> {
                 try {
                     final RESULT process = cur.task.process();
                     cur.setResult(process);
-                    addOutput(cur);
                 } catch (Throwable t) {
+                    LOGGER.error("Error while executing a task in [" + name + "]", t);
                     cur.setState(ExecutionState.ERROR);
                     cur.setError(t);
                 } finally {
+                    //even a task in error has to be sent out, otherwise the next results
+                    //of the same collector would be blocked
+                    addOutput(cur);
                     cur.setState(ExecutionState.DONE);
                 }
             }
@@ -200,23 +260,71 @@ public class OrderedResultsExecutor<RESULT> {
         PENDING, RUNNING, DONE, ERROR
     }
 
+    /**
+     * The scheduling information of one resultCollector. Protected by {@link #lock}.
+     */
+    private class CollectorState {
+        private final ResultCollector<RESULT> resultCollector;
+        private final int priority;
+
+        /**
+         * Tasks not yet started.
+         */
+        private final Queue<InternalTask<RESULT>> queue = new LinkedList<InternalTask<RESULT>>();
+
+        /**
+         * Ordered structure used to store the results the time they are in order.
+         */
+        private final SortedSet<InternalTask<RESULT>> output = new TreeSet<InternalTask<RESULT>>();
+
+        /**
+         * The sequence used to attribute the order of the tasks.
+         */
+        private long nextSequenceNumber = 0L;
+
+        /**
+         * Number of the next task to be sent out.
+         */
+        private long nextOutput = 1L;
+
+        /**
+         * Number of tasks added and not yet sent out.
+         */
+        private int nbPending = 0;
+
+        /**
+         * Number of tasks that can still be started before giving the turn to the next resultCollector.
+         */
+        private int credits;
+
+        /**
+         * True when a thread is sending the results to the resultCollector.
+         */
+        private boolean sending = false;
+
+        private CollectorState(ResultCollector<RESULT> resultCollector, int priority) {
+            this.resultCollector = resultCollector;
+            this.priority = priority;
+        }
+    }
+
     /**
      * Internal structure which represents a task and it's related information.
      * @param <RESULT>
      */
     private static class InternalTask<RESULT> implements Comparable<InternalTask<RESULT>> {
         private final Task<RESULT> task;
-        private final ResultCollector<RESULT> resultCollector;
+        private final OrderedResultsExecutor<RESULT>.CollectorState state;
         private final long sequenceNumber;
-        private ExecutionState state;
+        private ExecutionState executionState;
         private RESULT result = null;
         private Throwable error;
 
-        public InternalTask(Task<RESULT> task, ResultCollector<RESULT> resultCollector, long sequenceNumber) {
+        public InternalTask(Task<RESULT> task, OrderedResultsExecutor<RESULT>.CollectorState state, long sequenceNumber) {
             this.task = task;
-            this.resultCollector = resultCollector;
+            this.state = state;
             this.sequenceNumber = sequenceNumber;
-            this.state = ExecutionState.PENDING;
+            this.executionState = ExecutionState.PENDING;
         }
 
         public void setResult(RESULT result) {
@@ -231,7 +339,7 @@ public class OrderedResultsExecutor<RESULT> {
         }
 
         public synchronized void setState(ExecutionState state) {
-            this.state = state;
+            this.executionState = state;
         }
 
         public synchronized void setError(Throwable error) {
@@ -256,7 +364,7 @@ public class OrderedResultsExecutor<RESULT> {
      */
     public static interface ResultCollector<RESULT> {
         /**
-         * Will be called sequentially (no // execution for the same instance)
+         * Will be called sequentially (no // call for the same instance)
          * with each task's result, in the order the task have been scheduled.
          */
         public void handle(RESULT result);
@@ -0,0 +1,29 @@
+package org.pvalsecc.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Same guaranties as {@link OrderedResultsExecutor}, but each task is executed right away
+ * in a new thread created by the given factory. Meant to be used with virtual threads,
+ * the concurrency has to be limited by the tasks themselves (for example with a
+ * {@link org.mapfish.print.utils.HostConcurrencyLimiter}). The priorities are ignored.
+ */
+public class ThreadPerTaskOrderedResultsExecutor<RESULT> extends LockFreeOrderedResultsExecutor<RESULT> {
+    private final ThreadFactory threadFactory;
+
+    public ThreadPerTaskOrderedResultsExecutor(ThreadFactory threadFactory, String name) {
+        super(0, name);
+        this.threadFactory = threadFactory;
+    }
+
+    @Override
+    public void addTask(OrderedResultsExecutor.Task<RESULT> command, OrderedResultsExecutor.ResultCollector<RESULT> resultCollector,
+                        int priority) {
+        final InternalTask<RESULT> task = createTask(command, resultCollector, priority);
+        threadFactory.newThread(new Runnable() {
+            public void run() {
+                runTask(task);
+            }
+        }).start();
+    }
+}
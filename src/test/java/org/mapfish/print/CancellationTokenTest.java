@@ -0,0 +1,65 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CancellationTokenTest {
+
+    @Test
+    public void testCallbacks() throws IOException {
+        final CancellationToken token = new CancellationToken(0);
+        final AtomicInteger called = new AtomicInteger(0);
+        final Runnable callback = new Runnable() {
+            public void run() {
+                called.incrementAndGet();
+            }
+        };
+        Closeable removed = token.onCancel(new Runnable() {
+            public void run() {
+                fail("Should have been removed");
+            }
+        });
+        token.onCancel(callback);
+        removed.close();
+        assertEquals(Long.MAX_VALUE, token.getRemainingMillis());
+        token.check();
+
+        token.cancel("test");
+        token.cancel("again");
+        assertEquals(1, called.get());
+        assertEquals("test", token.getReason());
+
+        token.onCancel(callback);
+        assertEquals(2, called.get());
+        try {
+            token.check();
+            fail("Expected a cancellation");
+        } catch (PrintCancelledException e) {
+            assertTrue(e.getMessage().contains("test"));
+        }
+    }
+
+    @Test
+    public void testDeadline() throws InterruptedException {
+        final CancellationToken token = new CancellationToken(20);
+        final AtomicInteger called = new AtomicInteger(0);
+        token.onCancel(new Runnable() {
+            public void run() {
+                called.incrementAndGet();
+            }
+        });
+        assertFalse(token.isCancelled());
+        Thread.sleep(50);
+        assertEquals(0, token.getRemainingMillis());
+        assertTrue(token.isCancelled());
+        assertEquals(1, called.get());
+    }
+}
@@ -0,0 +1,131 @@
+package org.mapfish.print.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.http.FetchedImage;
+
+public class DiskTileCacheTest {
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    private File directory;
+    private DiskTileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("tileCache", "");
+        assertTrue(directory.delete());
+        cache = createCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.destroy();
+        deleteRecursively(directory);
+    }
+
+    private DiskTileCache createCache() {
+        final DiskTileCache result = new DiskTileCache();
+        result.setMetricRegistry(new MetricRegistry());
+        result.setEnabled(true);
+        result.setDirectory(directory);
+        result.setMaxBytes(1000);
+        result.setSweepIntervalSeconds(3600);
+        result.setLayerTtlSeconds(Collections.singletonMap("notCached", 0));
+        result.init();
+        return result;
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        final URI uri = new URI("http://example.com/osm/1/2/3.png");
+        assertNull(cache.get("osm", uri, NO_HEADERS));
+        cache.put("osm", uri, NO_HEADERS, image(100));
+        cache.put("notCached", uri, NO_HEADERS, image(100));
+        cache.put("osm", new URI("http://example.com/osm/error.png"), NO_HEADERS,
+                new FetchedImage(404, "Not Found", "image/png", new byte[10], null, null, null));
+
+        final FetchedImage cached = cache.get("osm", uri, NO_HEADERS);
+        assertNotNull(cached);
+        assertEquals("image/png", cached.getContentType());
+        assertArrayEquals(image(100).getData(), cached.getData());
+        assertNull(cache.get("notCached", uri, NO_HEADERS));
+        assertNull(cache.get("osm", new URI("http://example.com/osm/error.png"), NO_HEADERS));
+
+        //survives a restart
+        cache.destroy();
+        cache = createCache();
+        assertNotNull(cache.get("osm", uri, NO_HEADERS));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        final URI uri = new URI("http://example.com/osm/1/2/3.png");
+        cache.put("osm", uri, NO_HEADERS, image(100));
+        final File file = cache.getFile("osm", uri, NO_HEADERS);
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 2L * 24 * 3600 * 1000));
+        assertNull(cache.get("osm", uri, NO_HEADERS));
+        cache.sweep();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testLayerNameFromTheSpec() throws Exception {
+        final URI uri = new URI("http://example.com/osm/1/2/3.png");
+        for (String layer : new String[]{"..", ".", "../..", "a/../../b"}) {
+            cache.put(layer, uri, NO_HEADERS, image(100));
+            assertNotNull(cache.get(layer, uri, NO_HEADERS));
+            File file = cache.getFile(layer, uri, NO_HEADERS).getCanonicalFile();
+            assertEquals(directory.getCanonicalFile(), file.getParentFile().getParentFile().getParentFile());
+        }
+    }
+
+    @Test
+    public void testSweepOldest() throws Exception {
+        //no sweep while filling the cache
+        cache.setMaxBytes(1000000);
+        for (int i = 0; i < 5; ++i) {
+            final URI uri = new URI("http://example.com/osm/" + i + ".png");
+            cache.put("osm", uri, NO_HEADERS, image(300));
+            assertTrue(cache.getFile("osm", uri, NO_HEADERS).setLastModified(System.currentTimeMillis() - (10 - i) * 1000L));
+        }
+        cache.setMaxBytes(1000);
+        cache.sweep();
+        for (int i = 0; i < 5; ++i) {
+            final FetchedImage cached = cache.get("osm", new URI("http://example.com/osm/" + i + ".png"), NO_HEADERS);
+            assertEquals("tile " + i, i >= 3, cached != null);
+        }
+    }
+
+    private static FetchedImage image(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte) i;
+        }
+        return new FetchedImage(200, "OK", "image/png", data, null, null, null);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
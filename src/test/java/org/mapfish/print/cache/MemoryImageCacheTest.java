@@ -0,0 +1,108 @@
+package org.mapfish.print.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.http.FetchedImage;
+
+public class MemoryImageCacheTest {
+    private MetricRegistry metricRegistry;
+    private MemoryImageCache cache;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        cache = new MemoryImageCache();
+        cache.setMetricRegistry(metricRegistry);
+        cache.setEnabled(true);
+        cache.setMaxBytes(250);
+        cache.setMaxEntryBytes(200);
+        cache.init();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        assertEquals("http://example.com/wms?A=1&B=2",
+                MemoryImageCache.normalize(new URI("HTTP://Example.COM:80/wms?B=2&A=1#foo")));
+        assertEquals("https://example.com:8443/",
+                MemoryImageCache.normalize(new URI("https://example.com:8443")));
+
+        final URI uri = new URI("http://example.com/tile.png");
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Referer", "http://a.example.com");
+        final String key = cache.createKey(uri, headers);
+        headers.put("Referer", "http://b.example.com");
+        assertEquals(key, cache.createKey(uri, headers));
+        headers.put("cookie", "session=1");
+        assertFalse(key.equals(cache.createKey(uri, headers)));
+    }
+
+    @Test
+    public void testLru() {
+        cache.put("a", image(100, null, null));
+        cache.put("b", image(100, null, null));
+        assertNotNull(cache.get("a"));
+        cache.put("c", image(100, null, null));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(MemoryImageCache.class, "evictions")).getCount());
+        assertEquals(200L, metricRegistry.getGauges().get(MetricRegistry.name(MemoryImageCache.class, "bytes")).getValue());
+
+        //too big
+        cache.put("d", image(201, null, null));
+        assertNull(cache.get("d"));
+    }
+
+    @Test
+    public void testCacheControl() {
+        assertEquals(300000L, cache.getTimeToLive(null));
+        assertEquals(10000L, cache.getTimeToLive("public, max-age=10"));
+        assertEquals(20000L, cache.getTimeToLive("max-age=10, s-maxage=20"));
+        assertEquals(300000L, cache.getTimeToLive("max-age=100000"));
+        assertEquals(0L, cache.getTimeToLive("no-cache"));
+        assertEquals(-1L, cache.getTimeToLive("no-store"));
+
+        cache.put("noStore", image(10, null, "no-store"));
+        assertNull(cache.get("noStore"));
+        cache.put("noCache", image(10, null, "no-cache"));
+        assertNull(cache.get("noCache"));
+    }
+
+    @Test
+    public void testRevalidate() {
+        final FetchedImage image = image(10, "\"v1\"", "no-cache");
+        cache.put("a", image);
+        final CachedImage stale = cache.get("a");
+        assertNotNull(stale);
+        assertFalse(stale.isFresh());
+
+        final CachedImage revalidated = cache.revalidated("a", stale,
+                new FetchedImage(304, "Not Modified", null, null, "\"v1\"", null, "max-age=60"));
+        assertSame(image, revalidated.getImage());
+        assertTrue(cache.get("a").isFresh());
+    }
+
+    @Test
+    public void testErrorsNotCached() {
+        cache.put("a", new FetchedImage(500, "Error", "image/png", new byte[10], null, null, null));
+        cache.put("b", new FetchedImage(200, "OK", "application/vnd.ogc.se_xml", new byte[10], null, null, null));
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    private static FetchedImage image(int size, String etag, String cacheControl) {
+        return new FetchedImage(200, "OK", "image/png", new byte[size], etag, null, cacheControl);
+    }
+}
@@ -0,0 +1,94 @@
+package org.mapfish.print.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import com.codahale.metrics.MetricRegistry;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.utils.PJsonObject;
+
+public class PrintResultCacheTest {
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    private File dir;
+    private PrintResultCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("printResultCache", "");
+        assertTrue(dir.delete());
+        cache = new PrintResultCache();
+        cache.setMetricRegistry(new MetricRegistry());
+        cache.setDirectory(dir);
+        cache.setEnabled(true);
+        cache.init();
+    }
+
+    @After
+    public void tearDown() {
+        cache.destroy();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testCreateKey() {
+        final String key = cache.createKey(spec("{layout: 'A4', layers: [{type: 'WMS', layers: ['a']}], dpi: 150}"), NO_HEADERS, "v1");
+        assertEquals(key, cache.createKey(spec("{dpi: 150, layers: [{layers: ['a'], type: 'WMS'}], layout: 'A4'}"), NO_HEADERS, "v1"));
+        assertFalse(key.equals(cache.createKey(spec("{layout: 'A4', layers: [{type: 'WMS', layers: ['a']}], dpi: 300}"), NO_HEADERS, "v1")));
+        assertFalse(key.equals(cache.createKey(spec("{layout: 'A4', layers: [{type: 'WMS', layers: ['a']}], dpi: 150}"), NO_HEADERS, "v2")));
+        assertFalse(key.equals(cache.createKey(spec("{layout: 'A4', layers: [{type: 'WMS', layers: ['a']}], dpi: 150}"),
+                Collections.singletonMap("Cookie", "session=1"), "v1")));
+        assertNull(cache.createKey(spec("{layout: 'A4'}"), NO_HEADERS, null));
+    }
+
+    @Test
+    public void testUncacheable() {
+        assertNull(cache.createKey(spec("{layers: [{type: 'WMS', cacheable: false}]}"), NO_HEADERS, "v1"));
+        assertNull(cache.createKey(spec("{layers: [{type: 'WMS', customParams: {time: '2013-01-01'}}]}"), NO_HEADERS, "v1"));
+        assertNull(cache.createKey(spec("{maps: {main: {layers: [{type: 'WMS', cacheable: false}]}}}"), NO_HEADERS, "v1"));
+        assertNotNull(cache.createKey(spec("{layers: [{type: 'WMS', customParams: {FORMAT: 'image/png'}}]}"), NO_HEADERS, "v1"));
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        final String key = cache.createKey(spec("{layout: 'A4'}"), NO_HEADERS, "v1");
+        assertNull(cache.get(key));
+
+        final File printout = File.createTempFile("printout", ".pdf");
+        try {
+            Files.write(printout.toPath(), "%PDF".getBytes(StandardCharsets.UTF_8));
+            cache.put(key, printout);
+            assertTrue(printout.exists());
+        } finally {
+            printout.delete();
+        }
+        final File cached = cache.get(key);
+        assertEquals("%PDF", new String(Files.readAllBytes(cached.toPath()), StandardCharsets.UTF_8));
+
+        cache.setTtlSeconds(1);
+        assertTrue(cached.setLastModified(System.currentTimeMillis() - 5000));
+        assertNull(cache.get(key));
+        cache.sweep();
+        assertFalse(cached.exists());
+    }
+
+    private static PJsonObject spec(String json) {
+        return new PJsonObject(new JSONObject(json), "spec");
+    }
+}
@@ -19,16 +19,21 @@
 
 package org.mapfish.print.config;
 
+import com.sun.net.httpserver.HttpExchange;
 import org.apache.hc.client5.http.auth.AuthCache;
 import org.apache.hc.client5.http.auth.AuthScope;
 import org.apache.hc.client5.http.auth.UsernamePasswordCredentials;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
 import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.util.Timeout;
 import org.json.JSONWriter;
 import org.junit.Before;
 import org.junit.Test;
+import org.mapfish.print.FakeHttpd;
 import org.mapfish.print.PrintTestCase;
 import org.mapfish.print.ShellMapPrinter;
 import org.mapfish.print.ThreadResources;
@@ -44,6 +49,7 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -54,6 +60,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class ConfigTest extends PrintTestCase {
 
@@ -229,6 +236,50 @@ public class ConfigTest extends PrintTestCase {
         assertNull(ctx.getAuthCache());
     }
 
+    @Test
+    public void testGetHttpClient_shared() throws Exception {
+        final Config config = loadSampleConfig();
+        final var uri = new java.net.URI("http://c2cpc61.camptocamp.com");
+        final var otherUri = new java.net.URI("http://example.com");
+        assertSame(config.getHttpClient(uri), config.getHttpClient(otherUri));
+
+        final HttpClientContext ctx = config.getHttpClientContext(otherUri);
+        assertNotNull(ctx);
+        assertNull(ctx.getCredentialsProvider());
+        assertEquals(Timeout.ofMilliseconds(2400000), ctx.getRequestConfig().getResponseTimeout());
+        assertNotNull(config.getHttpClientContext(uri).getRequestConfig());
+    }
+
+    @Test
+    public void testGetHttpClient_noSharedCookies() throws Exception {
+        final List<String> receivedCookies = new ArrayList<String>();
+        final FakeHttpd server = new FakeHttpd(new FakeHttpd.Route("/", new FakeHttpd.HttpAnswerer(200, "OK", "text/plain", "OK") {
+            @Override
+            public void handle(HttpExchange httpExchange) throws IOException {
+                synchronized (receivedCookies) {
+                    receivedCookies.add(httpExchange.getRequestHeaders().getFirst("Cookie"));
+                }
+                httpExchange.getResponseHeaders().add("Set-Cookie", "session=user1");
+                super.handle(httpExchange);
+            }
+        }));
+        server.start();
+        try {
+            final Config config = loadSampleConfig();
+            final URI uri = new URI("http://localhost:" + server.getPort() + "/tile");
+            for (int i = 0; i < 2; i++) {
+                try (CloseableHttpResponse response = config.getHttpClient(uri).execute(new HttpGet(uri),
+                        config.getHttpClientContext(uri))) {
+                    assertEquals(200, response.getCode());
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+            assertEquals(Arrays.asList(null, null), receivedCookies);
+        } finally {
+            server.shutdown();
+        }
+    }
+
     public static Map<String, File> getSampleConfigFiles() {
         final File[] sample_config_yamls = new File(CONFIG_TEST_CLASS_DIR, "sample_config_yaml").listFiles();
         Map<String, File> nameToFileMap = new HashMap<String, File>();
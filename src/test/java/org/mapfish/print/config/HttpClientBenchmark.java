@@ -0,0 +1,83 @@
+package org.mapfish.print.config;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.mapfish.print.ThreadResources;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures what it costs to get the HTTP client and its context for each tile: the shared
+ * client of {@link Config#getHttpClient(URI)} versus a client built for each request, like
+ * it used to be.
+ * <p/>
+ * Run it with the main method (after mvn test-compile), with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class HttpClientBenchmark {
+    private final URI uri = URI.create("http://tile.example.com/osm/12/2138/1450.png");
+
+    private ThreadResources threadResources;
+    private Config config;
+
+    @Setup
+    public void setUp() {
+        threadResources = new ThreadResources();
+        threadResources.init();
+        config = new Config();
+        config.setThreadResources(threadResources);
+    }
+
+    @TearDown
+    public void tearDown() {
+        threadResources.destroy();
+    }
+
+    @Benchmark
+    public void shared(Blackhole blackhole) {
+        blackhole.consume(config.getHttpClient(uri));
+        blackhole.consume(config.getHttpClientContext(uri));
+    }
+
+    @Benchmark
+    public void perRequest(Blackhole blackhole) {
+        final CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(threadResources.getConnectionManager())
+                .setDefaultRequestConfig(config.createRequestConfig(uri))
+                .build();
+        Configurator.setLevel(LogManager.getLogger(HttpUriRequestBase.class), Level.ERROR);
+        blackhole.consume(httpClient);
+        blackhole.consume(config.getHttpClientContext(uri));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HttpClientBenchmark.class.getSimpleName()).build()).run();
+    }
+}
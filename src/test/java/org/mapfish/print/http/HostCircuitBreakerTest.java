@@ -0,0 +1,113 @@
+package org.mapfish.print.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.health.HealthCheck;
+import com.codahale.metrics.health.HealthCheckRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HostCircuitBreakerTest {
+    private HealthCheckRegistry healthCheckRegistry;
+    private HostCircuitBreaker circuitBreaker;
+    private URI uri;
+
+    @Before
+    public void setUp() throws Exception {
+        healthCheckRegistry = new HealthCheckRegistry();
+        circuitBreaker = new HostCircuitBreaker();
+        circuitBreaker.setMetricRegistry(new MetricRegistry());
+        circuitBreaker.setHealthCheckRegistry(healthCheckRegistry);
+        circuitBreaker.setFailureThreshold(3);
+        circuitBreaker.setOpenSeconds(3600);
+        circuitBreaker.init();
+        uri = new URI("http://a.example.com/wms");
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        failures(2);
+        succeed();
+        //the failures must be consecutive
+        failures(2);
+        assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState("a.example.com"));
+        assertFalse(healthCheckRegistry.runHealthCheck("circuitBreaker").getMessage().contains("a.example.com"));
+        failures(1);
+        assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState("a.example.com"));
+        //listed, but a failing map server doesn't make the print server unhealthy
+        final HealthCheck.Result health = healthCheckRegistry.runHealthCheck("circuitBreaker");
+        assertTrue(health.isHealthy());
+        assertTrue(health.getMessage().contains("a.example.com"));
+
+        try {
+            circuitBreaker.enter(uri);
+            fail("Expected a CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        //other hosts are not impacted
+        circuitBreaker.enter(new URI("http://b.example.com/wms")).close();
+    }
+
+    @Test
+    public void testHalfOpen() throws Exception {
+        circuitBreaker.setOpenSeconds(0);
+        failures(3);
+
+        //only one probe at a time
+        final HostCircuitBreaker.Call probe = circuitBreaker.enter(uri);
+        assertEquals(HostCircuitBreaker.State.HALF_OPEN, circuitBreaker.getState("a.example.com"));
+        try {
+            circuitBreaker.enter(uri);
+            fail("Expected a CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        probe.markFailed();
+        probe.close();
+        assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState("a.example.com"));
+
+        //a probe with an unknown outcome lets another one go
+        circuitBreaker.enter(uri).close();
+        succeed();
+        assertEquals(HostCircuitBreaker.State.CLOSED, circuitBreaker.getState("a.example.com"));
+        assertFalse(healthCheckRegistry.runHealthCheck("circuitBreaker").getMessage().contains("a.example.com"));
+    }
+
+    @Test
+    public void testEvictIdleHosts() throws Exception {
+        circuitBreaker.setIdleSeconds(0);
+        failures(3);
+        final HostCircuitBreaker.Call inFlight = circuitBreaker.enter(new URI("http://b.example.com/wms"));
+        circuitBreaker.enter(new URI("http://c.example.com/wms")).close();
+        assertEquals(3, circuitBreaker.getNbHosts());
+
+        //seeing a new host evicts the idle ones having a closed circuit
+        circuitBreaker.enter(new URI("http://d.example.com/wms")).close();
+        assertEquals(HostCircuitBreaker.State.OPEN, circuitBreaker.getState("a.example.com"));
+        assertEquals(3, circuitBreaker.getNbHosts());
+        inFlight.close();
+        assertTrue(healthCheckRegistry.getNames().contains("circuitBreaker"));
+        assertEquals(1, healthCheckRegistry.getNames().size());
+    }
+
+    private void failures(int nb) throws CircuitOpenException {
+        for (int i = 0; i < nb; ++i) {
+            final HostCircuitBreaker.Call call = circuitBreaker.enter(uri);
+            call.markFailed();
+            call.close();
+        }
+    }
+
+    private void succeed() throws CircuitOpenException {
+        final HostCircuitBreaker.Call call = circuitBreaker.enter(uri);
+        call.markSucceeded();
+        call.close();
+    }
+}
@@ -0,0 +1,198 @@
+package org.mapfish.print.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.mapfish.print.CancellationToken;
+import org.mapfish.print.PrintCancelledException;
+import org.junit.Test;
+
+public class RequestCoalescerTest {
+    private static final int NB_THREADS = 10;
+
+    private MetricRegistry metricRegistry;
+    private RequestCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        coalescer = new RequestCoalescer();
+        coalescer.setMetricRegistry(metricRegistry);
+        coalescer.init();
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        final AtomicInteger nbLoads = new AtomicInteger(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final FetchedImage image = new FetchedImage(200, "OK", "image/png", new byte[10], null, null, null);
+        final FetchedImage[] results = new FetchedImage[NB_THREADS];
+        final Thread[] threads = new Thread[NB_THREADS];
+        for (int i = 0; i < NB_THREADS; ++i) {
+            final int index = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        results[index] = coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+                            public FetchedImage load() throws IOException {
+                                nbLoads.incrementAndGet();
+                                try {
+                                    release.await();
+                                } catch (InterruptedException e) {
+                                    throw new IOException(e);
+                                }
+                                return image;
+                            }
+                        });
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        while (nbLoads.get() + metricRegistry.meter(MetricRegistry.name(RequestCoalescer.class, "coalesced")).getCount() < NB_THREADS) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        assertEquals(1, nbLoads.get());
+        for (FetchedImage result : results) {
+            assertSame(image, result);
+        }
+
+        //nothing is kept once done
+        final FetchedImage other = new FetchedImage(200, "OK", "image/png", new byte[10], null, null, null);
+        assertNotSame(image, coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+            public FetchedImage load() {
+                return other;
+            }
+        }));
+    }
+
+    @Test
+    public void testError() throws Exception {
+        try {
+            coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+                public FetchedImage load() throws IOException {
+                    throw new IOException("Failed");
+                }
+            });
+            fail("Expected an exception");
+        } catch (IOException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+        assertEquals(0, (int) (Integer) metricRegistry.getGauges().get(MetricRegistry.name(RequestCoalescer.class, "in-flight")).getValue());
+    }
+
+    @Test
+    public void testLeaderCancelled() throws Exception {
+        final CountDownLatch waiting = new CountDownLatch(1);
+        final FetchedImage image = new FetchedImage(200, "OK", "image/png", new byte[10], null, null, null);
+        final FetchedImage[] result = new FetchedImage[1];
+        final Thread leader = new Thread() {
+            public void run() {
+                try {
+                    coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+                        public FetchedImage load() throws IOException {
+                            try {
+                                waiting.await();
+                                Thread.sleep(50);
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            throw new PrintCancelledException("test");
+                        }
+                    });
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        };
+        leader.start();
+        while (metricRegistry.getGauges().get(MetricRegistry.name(RequestCoalescer.class, "in-flight")).getValue().equals(0)) {
+            Thread.sleep(10);
+        }
+        waiting.countDown();
+        result[0] = coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+            public FetchedImage load() {
+                return image;
+            }
+        });
+        leader.join(TimeUnit.SECONDS.toMillis(10));
+        assertSame(image, result[0]);
+    }
+
+    @Test
+    public void testWaiterCancelled() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread leader = new Thread() {
+            public void run() {
+                try {
+                    coalescer.fetch("key", null, new RequestCoalescer.Loader() {
+                        public FetchedImage load() throws IOException {
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                            return new FetchedImage(200, "OK", "image/png", new byte[10], null, null, null);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        leader.start();
+        while (metricRegistry.getGauges().get(MetricRegistry.name(RequestCoalescer.class, "in-flight")).getValue().equals(0)) {
+            Thread.sleep(10);
+        }
+        //the deadline of the waiting print is reached before the leader is done
+        final long start = System.currentTimeMillis();
+        try {
+            coalescer.fetch("key", new CancellationToken(300), new RequestCoalescer.Loader() {
+                public FetchedImage load() {
+                    throw new IllegalStateException("Must wait for the leader");
+                }
+            });
+            fail("Expected a cancellation");
+        } catch (PrintCancelledException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        release.countDown();
+        leader.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    @Test
+    public void testCreateKey() throws Exception {
+        final URI uri = new URI("http://example.com/wms?LAYERS=a");
+        assertEquals(coalescer.createKey(uri, Collections.singletonMap("Cookie", "a")),
+                coalescer.createKey(uri, Collections.singletonMap("Cookie", "a")));
+        assertFalse(coalescer.createKey(uri, Collections.singletonMap("Cookie", "a")).equals(
+                coalescer.createKey(uri, Collections.singletonMap("Cookie", "b"))));
+        //any forwarded header can change the image
+        assertFalse(coalescer.createKey(uri, Collections.singletonMap("X-Role", "admin")).equals(
+                coalescer.createKey(uri, Collections.singletonMap("X-Role", "guest"))));
+        //the headers not changing the image are ignored
+        assertEquals(coalescer.createKey(uri, Collections.singletonMap("Referer", "http://a.example.com/")),
+                coalescer.createKey(uri, Collections.singletonMap("Referer", "http://b.example.com/")));
+        assertEquals(coalescer.createKey(uri, Collections.singletonMap("X-Forwarded-For", "10.0.0.1")),
+                coalescer.createKey(uri, Collections.singletonMap("X-Forwarded-For", "10.0.0.2")));
+    }
+}
@@ -0,0 +1,206 @@
+package org.mapfish.print.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.utils.HostConcurrencyLimiter;
+
+public class RequestHedgerTest {
+    private MetricRegistry metricRegistry;
+    private RequestHedger hedger;
+    private URI uri;
+
+    @Before
+    public void setUp() throws Exception {
+        metricRegistry = new MetricRegistry();
+        hedger = new RequestHedger();
+        hedger.setMetricRegistry(metricRegistry);
+        hedger.setEnabled(true);
+        hedger.setMinSamples(10);
+        hedger.setMinDelayMillis(1);
+        hedger.setBudgetRatio(1.0);
+        hedger.init();
+        uri = new URI("http://a.example.com/1.png");
+    }
+
+    @After
+    public void tearDown() {
+        hedger.destroy();
+    }
+
+    @Test
+    public void testNotEnoughSamples() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final FetchedImage image = image();
+        assertSame(image, hedger.fetch(uri, null, new RequestHedger.Loader() {
+            public FetchedImage load(RequestHedger.Attempt attempt) {
+                //not hedged, done in the caller's thread
+                assertSame(caller, Thread.currentThread());
+                assertNull(attempt);
+                return image;
+            }
+        }));
+    }
+
+    @Test
+    public void testHedged() throws Exception {
+        addSamples(20);
+        assertEquals(20, hedger.getDelayMillis(uri));
+
+        final Thread caller = Thread.currentThread();
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(2, 10);
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final FetchedImage image = image();
+        final long start = System.nanoTime();
+        assertSame(image, hedger.fetch(uri, limiter, slowFirstRequest(caller, nbRequests, image)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(2, nbRequests.get());
+        assertEquals(1, metricRegistry.meter(MetricRegistry.name(RequestHedger.class, "hedge-wins")).getCount());
+        //the permit of the second request is given back
+        limiter.tryAcquire(uri).close();
+        limiter.tryAcquire(uri).close();
+    }
+
+    @Test
+    public void testNoPermitForTheHedge() throws Exception {
+        addSamples(1);
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(1, 10);
+        //taken by the first request
+        final HostConcurrencyLimiter.Permit permit = limiter.acquire(uri);
+
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final FetchedImage image = image();
+        assertSame(image, hedger.fetch(uri, limiter, new RequestHedger.Loader() {
+            public FetchedImage load(RequestHedger.Attempt attempt) throws IOException {
+                nbRequests.incrementAndGet();
+                sleep(200);
+                return image;
+            }
+        }));
+        permit.close();
+        assertEquals(1, nbRequests.get());
+        assertEquals(0, metricRegistry.meter(MetricRegistry.name(RequestHedger.class, "hedges")).getCount());
+    }
+
+    @Test
+    public void testAbortedPrimaryNotTimed() throws Exception {
+        addSamples(20);
+        final FetchedImage image = image();
+        assertSame(image, hedger.fetch(uri, null, slowFirstRequest(Thread.currentThread(), new AtomicInteger(0), image)));
+
+        //only the second request, that won, is added
+        final Timer latency = metricRegistry.timer(RequestHedger.getLatencyTimerName(uri));
+        assertEquals(11, latency.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), latency.getSnapshot().getMax());
+        assertEquals(20, hedger.getDelayMillis(uri));
+    }
+
+    @Test
+    public void testAbortedHedgeNotTimed() throws Exception {
+        addSamples(20);
+        final CountDownLatch hedgeDone = new CountDownLatch(1);
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final FetchedImage image = image();
+        assertSame(image, hedger.fetch(uri, null, new RequestHedger.Loader() {
+            public FetchedImage load(RequestHedger.Attempt attempt) throws IOException {
+                if (nbRequests.incrementAndGet() == 1) {
+                    sleep(100);
+                    return image;
+                }
+                //the second request is very slow, aborted once the first one is done
+                final Thread thread = Thread.currentThread();
+                try {
+                    attempt.onAbort(new Runnable() {
+                        public void run() {
+                            thread.interrupt();
+                        }
+                    });
+                    sleep(10000);
+                    return image;
+                } finally {
+                    hedgeDone.countDown();
+                }
+            }
+        }));
+        assertTrue(hedgeDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, nbRequests.get());
+
+        final Timer latency = metricRegistry.timer(RequestHedger.getLatencyTimerName(uri));
+        //the timer is updated after the load returned, give it some time
+        Thread.sleep(100);
+        assertEquals(11, latency.getCount());
+        assertTrue(latency.getSnapshot().getMax() < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    /**
+     * The first request, done in the caller's thread, is very slow. It can be aborted.
+     */
+    private static RequestHedger.Loader slowFirstRequest(final Thread caller, final AtomicInteger nbRequests,
+                                                         final FetchedImage image) {
+        return new RequestHedger.Loader() {
+            public FetchedImage load(RequestHedger.Attempt attempt) throws IOException {
+                if (nbRequests.incrementAndGet() == 1) {
+                    assertSame(caller, Thread.currentThread());
+                    attempt.onAbort(new Runnable() {
+                        public void run() {
+                            caller.interrupt();
+                        }
+                    });
+                    sleep(10000);
+                }
+                return image;
+            }
+        };
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        hedger.setBudgetRatio(0.0);
+        addSamples(1);
+
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final FetchedImage image = image();
+        assertSame(image, hedger.fetch(uri, null, new RequestHedger.Loader() {
+            public FetchedImage load(RequestHedger.Attempt attempt) throws IOException {
+                nbRequests.incrementAndGet();
+                sleep(100);
+                return image;
+            }
+        }));
+        assertEquals(1, nbRequests.get());
+        assertEquals(0, metricRegistry.meter(MetricRegistry.name(RequestHedger.class, "hedges")).getCount());
+    }
+
+    private void addSamples(long millis) {
+        final Timer timer = metricRegistry.timer(RequestHedger.getLatencyTimerName(uri));
+        for (int i = 0; i < 10; ++i) {
+            timer.update(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static FetchedImage image() {
+        return new FetchedImage(200, "OK", "image/png", new byte[10], null, null, null);
+    }
+}
@@ -0,0 +1,79 @@
+package org.mapfish.print.map.readers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xml.sax.SAXException;
+
+/**
+ * Compares the streaming parser of the WMTS capabilities with the DOM one, on a big document made of
+ * copies of the layers of {@link WMTSServiceInfoTest#CAPABILITIES_WMTS1_0_0_XML}.
+ * <p/>
+ * Run it with the main method (after mvn test-compile), with the test classpath. Add "-prof gc" to the
+ * JMH options to see the memory allocated by each parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class CapabilitiesParserBenchmark {
+    /**
+     * Number of copies of the 21 layers of the sample document.
+     */
+    @Param({"1", "50"})
+    private int copies;
+
+    private final WMTSServiceInfo.WMSServiceInfoLoader loader = new WMTSServiceInfo.WMSServiceInfoLoader();
+    private byte[] document;
+
+    @Setup
+    public void setUp() throws IOException {
+        final String sample = new String(ByteStreams.toByteArray(WMTSServiceInfo.class.getResourceAsStream(
+                WMTSServiceInfoTest.CAPABILITIES_WMTS1_0_0_XML)), StandardCharsets.UTF_8);
+        final int start = sample.indexOf("<Layer>");
+        final int end = sample.lastIndexOf("</Layer>") + "</Layer>".length();
+        final String layers = sample.substring(start, end);
+
+        final StringBuilder result = new StringBuilder(sample.substring(0, start));
+        for (int i = 0; i < copies; i++) {
+            result.append(layers.replace("</ows:Identifier>", "_" + i + "</ows:Identifier>"));
+        }
+        result.append(sample.substring(end));
+        document = result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public WMTSServiceInfo stax() throws IOException {
+        return loader.parseInfo(new ByteArrayInputStream(document));
+    }
+
+    @Benchmark
+    public WMTSServiceInfo dom() throws IOException, SAXException, ParserConfigurationException {
+        return loader.parseInfoWithDom(new ByteArrayInputStream(document));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CapabilitiesParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
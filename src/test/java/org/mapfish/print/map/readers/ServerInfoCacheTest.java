@@ -0,0 +1,153 @@
+package org.mapfish.print.map.readers;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.FakeHttpd;
+import org.mapfish.print.MapTestBasic;
+import org.mapfish.print.RenderingContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServerInfoCacheTest extends MapTestBasic {
+    private FakeHttpd server;
+    private URI url;
+    private final AtomicInteger nbLoads = new AtomicInteger(0);
+    private ServerInfoCache<ServiceInfo> cache;
+
+    @Before
+    public void before() throws IOException, URISyntaxException {
+        server = new FakeHttpd(FakeHttpd.Route.xmlResponse("/capabilities", "<WMT_MS_Capabilities/>"),
+                FakeHttpd.Route.errorResponse("/error", 500, "Error"));
+        server.start();
+        url = new URI("http://localhost:" + server.getPort() + "/capabilities");
+        cache = new ServerInfoCache<ServiceInfo>(new CountingLoader());
+    }
+
+    @After
+    public void after() throws IOException, InterruptedException {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadedOnce() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<ServiceInfo>> results = new ArrayList<Future<ServiceInfo>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<ServiceInfo>() {
+                    public ServiceInfo call() {
+                        return cache.getInfo(url, context);
+                    }
+                }));
+            }
+            final ServiceInfo first = results.get(0).get();
+            for (Future<ServiceInfo> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, nbLoads.get());
+    }
+
+    @Test
+    public void testStale() throws Exception {
+        context.getConfig().setCapabilitiesTtlSeconds(0);
+        final ServiceInfo first = cache.getInfo(url, context);
+        Thread.sleep(10);
+        assertSame(first, cache.getInfo(url, context));
+
+        //refreshed in the background
+        for (int i = 0; i < 100 && cache.getInfo(url, context) == first; i++) {
+            Thread.sleep(10);
+        }
+        assertNotSame(first, cache.getInfo(url, context));
+        assertTrue(nbLoads.get() >= 2);
+
+        context.getConfig().setCapabilitiesMaxStaleSeconds(0);
+        //let the background refreshes finish
+        Thread.sleep(300);
+        final int nbLoadsBefore = nbLoads.get();
+        cache.getInfo(url, context);
+        assertEquals(nbLoadsBefore + 1, nbLoads.get());
+    }
+
+    @Test
+    public void testError() throws Exception {
+        final URI errorUrl = new URI("http://localhost:" + server.getPort() + "/error");
+        final ServiceInfo error = cache.getInfo(errorUrl, context);
+        assertSame(error, cache.getInfo(errorUrl, context));
+
+        context.getConfig().setCapabilitiesErrorTtlSeconds(0);
+        Thread.sleep(10);
+        assertNotSame(error, cache.getInfo(errorUrl, context));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final File directory = Files.createTempDirectory("capabilities").toFile();
+        try {
+            context.getConfig().setCapabilitiesSnapshotDirectory(directory.getAbsolutePath());
+            cache.getInfo(url, context);
+            assertEquals(1, nbLoads.get());
+            assertEquals(1, directory.list().length);
+
+            //as after a restart: the snapshot is used and refreshed in the background
+            final ServerInfoCache<ServiceInfo> restarted = new ServerInfoCache<ServiceInfo>(new CountingLoader());
+            restarted.getInfo(url, context);
+            for (int i = 0; i < 100 && nbLoads.get() < 3; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, nbLoads.get());
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private class CountingLoader extends ServerInfoCache.ServiceInfoLoader<ServiceInfo> {
+        @Override
+        public Log logger() {
+            return LogFactory.getLog(ServerInfoCacheTest.class);
+        }
+
+        @Override
+        public ServiceInfo createNewErrorResult() {
+            return new ServiceInfo();
+        }
+
+        @Override
+        public URL createURL(URI baseUrl, RenderingContext context) throws MalformedURLException {
+            return baseUrl.toURL();
+        }
+
+        @Override
+        public ServiceInfo parseInfo(InputStream stream) throws IOException {
+            nbLoads.incrementAndGet();
+            return new ServiceInfo();
+        }
+    }
+}
@@ -115,6 +115,9 @@ public class WMSServiceInfoTest extends PrintTestCase {
         InputStream stream = new ByteArrayInputStream(response.getBytes("ISO-8859-1"));
         WMSServiceInfo info = new WMSServiceInfo.WMSServiceInfoLoader().parseInfo(stream);
         assertEquals(true, info.isTileCache());
+        //the streaming parser gives the same result as the DOM one
+        assertEquals(new WMSServiceInfo.WMSServiceInfoLoader().parseInfoWithDom(
+                new ByteArrayInputStream(response.getBytes("ISO-8859-1"))).toString(), info.toString());
         TileCacheLayerInfo layerInfo = info.getTileCacheLayer("cn");
         assertNotNull(layerInfo);
         assertEquals(256, layerInfo.getWidth());
@@ -233,6 +236,9 @@ public class WMSServiceInfoTest extends PrintTestCase {
         InputStream stream = new ByteArrayInputStream(response.getBytes("ISO-8859-1"));
         WMSServiceInfo info = new WMSServiceInfo.WMSServiceInfoLoader().parseInfo(stream);
         assertEquals(true, info.isTileCache());
+        //the streaming parser gives the same result as the DOM one
+        assertEquals(new WMSServiceInfo.WMSServiceInfoLoader().parseInfoWithDom(
+                new ByteArrayInputStream(response.getBytes("ISO-8859-1"))).toString(), info.toString());
         TileCacheLayerInfo layerInfo = info.getTileCacheLayer("cn");
         assertNotNull(layerInfo);
         assertEquals(256, layerInfo.getWidth());
@@ -8,6 +8,7 @@ import org.junit.Test;
 import org.mapfish.print.FakeHttpd;
 import org.mapfish.print.MapTestBasic;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -80,4 +81,34 @@ public class WMTSServiceInfoTest extends MapTestBasic {
         }
 
     }
+
+    @Test
+    public void testStreamingParserSameAsDom() throws Exception {
+        final WMTSServiceInfo.WMSServiceInfoLoader loader = new WMTSServiceInfo.WMSServiceInfoLoader();
+        final WMTSServiceInfo streamed = loader.parseInfo(new ByteArrayInputStream(capabilitiesDocument));
+        final WMTSServiceInfo dom = loader.parseInfoWithDom(new ByteArrayInputStream(capabilitiesDocument));
+
+        assertEquals(dom.tileCacheLayers.keySet(), streamed.tileCacheLayers.keySet());
+        for (String id : dom.tileCacheLayers.keySet()) {
+            final WmtsCapabilitiesInfo expected = dom.tileCacheLayers.get(id);
+            final WmtsCapabilitiesInfo actual = streamed.tileCacheLayers.get(id);
+            assertEquals(expected.getTitle(), actual.getTitle());
+            assertEquals(expected.getFormats(), actual.getFormats());
+            assertEquals(expected.getBounds(), actual.getBounds());
+            assertEquals(expected.getTileMatrices().keySet(), actual.getTileMatrices().keySet());
+            for (String matrixSetId : expected.getTileMatrices().keySet()) {
+                final Map<String, WMTSServiceInfo.TileMatrixLimit> expectedLimits = expected.getTileMatrices().get(matrixSetId).limits;
+                final Map<String, WMTSServiceInfo.TileMatrixLimit> actualLimits = actual.getTileMatrices().get(matrixSetId).limits;
+                assertEquals(expectedLimits.keySet(), actualLimits.keySet());
+                for (String limitId : expectedLimits.keySet()) {
+                    final WMTSServiceInfo.TileMatrixLimit expectedLimit = expectedLimits.get(limitId);
+                    final WMTSServiceInfo.TileMatrixLimit actualLimit = actualLimits.get(limitId);
+                    assertEquals(expectedLimit.MinTileRow, actualLimit.MinTileRow);
+                    assertEquals(expectedLimit.MaxTileRow, actualLimit.MaxTileRow);
+                    assertEquals(expectedLimit.MinTileCol, actualLimit.MinTileCol);
+                    assertEquals(expectedLimit.MaxTileCol, actualLimit.MaxTileCol);
+                }
+            }
+        }
+    }
 }
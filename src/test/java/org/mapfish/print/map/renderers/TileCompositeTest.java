@@ -0,0 +1,64 @@
+package org.mapfish.print.map.renderers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import com.lowagie.text.Image;
+import org.junit.Test;
+
+public class TileCompositeTest {
+
+    @Test
+    public void testClippedToTheMap() throws Exception {
+        //a 2x2 grid of 256 pixels tiles, starting 10 pixels before the map
+        final TileComposite composite = TileComposite.create(-10.5, -20.0, 501.5, 492.0, 400, 300, 10000000);
+        assertNotNull(composite);
+        assertEquals(400, composite.getBitmap().getWidth());
+        assertEquals(300, composite.getBitmap().getHeight());
+
+        final Image image = composite.toImage();
+        assertEquals(0f, image.getAbsoluteX(), 0.0001f);
+        assertEquals(0f, image.getAbsoluteY(), 0.0001f);
+        assertEquals(400f, image.getPlainWidth(), 0.0001f);
+        assertNotNull("nothing drawn, so transparent", image.getImageMask());
+    }
+
+    @Test
+    public void testTooBig() {
+        assertNull(TileComposite.create(0, 0, 1000, 1000, 1000, 1000, 1000 * 1000 * 8 - 1));
+        assertNotNull(TileComposite.create(0, 0, 1000, 1000, 1000, 1000, 1000 * 1000 * 8));
+        assertNull("outside of the map", TileComposite.create(-600, 0, -10, 1000, 1000, 1000, 1000 * 1000 * 8));
+    }
+
+    @Test
+    public void testDraw() throws Exception {
+        final TileComposite composite = TileComposite.create(0, 0, 20, 20, 20, 20, 10000);
+        //Y goes up: the bottom left tile is painted at the bottom of the bitmap
+        composite.draw(createTile(Color.RED, 10), 0, 0, 10, 10);
+        composite.draw(createTile(Color.GREEN, 10), 10, 0, 10, 10);
+        //scaled to the tile size
+        composite.draw(createTile(Color.BLUE, 40), 0, 10, 10, 10);
+        composite.draw(createTile(Color.WHITE, 5), 10, 10, 10, 10);
+
+        final BufferedImage bitmap = composite.getBitmap();
+        assertEquals(Color.RED.getRGB(), bitmap.getRGB(5, 15));
+        assertEquals(Color.GREEN.getRGB(), bitmap.getRGB(15, 15));
+        assertEquals(Color.BLUE.getRGB(), bitmap.getRGB(5, 5));
+        assertEquals(Color.WHITE.getRGB(), bitmap.getRGB(15, 5));
+        assertNull("all opaque", composite.toImage().getImageMask());
+    }
+
+    private static BufferedImage createTile(Color color, int size) {
+        final BufferedImage tile = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = tile.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, size, size);
+        graphics.dispose();
+        return tile;
+    }
+}
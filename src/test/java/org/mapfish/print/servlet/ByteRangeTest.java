@@ -0,0 +1,43 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testParse() {
+        assertRange(0, 99, "bytes=0-99");
+        assertRange(100, 999, "bytes=100-");
+        assertRange(900, 999, "bytes=-100");
+        assertRange(0, 999, "bytes=-5000");
+        assertRange(500, 999, "bytes=500-5000");
+        assertEquals("bytes 10-19/1000", ByteRange.parse("bytes=10-19", 1000).toContentRange(1000));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-10", 1000));
+        assertNull(ByteRange.parse("bytes=0-10,20-30", 1000));
+        assertNull(ByteRange.parse("bytes=20-10", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+        assertEquals("bytes */1000", ByteRange.UNSATISFIABLE.toContentRange(1000));
+    }
+
+    private void assertRange(long start, long end, String header) {
+        final ByteRange range = ByteRange.parse(header, 1000);
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+        assertEquals(end - start + 1, range.getLength());
+    }
+}
@@ -0,0 +1,76 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.servlet.ServletException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.config.Config;
+
+public class MapPrinterRegistryTest {
+    private final List<MapPrinter> loaded = new ArrayList<MapPrinter>();
+    private File configFile;
+    private MapPrinterRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        configFile = File.createTempFile("config", ".yaml");
+        //checked only when asked by the test
+        registry = new MapPrinterRegistry(new MapPrinterRegistry.Loader() {
+            public MapPrinter load(File file) {
+                final Config config = mock(Config.class);
+                final MapPrinter printer = mock(MapPrinter.class);
+                when(printer.tryStart()).thenReturn(true);
+                when(printer.isRunning()).thenReturn(true);
+                when(printer.getConfig()).thenReturn(config);
+                loaded.add(printer);
+                return printer;
+            }
+        }, Integer.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() {
+        registry.close();
+        configFile.delete();
+    }
+
+    @Test
+    public void testLoadOnce() throws ServletException {
+        assertNull(registry.get("app"));
+        final MapPrinter printer = registry.load("app", configFile);
+        assertSame(printer, registry.load("app", configFile));
+        assertSame(printer, registry.get("app"));
+        assertEquals(1, loaded.size());
+
+        registry.checkConfigs();
+        assertEquals(1, loaded.size());
+        verify(printer, never()).stop();
+    }
+
+    @Test
+    public void testReload() throws ServletException {
+        final MapPrinter printer = registry.load("app", configFile);
+        assertTrue(configFile.setLastModified(configFile.lastModified() - 10000));
+        registry.checkConfigs();
+        assertEquals(2, loaded.size());
+        //the usage of the registry is released, the prints using it still have theirs
+        verify(printer, times(1)).stop();
+        assertSame(loaded.get(1), registry.get("app"));
+    }
+}
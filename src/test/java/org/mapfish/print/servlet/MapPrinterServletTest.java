@@ -1,12 +1,21 @@
 package org.mapfish.print.servlet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata.cleanUpName;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.junit.Test;
 
 public class MapPrinterServletTest {
@@ -45,6 +54,27 @@ public class MapPrinterServletTest {
         assertExpectedFormat(date, "filename.tif.pdf", "filename.tif", ".pdf");
     }
 
+    @Test
+    public void testGetFileNotFinished() throws Exception {
+        final PrintJob job = mock(PrintJob.class);
+        when(job.isDone()).thenReturn(false);
+        when(job.getStatus()).thenReturn(PrintJob.Status.RUNNING);
+        final PrintJobManager jobManager = mock(PrintJobManager.class);
+        when(jobManager.getJob("42")).thenReturn(job);
+        final MapPrinterServlet servlet = new MapPrinterServlet();
+        servlet.setJobManager(jobManager);
+
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        final StringWriter body = new StringWriter();
+        when(response.getWriter()).thenReturn(new PrintWriter(body));
+        //answered right away, the client polls the status
+        servlet.getFile(mock(HttpServletRequest.class), response, "42");
+        verify(response).setStatus(409);
+        verify(response).setHeader("Retry-After", "2");
+        assertTrue(body.toString().contains("running"));
+        verify(job, never()).getTempFileMetadata();
+    }
+
     private void assertExpectedFormat(Date date, String expected, String fileName, String suffix) {
         assertEquals(expected, MapPrinterServlet.TempFileMetadata.formatFileName(suffix, fileName, date));
     }
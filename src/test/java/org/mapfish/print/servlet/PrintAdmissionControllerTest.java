@@ -0,0 +1,123 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrintAdmissionControllerTest {
+
+    private MetricRegistry metricRegistry;
+    private PrintAdmissionController controller;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        controller = new PrintAdmissionController();
+        controller.setMetricRegistry(metricRegistry);
+        controller.setMaxConcurrentPrints(1);
+        controller.setMaxWaitingPrints(1);
+        controller.setMaxWaitSeconds(0);
+        controller.setRetryAfterSeconds(12);
+        controller.setAppQuotas(Collections.singletonMap("small", 1));
+        controller.init();
+    }
+
+    @Test
+    public void testQueueFull() throws InterruptedException {
+        PrintAdmissionController.Ticket running = controller.admit(null);
+        running.start();
+        PrintAdmissionController.Ticket waiting = controller.admit(null);
+        assertEquals(1, getGauge("waiting"));
+        assertEquals(1, getGauge("running"));
+        try {
+            controller.admit(null);
+            fail("Expected a rejection");
+        } catch (PrintRejectedException e) {
+            assertEquals(12, e.getRetryAfterSeconds());
+        }
+
+        waiting.close();
+        running.close();
+        assertEquals(0, getGauge("waiting"));
+        assertEquals(0, getGauge("running"));
+        controller.admit(null).close();
+    }
+
+    @Test
+    public void testWaitTimeout() throws InterruptedException {
+        PrintAdmissionController.Ticket running = controller.admit(null);
+        running.start();
+        PrintAdmissionController.Ticket waiting = controller.admit(null);
+        try {
+            waiting.start();
+            fail("Expected a rejection");
+        } catch (PrintRejectedException e) {
+            // expected
+        }
+        assertEquals(0, getGauge("waiting"));
+        running.close();
+
+        waiting = controller.admit(null);
+        waiting.start();
+        assertEquals(1, getGauge("running"));
+        waiting.close();
+    }
+
+    @Test
+    public void testAppQuota() {
+        PrintAdmissionController.Ticket first = controller.admit("small");
+        try {
+            controller.admit("small");
+            fail("Expected a rejection");
+        } catch (PrintRejectedException e) {
+            // expected
+        }
+        first.close();
+        controller.admit("small").close();
+    }
+
+    @Test
+    public void testCloseWhileWaiting() throws InterruptedException {
+        controller.setMaxWaitSeconds(10);
+        controller.init();
+        final PrintAdmissionController.Ticket running = controller.admit(null);
+        running.start();
+        final PrintAdmissionController.Ticket waiting = controller.admit(null);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    waiting.start();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        waiter.start();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(10);
+        }
+
+        final long start = System.currentTimeMillis();
+        waiting.close();
+        assertTrue("close must not wait for a slot", System.currentTimeMillis() - start < 1000);
+        assertEquals(0, getGauge("waiting"));
+
+        running.close();
+        waiter.join(5000);
+        assertTrue(error.get() instanceof PrintRejectedException);
+        assertEquals(0, getGauge("running"));
+        controller.admit(null).start();
+    }
+
+    private int getGauge(String name) {
+        return (Integer) metricRegistry.getGauges().get(MetricRegistry.name(PrintAdmissionController.class, name)).getValue();
+    }
+}
@@ -0,0 +1,74 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+public class SharedFilesystemPrintResultStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("sharedStore", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPublish() throws IOException {
+        final SharedFilesystemPrintResultStore node1 = createStore(600);
+        final SharedFilesystemPrintResultStore node2 = createStore(600);
+        final File file = node1.createFile("mapfish-print", ".pdf.printout");
+        final String id = "123.pdf";
+        assertNull(node2.getMetadata(id));
+
+        node1.publish(id, new TempFileMetadata(file, "out.pdf", null, "pdf", "application/pdf", null));
+        final TempFileMetadata metadata = node2.getMetadata(id);
+        assertEquals("out.pdf", metadata.outputFileName);
+        assertEquals(file, metadata.tempFile);
+        assertEquals(2, dir.listFiles().length);
+
+        assertNull(node2.getMetadata("../" + id));
+    }
+
+    @Test
+    public void testPurge() throws IOException {
+        final SharedFilesystemPrintResultStore store = createStore(60);
+        final File file = store.createFile("mapfish-print", ".pdf.printout");
+        store.publish("1.pdf", new TempFileMetadata(file, "out.pdf", null, "pdf", "application/pdf", null));
+        store.purge();
+        assertTrue(file.exists());
+
+        for (File existing : dir.listFiles()) {
+            assertTrue(existing.setLastModified(System.currentTimeMillis() - 120000));
+        }
+        assertNull(store.getMetadata("1.pdf"));
+        store.purge();
+        assertFalse(file.exists());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private SharedFilesystemPrintResultStore createStore(int maxAgeSeconds) {
+        final SharedFilesystemPrintResultStore store = new SharedFilesystemPrintResultStore();
+        store.setDirectory(dir);
+        store.setMaxAgeSeconds(maxAgeSeconds);
+        store.init();
+        return store;
+    }
+}
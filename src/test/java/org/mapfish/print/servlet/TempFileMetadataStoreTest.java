@@ -0,0 +1,102 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.servlet.MapPrinterServlet.TempFileMetadata;
+
+public class TempFileMetadataStoreTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("metadataStore", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testPersisted() throws IOException {
+        final File log = new File(dir, "index");
+        final TempFileMetadataStore store = new TempFileMetadataStore(log, 60000);
+        store.put("a", createMetadata("a"));
+        assertEquals("a.pdf", store.get("a").outputFileName);
+        assertNull(store.get("b"));
+
+        //another node sharing the directory
+        final TempFileMetadataStore other = new TempFileMetadataStore(log, 60000);
+        assertNotNull(other.get("a"));
+        other.put("b", createMetadata("b"));
+        assertEquals("b.pdf", store.get("b").outputFileName);
+    }
+
+    @Test
+    public void testPurge() throws IOException, InterruptedException {
+        final File log = new File(dir, "index");
+        final TempFileMetadataStore store = new TempFileMetadataStore(log, 50);
+        final TempFileMetadata metadata = createMetadata("a");
+        store.put("a", metadata);
+        store.put("c", createMetadata("c"));
+        Thread.sleep(100);
+        store.put("b", createMetadata("b"));
+        assertNull(store.get("a"));
+
+        store.purge();
+        assertFalse(metadata.tempFile.exists());
+        assertEquals(1, store.size());
+        //more purged entries than live ones: the log has been rewritten without them
+        assertEquals(1, new TempFileMetadataStore(log, 60000).size());
+    }
+
+    @Test
+    public void testSharedRewrite() throws IOException, InterruptedException {
+        final File log = new File(dir, "index");
+        final TempFileMetadataStore store = new TempFileMetadataStore(log, 300);
+        final TempFileMetadataStore other = new TempFileMetadataStore(log, 60000);
+        store.put("a1", createMetadata("a1"));
+        store.put("a2", createMetadata("a2"));
+        Thread.sleep(400);
+        other.put("b", createMetadata("b"));
+        store.put("c", createMetadata("c"));
+
+        //rewrites the log, keeping the entry of the other node
+        store.purge();
+        assertEquals(2, new TempFileMetadataStore(log, 60000).size());
+
+        //the other node notices the rewrite
+        store.put("d", createMetadata("d"));
+        assertEquals("d.pdf", other.get("d").outputFileName);
+        assertNotNull(other.get("c"));
+    }
+
+    @Test
+    public void testInMemory() throws IOException {
+        final TempFileMetadataStore store = new TempFileMetadataStore(null, 60000);
+        store.put("a", createMetadata("a"));
+        assertNotNull(store.get("a"));
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    private TempFileMetadata createMetadata(String id) throws IOException {
+        final File file = new File(dir, id + ".printout");
+        assertTrue(file.createNewFile());
+        return new TempFileMetadata(file, id + ".pdf", null, "pdf", "application/pdf", null);
+    }
+}
@@ -0,0 +1,153 @@
+package org.mapfish.print.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+import org.mapfish.print.CancellationToken;
+import org.mapfish.print.PrintCancelledException;
+
+public class HostConcurrencyLimiterTest {
+    @Test
+    public void testPerHost() throws Exception {
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(1, 10);
+        final HostConcurrencyLimiter.Permit permit = limiter.acquire(new URI("http://a.example.com/1.png"));
+
+        //another host is not blocked
+        limiter.acquire(new URI("http://b.example.com/1.png")).close();
+
+        final CountDownLatch acquired = tryAcquire(limiter, new URI("http://a.example.com/2.png"));
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        permit.close();
+        //closing twice must not release twice
+        permit.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTotal() throws Exception {
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(10, 1);
+        final HostConcurrencyLimiter.Permit permit = limiter.acquire(new URI("http://a.example.com/1.png"));
+
+        final CountDownLatch acquired = tryAcquire(limiter, new URI("http://b.example.com/1.png"));
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+        permit.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCancelledWhileWaiting() throws Exception {
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(1, 10);
+        final URI uri = new URI("http://a.example.com/1.png");
+        final HostConcurrencyLimiter.Permit permit = limiter.acquire(uri);
+
+        //deadline reached while waiting
+        final long start = System.currentTimeMillis();
+        try {
+            limiter.acquire(uri, new CancellationToken(300));
+            fail("Expected a cancellation");
+        } catch (PrintCancelledException e) {
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+
+        //already cancelled
+        final CancellationToken cancelled = new CancellationToken(0);
+        cancelled.cancel("test");
+        try {
+            limiter.acquire(uri, cancelled);
+            fail("Expected a cancellation");
+        } catch (PrintCancelledException e) {
+            //expected
+        }
+
+        //the slot is still usable
+        final CountDownLatch acquired = tryAcquire(limiter, uri);
+        permit.close();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testAdaptiveDecrease() throws Exception {
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(10, 1, 20, 100, null);
+        final URI uri = new URI("http://a.example.com/1.png");
+        final HostConcurrencyLimiter.Permit first = limiter.acquire(uri);
+        final HostConcurrencyLimiter.Permit second = limiter.acquire(uri);
+        first.markFailed();
+        first.close();
+        assertEquals(7, limiter.getLimit("a.example.com"));
+
+        //was in flight together with the first one
+        second.markFailed();
+        second.close();
+        assertEquals(7, limiter.getLimit("a.example.com"));
+
+        for (int i = 0; i < 10; ++i) {
+            final HostConcurrencyLimiter.Permit permit = limiter.acquire(uri);
+            permit.markFailed();
+            permit.close();
+        }
+        assertEquals(1, limiter.getLimit("a.example.com"));
+        assertEquals(10, limiter.getLimit("b.example.com"));
+    }
+
+    @Test
+    public void testAdaptiveIncrease() throws Exception {
+        final MetricRegistry registry = new MetricRegistry();
+        final HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(2, 1, 3, 100, registry);
+        limiter.setLatencyTolerance(Double.MAX_VALUE);
+        final URI uri = new URI("http://a.example.com/1.png");
+
+        //not saturated => no increase
+        for (int i = 0; i < 10; ++i) {
+            limiter.acquire(uri).close();
+        }
+        assertEquals(2, limiter.getLimit("a.example.com"));
+
+        //saturated => +1 after a full window of successes
+        final HostConcurrencyLimiter.Permit first = limiter.acquire(uri);
+        final HostConcurrencyLimiter.Permit second = limiter.acquire(uri);
+        first.close();
+        final HostConcurrencyLimiter.Permit third = limiter.acquire(uri);
+        second.close();
+        third.close();
+        assertEquals(3, limiter.getLimit("a.example.com"));
+
+        //never more than the max
+        HostConcurrencyLimiter.Permit previous = limiter.acquire(uri);
+        HostConcurrencyLimiter.Permit current = limiter.acquire(uri);
+        for (int i = 0; i < 10; ++i) {
+            final HostConcurrencyLimiter.Permit next = limiter.acquire(uri);
+            previous.close();
+            previous = current;
+            current = next;
+        }
+        previous.close();
+        current.close();
+        assertEquals(3, limiter.getLimit("a.example.com"));
+        assertEquals(3, registry.getGauges().get(MetricRegistry.name(HostConcurrencyLimiter.class, "a.example.com", "limit")).getValue());
+    }
+
+    private CountDownLatch tryAcquire(final HostConcurrencyLimiter limiter, final URI uri) {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            public void run() {
+                try {
+                    limiter.acquire(uri);
+                    acquired.countDown();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+}
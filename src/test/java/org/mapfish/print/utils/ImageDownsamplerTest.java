@@ -0,0 +1,65 @@
+package org.mapfish.print.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+public class ImageDownsamplerTest {
+
+    @Test
+    public void testDownsample() throws IOException {
+        final byte[] png = createImage(512, 384, BufferedImage.TYPE_INT_ARGB, "png");
+        final ImageDownsampler.Result result = ImageDownsampler.downsample(png, 150, 100);
+        assertEquals(512, result.getOriginalWidth());
+        assertEquals(384, result.getOriginalHeight());
+
+        //subsampled by 3: still as big as the target
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(result.getData()));
+        assertEquals(171, image.getWidth());
+        assertEquals(128, image.getHeight());
+        assertEquals("png", getFormat(result.getData()));
+    }
+
+    @Test
+    public void testJpeg() throws IOException {
+        final byte[] jpeg = createImage(512, 512, BufferedImage.TYPE_INT_RGB, "jpeg");
+        final ImageDownsampler.Result result = ImageDownsampler.downsample(jpeg, 256, 256);
+        assertEquals("jpeg", getFormat(result.getData()));
+        assertEquals(256, ImageIO.read(new ByteArrayInputStream(result.getData())).getWidth());
+    }
+
+    @Test
+    public void testNotNeeded() throws IOException {
+        final byte[] png = createImage(256, 256, BufferedImage.TYPE_INT_ARGB, "png");
+        assertNull(ImageDownsampler.downsample(png, 256, 256));
+        assertNull(ImageDownsampler.downsample(png, 150, 150));
+        assertNull(ImageDownsampler.downsample(png, 0, 0));
+        assertNull(ImageDownsampler.downsample("not an image".getBytes("UTF-8"), 10, 10));
+    }
+
+    private static byte[] createImage(int width, int height, int type, String format) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, type);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ImageIO.write(image, format, result);
+        return result.toByteArray();
+    }
+
+    private static String getFormat(byte[] data) throws IOException {
+        final ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        try {
+            final ImageReader reader = ImageIO.getImageReaders(input).next();
+            return reader.getFormatName().toLowerCase();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.pvalsecc.concurrent;
+
+public class LockFreeOrderedResultsExecutorTest extends OrderedResultsExecutorTest {
+    @Override
+    protected OrderedExecutor<String> createExecutor(int nbThreads) {
+        return new LockFreeOrderedResultsExecutor<String>(nbThreads, "test");
+    }
+}
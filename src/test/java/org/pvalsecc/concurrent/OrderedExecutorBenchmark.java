@@ -0,0 +1,95 @@
+package org.pvalsecc.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link OrderedExecutor} implementations. Each benchmark thread simulates
+ * a print: it adds the tasks of one map and waits for all the results.
+ * <p/>
+ * Run it with the main method (after mvn test-compile), with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class OrderedExecutorBenchmark {
+    @Param({"synchronized", "lockFree"})
+    public String implementation;
+
+    @Param({"8", "200"})
+    public int nbThreads;
+
+    @Param({"4", "400"})
+    public int nbTiles;
+
+    private OrderedExecutor<Long> executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (implementation.equals("lockFree")) {
+            executor = new LockFreeOrderedResultsExecutor<Long>(nbThreads, "benchmark");
+        } else {
+            executor = new OrderedResultsExecutor<Long>(nbThreads, "benchmark");
+        }
+        executor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.stop();
+    }
+
+    @Benchmark
+    public void print() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(nbTiles);
+        final OrderedResultsExecutor.ResultCollector<Long> collector = new OrderedResultsExecutor.ResultCollector<Long>() {
+            private long previous = 0L;
+
+            public void handle(Long result) {
+                if (result <= previous) {
+                    throw new RuntimeException("Results out of order");
+                }
+                previous = result;
+                done.countDown();
+            }
+        };
+        for (long i = 1; i <= nbTiles; ++i) {
+            final long tile = i;
+            executor.addTask(new OrderedResultsExecutor.Task<Long>() {
+                public Long process() {
+                    //simulates the decoding of a small tile
+                    Blackhole.consumeCPU(1000);
+                    return tile;
+                }
+            }, collector);
+        }
+        done.await();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(OrderedExecutorBenchmark.class.getSimpleName()).build()).run();
+    }
+}
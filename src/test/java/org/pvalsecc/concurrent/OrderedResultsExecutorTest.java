@@ -0,0 +1,248 @@
+package org.pvalsecc.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderedResultsExecutorTest {
+    private OrderedExecutor<String> executor;
+    private final List<String> processed = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch blocker = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        executor = createExecutor(1);
+        executor.start();
+    }
+
+    protected OrderedExecutor<String> createExecutor(int nbThreads) {
+        return new OrderedResultsExecutor<String>(nbThreads, "test");
+    }
+
+    @After
+    public void tearDown() {
+        blocker.countDown();
+        executor.stop();
+    }
+
+    @Test
+    public void testRoundRobin() throws InterruptedException {
+        blockThread();
+        Collector big = new Collector(6);
+        Collector small = new Collector(2);
+        for (int i = 1; i <= 6; ++i) {
+            executor.addTask(new NamedTask("big" + i), big);
+        }
+        executor.addTask(new NamedTask("small1"), small);
+        executor.addTask(new NamedTask("small2"), small);
+        blocker.countDown();
+
+        small.waitForCompletion();
+        big.waitForCompletion();
+        assertEquals(Arrays.asList("big1", "small1", "big2", "small2", "big3", "big4", "big5", "big6"), processed);
+        assertEquals(Arrays.asList("small1", "small2"), small.results);
+        assertEquals(Arrays.asList("big1", "big2", "big3", "big4", "big5", "big6"), big.results);
+    }
+
+    @Test
+    public void testPriority() throws InterruptedException {
+        blockThread();
+        Collector high = new Collector(4);
+        Collector low = new Collector(2);
+        for (int i = 1; i <= 4; ++i) {
+            executor.addTask(new NamedTask("high" + i), high, 2);
+        }
+        executor.addTask(new NamedTask("low1"), low);
+        executor.addTask(new NamedTask("low2"), low);
+        blocker.countDown();
+
+        high.waitForCompletion();
+        low.waitForCompletion();
+        assertEquals(Arrays.asList("high1", "high2", "low1", "high3", "high4", "low2"), processed);
+    }
+
+    @Test
+    public void testOrderAndErrors() throws InterruptedException {
+        executor.stop();
+        executor = createExecutor(5);
+        executor.start();
+
+        Collector collector = new Collector(99);
+        for (int i = 1; i <= 100; ++i) {
+            if (i == 50) {
+                executor.addTask(new OrderedResultsExecutor.Task<String>() {
+                    public String process() {
+                        throw new RuntimeException("expected");
+                    }
+                }, collector);
+            } else {
+                executor.addTask(new NamedTask(Integer.toString(i)), collector);
+            }
+        }
+        collector.waitForCompletion();
+        assertEquals(99, collector.results.size());
+        int previous = 0;
+        for (String result : collector.results) {
+            final int cur = Integer.parseInt(result);
+            assertTrue(cur > previous);
+            previous = cur;
+        }
+    }
+
+    @Test
+    public void testSlowFirstTask() throws InterruptedException {
+        executor.stop();
+        executor = createExecutor(4);
+        executor.start();
+
+        final CountDownLatch othersDone = new CountDownLatch(999);
+        Collector collector = new Collector(1000);
+        executor.addTask(new OrderedResultsExecutor.Task<String>() {
+            public String process() {
+                try {
+                    othersDone.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "0";
+            }
+        }, collector);
+        for (int i = 1; i < 1000; ++i) {
+            final String name = Integer.toString(i);
+            executor.addTask(new OrderedResultsExecutor.Task<String>() {
+                public String process() {
+                    othersDone.countDown();
+                    return name;
+                }
+            }, collector);
+        }
+        collector.waitForCompletion();
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(Integer.toString(i), collector.results.get(i));
+        }
+    }
+
+    @Test
+    public void testConcurrentCollectors() throws InterruptedException {
+        executor.stop();
+        executor = createExecutor(8);
+        executor.start();
+
+        final Collector[] collectors = new Collector[10];
+        Thread[] producers = new Thread[collectors.length];
+        for (int i = 0; i < collectors.length; ++i) {
+            final Collector collector = collectors[i] = new Collector(500);
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 500; ++j) {
+                        executor.addTask(new NamedTask(Integer.toString(j)), collector);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (int i = 0; i < collectors.length; ++i) {
+            producers[i].join();
+            collectors[i].waitForCompletion();
+            for (int j = 0; j < 500; ++j) {
+                assertEquals(Integer.toString(j), collectors[i].results.get(j));
+            }
+        }
+    }
+
+    @Test
+    public void testCollectorsIdentifiedByIdentity() throws InterruptedException {
+        blockThread();
+        Collector first = new EqualCollector(2);
+        Collector second = new EqualCollector(1);
+        executor.addTask(new NamedTask("first1"), first);
+        executor.addTask(new NamedTask("first2"), first);
+        executor.addTask(new NamedTask("second1"), second);
+        blocker.countDown();
+
+        first.waitForCompletion();
+        second.waitForCompletion();
+        assertEquals(Arrays.asList("first1", "second1", "first2"), processed);
+        assertEquals(Arrays.asList("first1", "first2"), first.results);
+        assertEquals(Arrays.asList("second1"), second.results);
+    }
+
+    /**
+     * Keep the only thread busy until {@link #blocker} is released, to have all the tasks queued.
+     */
+    private void blockThread() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        executor.addTask(new OrderedResultsExecutor.Task<String>() {
+            public String process() {
+                started.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "blocker";
+            }
+        }, new Collector(1));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    private class NamedTask implements OrderedResultsExecutor.Task<String> {
+        private final String name;
+
+        private NamedTask(String name) {
+            this.name = name;
+        }
+
+        public String process() {
+            processed.add(name);
+            return name;
+        }
+    }
+
+    private static class Collector implements OrderedResultsExecutor.ResultCollector<String> {
+        private final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch done;
+
+        private Collector(int nbResults) {
+            done = new CountDownLatch(nbResults);
+        }
+
+        public void handle(String result) {
+            results.add(result);
+            done.countDown();
+        }
+
+        public void waitForCompletion() throws InterruptedException {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * All equal, must still be handled separately.
+     */
+    private static class EqualCollector extends Collector {
+        private EqualCollector(int nbResults) {
+            super(nbResults);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EqualCollector;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
+    }
+}